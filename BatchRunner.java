@@ -0,0 +1,302 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Runs a script of CLI operations without any prompts, one operation per line
+ * Fields are separated by tabs (or by spaces if the line has no tabs), blank lines and lines starting with # are skipped
+ *
+ *   login     username password
+ *   register  course_id sec_id
+ *   drop      course_id
+ *   insert    table value...
+ *   update    table key=value... set attribute=value...
+ *   delete    table key=value...
+ *   retrieve  table
+ *
+ * Every operation prints one tab separated result line: line number, "ok" or "error", and a detail
+ * (retrieve prints a "row" line per tuple first). Consecutive inserts, updates or deletes on the same
+ * table are sent to the database together as one batch
+ * @author Michael Snyder
+ */
+
+public class BatchRunner {
+  private Database rootDatabase;
+  private PrintStream output;
+  private int maxPending;
+
+  // operations waiting to be sent as one batch, all the same kind on the same table
+  private String pendingKind;
+  private String pendingTable;
+  private List<Integer> pendingLines;
+  private List<String[]> pendingTuples;
+  private List<HashMap<String, String>> pendingKeys;
+  private List<HashMap<String, String>> pendingAttributes;
+
+  private int okCount;
+  private int errorCount;
+
+  /**
+   * Constructor for a runner that hasn't run anything yet
+   * @param rootDatabase Database (or database session) to run the operations on
+   * @param output Stream to print the results to, it is only flushed when the input runs dry
+   * @param maxPending Most operations sent in one batch
+   */
+  public BatchRunner(Database rootDatabase, PrintStream output, int maxPending) {
+    this.rootDatabase = rootDatabase;
+    this.output = output;
+    this.maxPending = Math.max(1, maxPending);
+    pendingLines = new ArrayList<Integer>();
+    pendingTuples = new ArrayList<String[]>();
+    pendingKeys = new ArrayList<HashMap<String, String>>();
+    pendingAttributes = new ArrayList<HashMap<String, String>>();
+  }
+
+  /**
+   * Run every operation until the input ends
+   * @param input Script to run
+   * @return True if every operation succeeded
+   * @throws IOException If the script could not be read
+   */
+  public boolean run(BufferedReader input) throws IOException {
+    String line;
+    int lineNumber = 0;
+    while ((line = input.readLine()) != null) {
+      lineNumber++;
+      runLine(lineNumber, line);
+      // don't hold results back from whoever is feeding us, once they stop to wait for them
+      if (!input.ready()) {
+        flushPending();
+        output.flush();
+      }
+    }
+    flushPending();
+    output.flush();
+    return errorCount == 0;
+  }
+
+  public int getOkCount() {
+    return okCount;
+  }
+
+  public int getErrorCount() {
+    return errorCount;
+  }
+
+  /**
+   * Parse and run (or queue) one operation
+   * @param lineNumber Line number used in the result
+   * @param line Operation
+   */
+  private void runLine(int lineNumber, String line) {
+    String trimmed = line.trim();
+    if (trimmed.length() == 0 || trimmed.startsWith("#"))
+      return;
+
+    String[] fields = trimmed.indexOf('\t') >= 0 ? trimmed.split("\t") : trimmed.split(" +");
+    String operation = fields[0].toLowerCase();
+    String table = fields.length > 1 ? fields[1] : "";
+
+    // results have to come out in order, so anything else sends the batch first
+    if (pendingKind != null && (!operation.equals(pendingKind) || !table.equals(pendingTable) || pendingLines.size() >= maxPending))
+      flushPending();
+
+    if (!operation.equals("login") && rootDatabase.getCurrentUser() == null) {
+      result(lineNumber, false, "not logged in");
+      return;
+    }
+
+    switch (operation) {
+      case "login":
+        if (fields.length != 3)
+          result(lineNumber, false, "usage: login username password");
+        else if (rootDatabase.authUser(fields[1], fields[2]))
+          result(lineNumber, true, rootDatabase.getCurrentUser().toString());
+        else
+          result(lineNumber, false, "invalid credentials");
+        break;
+      case "register":
+        if (fields.length != 3)
+          result(lineNumber, false, "usage: register course_id sec_id");
+        else if (allowed(lineNumber, "takes", UserInterface.Command.Register)) {
+          Registration registration = rootDatabase.registerForSection(fields[1], fields[2]);
+          RegistrationResult outcome = registration.getResult();
+          boolean registered = outcome == RegistrationResult.Registered || outcome == RegistrationResult.Waitlisted;
+          if (outcome == RegistrationResult.Waitlisted)
+            result(lineNumber, true, outcome + "\t" + rootDatabase.getWaitlistPosition(fields[1], fields[2]));
+          else if (outcome == RegistrationResult.TimeConflict)
+            result(lineNumber, false, outcome + "\t" + String.join(" ", registration.getConflict()));
+          else
+            result(lineNumber, registered, outcome.toString());
+        }
+        break;
+      case "drop":
+        if (fields.length != 2)
+          result(lineNumber, false, "usage: drop course_id");
+        else if (allowed(lineNumber, "takes", UserInterface.Command.Drop))
+          result(lineNumber, rootDatabase.dropSection(fields[1]), "drop");
+        break;
+      case "insert":
+        if (fields.length < 3)
+          result(lineNumber, false, "usage: insert table value...");
+        else if (allowed(lineNumber, table, UserInterface.Command.Create)) {
+          String[] tuple = new String[fields.length - 2];
+          System.arraycopy(fields, 2, tuple, 0, tuple.length);
+          queue(lineNumber, operation, table, tuple, null, null);
+        }
+        break;
+      case "update":
+        HashMap<String, String> primaryKeys = new HashMap<String, String>();
+        HashMap<String, String> attributes = new HashMap<String, String>();
+        if (!parseAssignments(fields, primaryKeys, attributes) || primaryKeys.isEmpty() || attributes.isEmpty())
+          result(lineNumber, false, "usage: update table key=value... set attribute=value...");
+        else if (allowed(lineNumber, table, UserInterface.Command.Update))
+          queue(lineNumber, operation, table, null, primaryKeys, attributes);
+        break;
+      case "delete":
+        HashMap<String, String> deleteKeys = new HashMap<String, String>();
+        if (!parseAssignments(fields, deleteKeys, null) || deleteKeys.isEmpty())
+          result(lineNumber, false, "usage: delete table key=value...");
+        else if (allowed(lineNumber, table, UserInterface.Command.Delete))
+          queue(lineNumber, operation, table, null, deleteKeys, null);
+        break;
+      case "retrieve":
+        if (fields.length != 2)
+          result(lineNumber, false, "usage: retrieve table");
+        else if (allowed(lineNumber, table, UserInterface.Command.Retrieve))
+          retrieve(lineNumber, table);
+        break;
+      default:
+        result(lineNumber, false, "unknown operation: " + fields[0]);
+    }
+  }
+
+  /**
+   * Check the logged in user may run a command on a table, printing an error if they can't
+   * @param lineNumber Line number used in the result
+   * @param table Table the command is run on
+   * @param command Command being run
+   * @return True if the command is allowed
+   */
+  private boolean allowed(int lineNumber, String table, UserInterface.Command command) {
+    if (rootDatabase.getCurrentUser().getPermissions().getAvailableCommands(table).contains(command))
+      return true;
+    result(lineNumber, false, String.format("%s is not allowed on \"%s\"", command, table));
+    return false;
+  }
+
+  /**
+   * Split key=value fields (after the table) into primary keys, and attributes once "set" is seen
+   * @param fields Fields of the operation
+   * @param primaryKeys Filled with the primary keys
+   * @param attributes Filled with the attributes, null if "set" isn't allowed
+   * @return True if every field was understood
+   */
+  private boolean parseAssignments(String[] fields, HashMap<String, String> primaryKeys, HashMap<String, String> attributes) {
+    HashMap<String, String> target = primaryKeys;
+    for (int i = 2; i < fields.length; i++) {
+      if (fields[i].equalsIgnoreCase("set") && attributes != null && target == primaryKeys) {
+        target = attributes;
+        continue;
+      }
+      int equals = fields[i].indexOf('=');
+      if (equals <= 0)
+        return false;
+      target.put(fields[i].substring(0, equals), fields[i].substring(equals + 1));
+    }
+    return true;
+  }
+
+  /**
+   * Add an insert, update or delete to the batch
+   */
+  private void queue(int lineNumber, String kind, String table, String[] tuple, HashMap<String, String> primaryKeys, HashMap<String, String> attributes) {
+    pendingKind = kind;
+    pendingTable = table;
+    pendingLines.add(lineNumber);
+    pendingTuples.add(tuple);
+    pendingKeys.add(primaryKeys);
+    pendingAttributes.add(attributes);
+  }
+
+  /**
+   * Send the batched operations and print their results
+   */
+  private void flushPending() {
+    if (pendingKind == null)
+      return;
+
+    boolean[] results;
+    if (pendingKind.equals("insert"))
+      results = rootDatabase.insertTuples(pendingTable, pendingTuples);
+    else if (pendingKind.equals("update"))
+      results = rootDatabase.updateTuples(pendingTable, pendingKeys, pendingAttributes);
+    else
+      results = rootDatabase.deleteTuples(pendingTable, pendingKeys);
+
+    for (int i = 0; i < results.length; i++)
+      result(pendingLines.get(i), results[i], pendingKind + " " + pendingTable);
+
+    pendingKind = null;
+    pendingTable = null;
+    pendingLines.clear();
+    pendingTuples.clear();
+    pendingKeys.clear();
+    pendingAttributes.clear();
+  }
+
+  /**
+   * Print every tuple of a table as a row line
+   * @param lineNumber Line number used in the result
+   * @param table Table to retrieve
+   */
+  private void retrieve(final int lineNumber, String table) {
+    int rowCount;
+    if (table.equals("course"))
+      rowCount = rootDatabase.streamCourseInfo(row -> printRow(lineNumber, row));
+    else if (table.equals("section"))
+      rowCount = rootDatabase.streamSectionInfo(row -> printRow(lineNumber, row));
+    else if (table.equals("transcript")) {
+      Transcript transcript = rootDatabase.getTranscript();
+      for (Transcript.Entry classTaken : transcript.getEntries())
+        printRow(lineNumber, new TableRow(classTaken.getTitle(), classTaken.getCourseId(), classTaken.getSemester(), classTaken.getYear(), classTaken.getGrade(), classTaken.getCredits()));
+      result(lineNumber, true, String.format("%d rows\tGPA %.2f", transcript.getEntries().size(), transcript.getGPA()));
+      return;
+    }
+    else {
+      List<TableRow> rows = table.equals("department") ? rootDatabase.getDepartmentInfo() : table.equals("takes") ? rootDatabase.getCurrrentlyEnrolledSections() : null;
+      if (rows == null) {
+        result(lineNumber, false, "can't retrieve \"" + table + "\"");
+        return;
+      }
+      for (TableRow row : rows)
+        printRow(lineNumber, row);
+      rowCount = rows.size();
+    }
+
+    if (rowCount < 0)
+      result(lineNumber, false, "retrieve " + table);
+    else
+      result(lineNumber, true, rowCount + " rows");
+  }
+
+  private void printRow(int lineNumber, TableRow row) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(lineNumber).append("\trow");
+    for (int i = 0; i < row.size(); i++)
+      sb.append('\t').append(row.get(i));
+    output.println(sb);
+  }
+
+  private void result(int lineNumber, boolean success, String detail) {
+    if (success)
+      okCount++;
+    else
+      errorCount++;
+    output.println(lineNumber + "\t" + (success ? "ok" : "error") + "\t" + detail);
+  }
+}
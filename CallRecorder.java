@@ -0,0 +1,17 @@
+/**
+ * Records a statement run against the server, in the statistics and the slow query log of @see Database
+ * Lets the classes that run their own statements on pooled connections be measured like everything else
+ * @author Michael Snyder
+ */
+
+public interface CallRecorder {
+  /**
+   * Record a finished statement
+   * @param sql SQL template that was run
+   * @param parameters Values bound to the template, may be null
+   * @param startNanos System.nanoTime() from before the statement
+   * @param rows Rows returned or affected
+   * @param failed True if the statement threw
+   */
+  void record(String sql, String[] parameters, long startNanos, long rows, boolean failed);
+}
@@ -0,0 +1,375 @@
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of connections to the SQL server used by @see Database
+ * Connections are borrowed for a single query or command and returned afterwards
+ * @author Michael Snyder
+ */
+
+public class ConnectionPool {
+  private String connectionStr;
+  private String dbUser;
+  private String dbPass;
+  private int minSize;
+  private int maxSize;
+  private long idleTimeout = 300000;
+  private long borrowTimeout = 10000;
+  private long validationInterval = 30000;
+  private int statementCacheSize = 64;
+  private volatile String catalog;
+  private volatile boolean closed;
+
+  // most recently returned connections are kept at the front
+  private LinkedBlockingDeque<PooledConnection> idleConnections;
+  private AtomicInteger totalConnections;
+  private AtomicInteger activeConnections;
+  private AtomicLong waitCount;
+  private AtomicLong totalWaitTime;
+  private AtomicLong maxWaitTime;
+  private AtomicLong timeoutCount;
+  private ScheduledExecutorService evictor;
+
+  /**
+   * Constructor to set up the pool (connections are opened on demand)
+   * @param connectionStr JDBC url of the SQL server
+   * @param dbUser Username to authenticate with
+   * @param dbPass Password to authenticate with
+   * @param minSize Number of idle connections to keep open
+   * @param maxSize Maximum number of connections open at once
+   */
+  public ConnectionPool(String connectionStr, String dbUser, String dbPass, int minSize, int maxSize) {
+    if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+      throw new IllegalArgumentException("Invalid connection pool size");
+
+    this.connectionStr = connectionStr;
+    this.dbUser = dbUser;
+    this.dbPass = dbPass;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    idleConnections = new LinkedBlockingDeque<PooledConnection>();
+    totalConnections = new AtomicInteger();
+    activeConnections = new AtomicInteger();
+    waitCount = new AtomicLong();
+    totalWaitTime = new AtomicLong();
+    maxWaitTime = new AtomicLong();
+    timeoutCount = new AtomicLong();
+
+    evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable R) {
+        Thread evictorThread = new Thread(R, "connection-pool-evictor");
+        evictorThread.setDaemon(true);
+        return evictorThread;
+      }
+    });
+    evictor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        evictIdle();
+      }
+    }, 30, 30, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Set how long a connection may sit idle before being closed (down to the minimum size)
+   * @param idleTimeout Timeout in milliseconds
+   */
+  public void setIdleTimeout(long idleTimeout) {
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Set how long a caller will wait for a connection when the pool is exhausted
+   * @param borrowTimeout Timeout in milliseconds
+   */
+  public void setBorrowTimeout(long borrowTimeout) {
+    this.borrowTimeout = borrowTimeout;
+  }
+
+  /**
+   * Set how long a connection may be idle before it is pinged on borrow
+   * @param validationInterval Interval in milliseconds
+   */
+  public void setValidationInterval(long validationInterval) {
+    this.validationInterval = validationInterval;
+  }
+
+  /**
+   * Set how many prepared statements each connection keeps cached
+   * Only applies to connections opened after this call
+   * @param statementCacheSize Maximum cached statements per connection
+   */
+  public void setStatementCacheSize(int statementCacheSize) {
+    this.statementCacheSize = statementCacheSize;
+  }
+
+  /**
+   * Set the catalog every borrowed connection should be using
+   * @param catalog Database name
+   */
+  public void setCatalog(String catalog) {
+    this.catalog = catalog;
+  }
+
+  /**
+   * Borrow a connection from the pool, opening a new one if there is room
+   * @return A valid connection that must be given back with @see release
+   * @throws SQLException If no connection could be opened or the borrow timed out
+   */
+  public PooledConnection borrow() throws SQLException {
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(borrowTimeout);
+
+    while (true) {
+      if (closed)
+        throw new SQLException("Connection pool is closed");
+
+      PooledConnection pooled = idleConnections.pollFirst();
+      if (pooled == null)
+        pooled = tryCreate();
+
+      if (pooled == null) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          timeoutCount.incrementAndGet();
+          throw new SQLException("Timed out waiting for a database connection");
+        }
+        // wait in short slices so we notice if a slot frees up from a discarded connection
+        try {
+          pooled = idleConnections.pollFirst(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(50)), TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException E) {
+          Thread.currentThread().interrupt();
+          throw new SQLException("Interrupted while waiting for a database connection");
+        }
+        if (pooled == null)
+          continue;
+      }
+
+      if (!validate(pooled)) {
+        discard(pooled);
+        continue;
+      }
+
+      try {
+        pooled.useCatalog(catalog);
+      }
+      catch (SQLException E) {
+        discard(pooled);
+        throw E;
+      }
+
+      recordWait(System.nanoTime() - start);
+      activeConnections.incrementAndGet();
+      return pooled;
+    }
+  }
+
+  /**
+   * Give a borrowed connection back to the pool
+   * @param pooled Connection previously returned by @see borrow
+   */
+  public void release(PooledConnection pooled) {
+    if (pooled == null)
+      return;
+
+    activeConnections.decrementAndGet();
+    try {
+      // don't hand out a connection with someone else's half finished transaction
+      if (!pooled.getConnection().getAutoCommit()) {
+        pooled.getConnection().rollback();
+        pooled.getConnection().setAutoCommit(true);
+      }
+    }
+    catch (SQLException E) {
+      discard(pooled);
+      return;
+    }
+
+    if (closed) {
+      discard(pooled);
+      return;
+    }
+
+    pooled.touch();
+    idleConnections.offerFirst(pooled);
+  }
+
+  /**
+   * Close all idle connections and stop handing out new ones
+   * Connections still borrowed are closed when they are released
+   */
+  public void close() {
+    closed = true;
+    evictor.shutdownNow();
+    PooledConnection pooled;
+    while ((pooled = idleConnections.pollFirst()) != null)
+      discard(pooled);
+  }
+
+  /**
+   * Open a new connection if the pool has not reached its maximum size
+   * @return New connection, or null if the pool is full
+   * @throws SQLException If the server could not be reached
+   */
+  private PooledConnection tryCreate() throws SQLException {
+    while (true) {
+      int current = totalConnections.get();
+      if (current >= maxSize)
+        return null;
+      if (totalConnections.compareAndSet(current, current + 1))
+        break;
+    }
+
+    try {
+      return new PooledConnection(DriverManager.getConnection(connectionStr, dbUser, dbPass), statementCacheSize);
+    }
+    catch (SQLException E) {
+      totalConnections.decrementAndGet();
+      throw E;
+    }
+  }
+
+  /**
+   * Cheap validation, only pings the server if the connection has been idle for a while
+   * @param pooled Connection to check
+   * @return True if the connection is usable, false otherwise
+   */
+  private boolean validate(PooledConnection pooled) {
+    try {
+      if (pooled.getIdleTime() < validationInterval)
+        return !pooled.getConnection().isClosed();
+      return pooled.getConnection().isValid(2);
+    }
+    catch (SQLException E) {
+      return false;
+    }
+  }
+
+  /**
+   * Close a connection and free its slot in the pool
+   * @param pooled Connection to throw away
+   */
+  private void discard(PooledConnection pooled) {
+    totalConnections.decrementAndGet();
+    pooled.close();
+  }
+
+  /**
+   * Close connections that have been idle too long, keeping at least the minimum size open
+   */
+  private void evictIdle() {
+    // the oldest idle connections are at the back of the deque
+    Iterator<PooledConnection> idleIterator = idleConnections.descendingIterator();
+    while (idleIterator.hasNext() && totalConnections.get() > minSize) {
+      PooledConnection pooled = idleIterator.next();
+      if (pooled.getIdleTime() > idleTimeout && idleConnections.remove(pooled))
+        discard(pooled);
+    }
+
+    try {
+      while (!closed && totalConnections.get() < minSize) {
+        PooledConnection pooled = tryCreate();
+        if (pooled == null)
+          break;
+        pooled.useCatalog(catalog);
+        idleConnections.offerLast(pooled);
+      }
+    }
+    catch (SQLException E) {
+      return; // server is unreachable, try again on the next run
+    }
+  }
+
+  /**
+   * Keep track of how long callers waited for a connection
+   * @param waitNanos Time waited in nanoseconds
+   */
+  private void recordWait(long waitNanos) {
+    waitCount.incrementAndGet();
+    totalWaitTime.addAndGet(waitNanos);
+    long max = maxWaitTime.get();
+    while (waitNanos > max && !maxWaitTime.compareAndSet(max, waitNanos))
+      max = maxWaitTime.get();
+  }
+
+  /**
+   * Get the most connections the pool will open at once
+   * @return Maximum connection count
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Get the number of connections currently borrowed
+   * @return Active connection count
+   */
+  public int getActiveCount() {
+    return activeConnections.get();
+  }
+
+  /**
+   * Get the number of open connections waiting to be borrowed
+   * @return Idle connection count
+   */
+  public int getIdleCount() {
+    return idleConnections.size();
+  }
+
+  /**
+   * Get the number of open connections (active and idle)
+   * @return Total connection count
+   */
+  public int getTotalCount() {
+    return totalConnections.get();
+  }
+
+  /**
+   * Get the number of successful borrows
+   * @return Borrow count
+   */
+  public long getWaitCount() {
+    return waitCount.get();
+  }
+
+  /**
+   * Get the average time spent waiting to borrow a connection
+   * @return Average wait time in milliseconds
+   */
+  public double getAverageWaitTime() {
+    long count = waitCount.get();
+    if (count == 0)
+      return 0;
+    return totalWaitTime.get() / (double)count / 1000000.0;
+  }
+
+  /**
+   * Get the longest time spent waiting to borrow a connection
+   * @return Maximum wait time in milliseconds
+   */
+  public double getMaxWaitTime() {
+    return maxWaitTime.get() / 1000000.0;
+  }
+
+  /**
+   * Get the number of borrows that gave up waiting for a connection
+   * @return Timeout count
+   */
+  public long getTimeoutCount() {
+    return timeoutCount.get();
+  }
+
+  public String toString() {
+    return String.format("active=%d idle=%d total=%d/%d borrows=%d avgWait=%.3fms maxWait=%.3fms timeouts=%d",
+      getActiveCount(), getIdleCount(), getTotalCount(), maxSize, getWaitCount(), getAverageWaitTime(), getMaxWaitTime(), getTimeoutCount());
+  }
+}
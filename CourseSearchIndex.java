@@ -0,0 +1,480 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory search index over the course catalog (course_id, title and dept_name)
+ * Words are kept in a prefix trie for autocomplete, and every field is broken into trigrams
+ * so any substring of three or more characters is found without scanning the catalog
+ * Built from one bulk load of the course table, then kept up to date by @see Database as courses are written
+ * @author Michael Snyder
+ */
+
+public class CourseSearchIndex {
+  // course_id, title, dept_name, credits (the same attributes as Database.getCourseInfo)
+  private static final int ID = 0;
+  private static final int SEARCHED_FIELDS = 3;
+
+  private static final Comparator<RankedCourse> RANKING = new Comparator<RankedCourse>() {
+    public int compare(RankedCourse A, RankedCourse B) {
+      int rank = Integer.compare(A.rank, B.rank);
+      return rank != 0 ? rank : A.course.getString(ID).compareTo(B.course.getString(ID));
+    }
+  };
+
+  private HashMap<String, IndexedCourse> courses;
+  private TrieNode words;
+  private HashMap<String, Set<String>> trigrams;
+  private ReentrantReadWriteLock lock;
+  private boolean loaded;
+  // changes made while the bulk load was being read, applied on top of it
+  private boolean loading;
+  private List<Runnable> changesWhileLoading;
+
+  private static class TrieNode {
+    private HashMap<Character, TrieNode> children = new HashMap<Character, TrieNode>();
+    // courses with a word ending at this node
+    private Set<String> courseIds = new HashSet<String>();
+  }
+
+  // a course with its searched fields already lower cased and split into words
+  private static class IndexedCourse {
+    private TableRow course;
+    private String[] fields;
+    private String[] words;
+
+    private IndexedCourse(TableRow course) {
+      this.course = course;
+      fields = new String[SEARCHED_FIELDS];
+      List<String> all = new ArrayList<String>();
+      for (int field = 0; field < SEARCHED_FIELDS; field++) {
+        String value = course.getString(field);
+        if (value == null)
+          continue;
+        fields[field] = value.toLowerCase(Locale.ROOT);
+        Collections.addAll(all, tokenize(value));
+      }
+      words = all.toArray(new String[0]);
+    }
+
+    /**
+     * Check if a term is in the course, anywhere in a field for three or more characters
+     * and at the start of a word otherwise
+     */
+    private boolean matches(String term) {
+      if (term.length() < 3)
+        return startsWord(term);
+      for (String field : fields)
+        if (field != null && field.contains(term))
+          return true;
+      return false;
+    }
+
+    private boolean startsWord(String term) {
+      for (String word : words)
+        if (word.startsWith(term))
+          return true;
+      return false;
+    }
+  }
+
+  private static class RankedCourse {
+    private TableRow course;
+    private int rank;
+
+    private RankedCourse(TableRow course, int rank) {
+      this.course = course;
+      this.rank = rank;
+    }
+  }
+
+  public CourseSearchIndex() {
+    courses = new HashMap<String, IndexedCourse>();
+    words = new TrieNode();
+    trigrams = new HashMap<String, Set<String>>();
+    lock = new ReentrantReadWriteLock();
+    changesWhileLoading = new ArrayList<Runnable>();
+  }
+
+  /**
+   * Start remembering changes, call before reading the catalog for @see load
+   * so courses written while it is being read aren't lost
+   */
+  public void startLoading() {
+    lock.writeLock().lock();
+    try {
+      loading = true;
+      changesWhileLoading.clear();
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Check if the catalog has been bulk loaded
+   * @return True once @see load has been called
+   */
+  public boolean isLoaded() {
+    lock.readLock().lock();
+    try {
+      return loaded;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Replace the index with a bulk loaded catalog
+   * @param catalog Every course, as (course_id, title, dept_name, credits)
+   */
+  public void load(List<TableRow> catalog) {
+    lock.writeLock().lock();
+    try {
+      courses.clear();
+      words = new TrieNode();
+      trigrams.clear();
+      for (TableRow course : catalog)
+        add(course);
+      loading = false;
+      loaded = true;
+      List<Runnable> changes = new ArrayList<Runnable>(changesWhileLoading);
+      changesWhileLoading.clear();
+      for (Runnable change : changes)
+        change.run();
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Add or replace a course
+   * @param course Course as (course_id, title, dept_name, credits), it is kept so don't reuse it
+   */
+  public void put(final TableRow course) {
+    lock.writeLock().lock();
+    try {
+      if (!loaded)
+        remember(() -> put(course));
+      else {
+        remove(course.getString(ID));
+        add(course);
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Change some attributes of a course
+   * @param courseId Course to change
+   * @param attributes New values by attribute title, a new course_id moves the course
+   */
+  public void update(final String courseId, final Map<String, String> attributes) {
+    lock.writeLock().lock();
+    try {
+      if (!loaded) {
+        remember(() -> update(courseId, attributes));
+        return;
+      }
+      IndexedCourse indexed = courses.get(courseId);
+      if (indexed == null)
+        return;
+      TableRow old = indexed.course;
+      remove(courseId);
+      add(new TableRow(
+        attributes.containsKey("course_id") ? attributes.get("course_id") : old.get(0),
+        attributes.containsKey("title") ? attributes.get("title") : old.get(1),
+        attributes.containsKey("dept_name") ? attributes.get("dept_name") : old.get(2),
+        attributes.containsKey("credits") ? attributes.get("credits") : old.get(3)));
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a course
+   * @param courseId Course to remove
+   */
+  public void delete(final String courseId) {
+    lock.writeLock().lock();
+    try {
+      if (!loaded)
+        remember(() -> delete(courseId));
+      else
+        remove(courseId);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Find courses matching every word of a query
+   * Words of three or more characters match anywhere in a field, shorter words match the start of a word
+   * Exact course_id matches come first, then courses where every word starts a word, then the rest
+   * @param query Words to search for
+   * @param limit Most courses returned
+   * @return Matching courses as (course_id, title, dept_name, credits)
+   */
+  public List<TableRow> search(String query, int limit) {
+    String[] terms = tokenize(query);
+    if (terms.length == 0)
+      return new ArrayList<TableRow>();
+
+    lock.readLock().lock();
+    try {
+      // start from the term with the fewest candidates and check the others against each course
+      Set<String> candidates = null;
+      for (String term : terms) {
+        if (term.length() < 3)
+          continue;
+        Set<String> postings = rarestTrigram(term);
+        if (candidates == null || postings.size() < candidates.size())
+          candidates = postings;
+      }
+      if (candidates == null)
+        candidates = prefixMatches(terms[0], Integer.MAX_VALUE);
+
+      // keep the best few in a heap with the worst on top, a broad query can match most of the catalog
+      String normalized = query.trim().toLowerCase(Locale.ROOT);
+      PriorityQueue<RankedCourse> best = new PriorityQueue<RankedCourse>(Math.max(1, limit), Collections.reverseOrder(RANKING));
+      for (String courseId : candidates) {
+        IndexedCourse indexed = courses.get(courseId);
+        boolean all = true;
+        for (int i = 0; i < terms.length && all; i++)
+          all = indexed.matches(terms[i]);
+        if (!all)
+          continue;
+        best.add(new RankedCourse(indexed.course, rank(indexed, normalized, terms)));
+        if (best.size() > limit)
+          best.poll();
+      }
+
+      List<RankedCourse> ranked = new ArrayList<RankedCourse>(best);
+      Collections.sort(ranked, RANKING);
+      List<TableRow> results = new ArrayList<TableRow>(ranked.size());
+      for (RankedCourse match : ranked)
+        results.add(match.course);
+      return results;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Find courses with a word starting with the prefix, for autocomplete
+   * @param prefix Start of a word
+   * @param limit Most courses returned
+   * @return Matching courses in course_id order
+   */
+  public List<TableRow> autocomplete(String prefix, int limit) {
+    String normalized = prefix.trim().toLowerCase(Locale.ROOT);
+    lock.readLock().lock();
+    try {
+      List<String> courseIds = new ArrayList<String>(prefixMatches(normalized, limit));
+      Collections.sort(courseIds);
+      List<TableRow> results = new ArrayList<TableRow>(courseIds.size());
+      for (String courseId : courseIds)
+        results.add(courses.get(courseId).course);
+      return results;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return courses.size();
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Keep a change for after the bulk load, the write lock must be held
+   * Before any load starts the change is dropped, the load will read it from the server
+   * @param change Change to apply once loaded (the lock is reentrant, so it can take it again)
+   */
+  private void remember(Runnable change) {
+    if (loading)
+      changesWhileLoading.add(change);
+  }
+
+  /**
+   * Add a course to the trie and trigram postings, the write lock must be held
+   * @param course Course to add
+   */
+  private void add(TableRow course) {
+    String courseId = course.getString(ID);
+    if (courseId == null)
+      return;
+    courses.put(courseId, new IndexedCourse(course));
+    for (int field = 0; field < SEARCHED_FIELDS; field++) {
+      String value = course.getString(field);
+      if (value == null)
+        continue;
+      for (String word : tokenize(value))
+        insertWord(word, courseId);
+      // the whole course_id is a word too, so "cs-101" autocompletes
+      if (field == ID)
+        insertWord(value.toLowerCase(Locale.ROOT), courseId);
+      String lower = value.toLowerCase(Locale.ROOT);
+      for (int i = 0; i + 3 <= lower.length(); i++) {
+        String trigram = lower.substring(i, i + 3);
+        Set<String> postings = trigrams.get(trigram);
+        if (postings == null) {
+          postings = new HashSet<String>();
+          trigrams.put(trigram, postings);
+        }
+        postings.add(courseId);
+      }
+    }
+  }
+
+  /**
+   * Remove a course from the trie and trigram postings, the write lock must be held
+   * @param courseId Course to remove
+   */
+  private void remove(String courseId) {
+    IndexedCourse indexed = courses.remove(courseId);
+    if (indexed == null)
+      return;
+    TableRow course = indexed.course;
+    for (int field = 0; field < SEARCHED_FIELDS; field++) {
+      String value = course.getString(field);
+      if (value == null)
+        continue;
+      for (String word : tokenize(value))
+        removeWord(word, courseId);
+      if (field == ID)
+        removeWord(value.toLowerCase(Locale.ROOT), courseId);
+      String lower = value.toLowerCase(Locale.ROOT);
+      for (int i = 0; i + 3 <= lower.length(); i++) {
+        String trigram = lower.substring(i, i + 3);
+        Set<String> postings = trigrams.get(trigram);
+        if (postings != null) {
+          postings.remove(courseId);
+          if (postings.isEmpty())
+            trigrams.remove(trigram);
+        }
+      }
+    }
+  }
+
+  private void insertWord(String word, String courseId) {
+    TrieNode node = words;
+    for (int i = 0; i < word.length(); i++) {
+      TrieNode child = node.children.get(word.charAt(i));
+      if (child == null) {
+        child = new TrieNode();
+        node.children.put(word.charAt(i), child);
+      }
+      node = child;
+    }
+    node.courseIds.add(courseId);
+  }
+
+  private void removeWord(String word, String courseId) {
+    // empty nodes are left in place, they are reused when the course comes back
+    TrieNode node = words;
+    for (int i = 0; i < word.length() && node != null; i++)
+      node = node.children.get(word.charAt(i));
+    if (node != null)
+      node.courseIds.remove(courseId);
+  }
+
+  /**
+   * Get the courses with a word starting with the prefix
+   * @param prefix Lower case prefix
+   * @param limit Stop after this many courses
+   * @return Course ids
+   */
+  private Set<String> prefixMatches(String prefix, int limit) {
+    Set<String> matches = new HashSet<String>();
+    TrieNode node = words;
+    for (int i = 0; i < prefix.length() && node != null; i++)
+      node = node.children.get(prefix.charAt(i));
+    if (node == null)
+      return matches;
+
+    List<TrieNode> pending = new ArrayList<TrieNode>();
+    pending.add(node);
+    while (!pending.isEmpty() && matches.size() < limit) {
+      TrieNode next = pending.remove(pending.size() - 1);
+      for (String courseId : next.courseIds) {
+        matches.add(courseId);
+        if (matches.size() >= limit)
+          break;
+      }
+      pending.addAll(next.children.values());
+    }
+    return matches;
+  }
+
+  /**
+   * Get the postings of the rarest trigram of a term, every course with the term has all of its trigrams
+   * @param term Lower case term of at least three characters
+   * @return Course ids, not to be modified (empty if a trigram is in no course)
+   */
+  private Set<String> rarestTrigram(String term) {
+    Set<String> smallest = null;
+    for (int i = 0; i + 3 <= term.length(); i++) {
+      Set<String> postings = trigrams.get(term.substring(i, i + 3));
+      if (postings == null)
+        return Collections.<String>emptySet();
+      if (smallest == null || postings.size() < smallest.size())
+        smallest = postings;
+    }
+    return smallest;
+  }
+
+  /**
+   * Rank a match, lower is better
+   * @return 0 for an exact course_id, 1 if every term starts a word, 2 otherwise
+   */
+  private static int rank(IndexedCourse indexed, String normalized, String[] terms) {
+    if (normalized.equals(indexed.fields[ID]))
+      return 0;
+    for (String term : terms)
+      if (!indexed.startsWord(term))
+        return 2;
+    return 1;
+  }
+
+  /**
+   * Split text into lower case words of letters and digits
+   * @param text Text to split
+   * @return Words
+   */
+  private static String[] tokenize(String text) {
+    List<String> tokens = new ArrayList<String>();
+    StringBuilder word = new StringBuilder();
+    for (int i = 0; i <= text.length(); i++) {
+      char C = i < text.length() ? text.charAt(i) : ' ';
+      if (Character.isLetterOrDigit(C))
+        word.append(Character.toLowerCase(C));
+      else if (word.length() > 0) {
+        tokens.add(word.toString());
+        word.setLength(0);
+      }
+    }
+    return tokens.toArray(new String[0]);
+  }
+}
@@ -0,0 +1,424 @@
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk loads a CSV file (as written by @see TableExporter) into a table
+ * The file is memory mapped in chunks split at record boundaries, the chunks are parsed in parallel on a fork-join pool
+ * and each chunk's rows are sent with @see Database importTuples on its own pooled connection
+ * Quoted fields may contain line breaks, finding the boundaries takes one sequential pass over the file to track quotes
+ * An empty field is NULL, a quoted empty field ("") is an empty string
+ * @author Michael Snyder
+ */
+
+public class CsvImporter {
+  private static final int MIN_CHUNK_SIZE = 1 << 20;
+  private static final int MAX_CHUNK_SIZE = 16 << 20;
+  // enough to show what went wrong without keeping every bad row of a bad file
+  private static final int MAX_ERRORS_KEPT = 1000;
+
+  private Database database;
+  private String tableName;
+  private String[] columns;
+  private int parallelism;
+  private int batchSize;
+
+  private AtomicLong bytesDone;
+  private AtomicLong rowsImported;
+  private AtomicLong rowsFailed;
+  private List<RowError> errors;
+
+  /**
+   * Outcome of an import
+   */
+  public static class Result {
+    private long rowsImported;
+    private long rowsFailed;
+    private long elapsedMillis;
+    private List<String> errors;
+
+    private Result(long rowsImported, long rowsFailed, long elapsedMillis, List<String> errors) {
+      this.rowsImported = rowsImported;
+      this.rowsFailed = rowsFailed;
+      this.elapsedMillis = elapsedMillis;
+      this.errors = errors;
+    }
+
+    public long getRowsImported() {
+      return rowsImported;
+    }
+
+    public long getRowsFailed() {
+      return rowsFailed;
+    }
+
+    public long getElapsedMillis() {
+      return elapsedMillis;
+    }
+
+    /**
+     * Get a message for each failed row, in file order (at most 1000 are kept)
+     * @return Messages such as "line 12: expected 4 fields, found 3"
+     */
+    public List<String> getErrors() {
+      return errors;
+    }
+  }
+
+  /**
+   * A bad row, numbered within its chunk until every chunk's line count is known
+   */
+  private static class RowError implements Comparable<RowError> {
+    private int chunk;
+    private long line;
+    private String message;
+
+    public RowError(int chunk, long line, String message) {
+      this.chunk = chunk;
+      this.line = line;
+      this.message = message;
+    }
+
+    public int compareTo(RowError other) {
+      return chunk != other.chunk ? Integer.compare(chunk, other.chunk) : Long.compare(line, other.line);
+    }
+  }
+
+  /**
+   * Constructor for an importer into one table
+   * @param database Database to insert into
+   * @param tableName Table to insert into
+   * @param columns Attribute titles of the table in schema order, used to recognize a header line
+   * @param parallelism Number of chunks loaded at once (and connections used)
+   * @param batchSize Rows per importTuples call
+   */
+  public CsvImporter(Database database, String tableName, String[] columns, int parallelism, int batchSize) {
+    this.database = database;
+    this.tableName = tableName;
+    this.columns = columns;
+    this.parallelism = Math.max(1, parallelism);
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * Load every row of a file
+   * @param file CSV file, a header line naming the columns is skipped
+   * @param progressOutput Stream to print progress to every second, may be null
+   * @return Outcome of the import
+   * @throws IOException If the file could not be read
+   */
+  public Result importFile(Path file, PrintStream progressOutput) throws IOException {
+    bytesDone = new AtomicLong();
+    rowsImported = new AtomicLong();
+    rowsFailed = new AtomicLong();
+    errors = Collections.synchronizedList(new ArrayList<RowError>());
+    long startNanos = System.nanoTime();
+
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      List<long[]> chunks = split(channel, size);
+      long[] lineCounts = new long[chunks.size()];
+
+      ForkJoinPool loaders = new ForkJoinPool(parallelism);
+      try {
+        ForkJoinTask<Void> load = loaders.submit(new LoadChunks(channel, chunks, lineCounts, 0, chunks.size()));
+        while (true) {
+          try {
+            load.get(1, TimeUnit.SECONDS);
+            break;
+          }
+          catch (TimeoutException E) {
+            if (progressOutput != null)
+              printProgress(progressOutput, size, startNanos);
+          }
+          catch (InterruptedException E) {
+            Thread.currentThread().interrupt();
+            load.cancel(true);
+            throw new IOException("Import interrupted", E);
+          }
+          catch (ExecutionException E) {
+            if (E.getCause() instanceof IOException)
+              throw (IOException)E.getCause();
+            throw new IOException(E.getCause());
+          }
+        }
+      }
+      finally {
+        loaders.shutdown();
+      }
+
+      if (progressOutput != null)
+        printProgress(progressOutput, size, startNanos);
+      return new Result(rowsImported.get(), rowsFailed.get(), (System.nanoTime() - startNanos) / 1000000, errorMessages(lineCounts));
+    }
+    finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Split the file into chunks that each end just after a line break outside of a quoted field (or at the end of the file)
+   * @param channel Open file
+   * @param size Size of the file
+   * @return {start, end} of each chunk
+   * @throws IOException If the file could not be read
+   */
+  private List<long[]> split(FileChannel channel, long size) throws IOException {
+    long chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, size / (parallelism * 8L)));
+    List<long[]> chunks = new ArrayList<long[]>();
+    ByteBuffer scan = ByteBuffer.allocate(1 << 16);
+    // UTF-8 never uses the bytes of '"' or '\n' inside another character, so the bytes can be scanned as they are
+    boolean quoted = false;
+    long start = 0;
+    long position = 0;
+    while (position < size) {
+      scan.clear();
+      int read = channel.read(scan, position);
+      if (read <= 0)
+        break;
+      for (int i = 0; i < read; i++) {
+        byte B = scan.get(i);
+        // an escaped quote ("") flips it twice
+        if (B == '"')
+          quoted = !quoted;
+        else if (B == '\n' && !quoted && position + i + 1 - start >= chunkSize) {
+          chunks.add(new long[] { start, position + i + 1 });
+          start = position + i + 1;
+        }
+      }
+      position += read;
+    }
+    if (start < size)
+      chunks.add(new long[] { start, size });
+    return chunks;
+  }
+
+  /**
+   * Loads a range of chunks, splitting it in half until it is a single chunk
+   */
+  private class LoadChunks extends RecursiveAction {
+    private static final long serialVersionUID = 8231475093218713452L;
+
+    private FileChannel channel;
+    private List<long[]> chunks;
+    private long[] lineCounts;
+    private int from;
+    private int to;
+
+    public LoadChunks(FileChannel channel, List<long[]> chunks, long[] lineCounts, int from, int to) {
+      this.channel = channel;
+      this.chunks = chunks;
+      this.lineCounts = lineCounts;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from > 1) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new LoadChunks(channel, chunks, lineCounts, from, middle), new LoadChunks(channel, chunks, lineCounts, middle, to));
+        return;
+      }
+      if (to == from)
+        return;
+
+      try {
+        long[] chunk = chunks.get(from);
+        lineCounts[from] = loadChunk(from, channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]));
+        bytesDone.addAndGet(chunk[1] - chunk[0]);
+      }
+      catch (IOException E) {
+        completeExceptionally(E);
+      }
+    }
+  }
+
+  /**
+   * Parse one chunk and insert its rows in batches
+   * @param chunkIndex Index of the chunk, used to number errors
+   * @param mapped The chunk's bytes
+   * @return Number of lines in the chunk
+   */
+  private long loadChunk(int chunkIndex, ByteBuffer mapped) {
+    CharBuffer text = StandardCharsets.UTF_8.decode(mapped);
+    List<String[]> tuples = new ArrayList<String[]>(batchSize);
+    List<Long> tupleLines = new ArrayList<Long>(batchSize);
+    long line = 0;
+    int recordStart = 0;
+    int length = text.limit();
+    while (recordStart < length) {
+      // a record ends at the first line break outside of a quoted field
+      int recordEnd = recordStart;
+      int lineBreaks = 0;
+      boolean quoted = false;
+      while (recordEnd < length) {
+        char C = text.get(recordEnd);
+        if (C == '"')
+          quoted = !quoted;
+        else if (C == '\n') {
+          if (!quoted)
+            break;
+          lineBreaks++;
+        }
+        recordEnd++;
+      }
+      int contentEnd = recordEnd > recordStart && text.get(recordEnd - 1) == '\r' ? recordEnd - 1 : recordEnd;
+      long recordLine = line + 1;
+      line += lineBreaks + 1;
+
+      List<String> fields = contentEnd > recordStart ? parseRecord(text, recordStart, contentEnd) : null;
+      // blank lines and the header line are skipped
+      boolean skip = contentEnd == recordStart || (fields != null && chunkIndex == 0 && recordLine == 1 && isHeader(fields));
+      if (!skip) {
+        if (fields == null)
+          fail(chunkIndex, recordLine, "unterminated quoted field");
+        else if (fields.size() != columns.length)
+          fail(chunkIndex, recordLine, String.format("expected %d fields, found %d", columns.length, fields.size()));
+        else {
+          tuples.add(fields.toArray(new String[0]));
+          tupleLines.add(recordLine);
+          if (tuples.size() == batchSize)
+            insert(chunkIndex, tuples, tupleLines);
+        }
+      }
+      recordStart = recordEnd + 1;
+    }
+    insert(chunkIndex, tuples, tupleLines);
+    return line;
+  }
+
+  /**
+   * Insert a batch of rows, recording the ones the database rejected and why
+   */
+  private void insert(int chunkIndex, List<String[]> tuples, List<Long> tupleLines) {
+    if (tuples.isEmpty())
+      return;
+    SQLException[] rowErrors = new SQLException[tuples.size()];
+    boolean[] results = database.importTuples(tableName, tuples, rowErrors);
+    for (int i = 0; i < results.length; i++) {
+      if (results[i])
+        rowsImported.incrementAndGet();
+      else if (rowErrors[i] == null)
+        fail(chunkIndex, tupleLines.get(i), "rejected by the database");
+      else
+        fail(chunkIndex, tupleLines.get(i), String.format("rejected by the database (error %d): %s", rowErrors[i].getErrorCode(), rowErrors[i].getMessage()));
+    }
+    tuples.clear();
+    tupleLines.clear();
+  }
+
+  private void fail(int chunkIndex, long line, String message) {
+    rowsFailed.incrementAndGet();
+    if (errors.size() < MAX_ERRORS_KEPT)
+      errors.add(new RowError(chunkIndex, line, message));
+  }
+
+  /**
+   * Split a CSV record into fields, an empty unquoted field is NULL
+   * @param text Decoded chunk
+   * @param start First character of the record
+   * @param end One past the last character of the record (not counting the line break)
+   * @return Fields (null for NULL), or null if a quoted field is never closed
+   */
+  private static List<String> parseRecord(CharBuffer text, int start, int end) {
+    List<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    int i = start;
+    while (true) {
+      field.setLength(0);
+      if (i < end && text.get(i) == '"') {
+        i++;
+        boolean closed = false;
+        while (i < end) {
+          char C = text.get(i++);
+          if (C == '"') {
+            // "" is an escaped quote
+            if (i < end && text.get(i) == '"') {
+              field.append('"');
+              i++;
+            }
+            else {
+              closed = true;
+              break;
+            }
+          }
+          else
+            field.append(C);
+        }
+        if (!closed)
+          return null;
+        fields.add(field.toString());
+        // skip anything between the closing quote and the comma
+        while (i < end && text.get(i) != ',')
+          i++;
+      }
+      else {
+        while (i < end && text.get(i) != ',')
+          field.append(text.get(i++));
+        fields.add(field.length() == 0 ? null : field.toString());
+      }
+
+      if (i >= end)
+        return fields;
+      i++; // the comma
+      if (i == end) {
+        fields.add(null);
+        return fields;
+      }
+    }
+  }
+
+  private boolean isHeader(List<String> fields) {
+    if (fields.size() != columns.length)
+      return false;
+    for (int i = 0; i < columns.length; i++)
+      if (!columns[i].equalsIgnoreCase(fields.get(i)))
+        return false;
+    return true;
+  }
+
+  /**
+   * Number the errors by line in the file now that every chunk's line count is known
+   * @param lineCounts Lines in each chunk
+   * @return Messages in file order
+   */
+  private List<String> errorMessages(long[] lineCounts) {
+    long[] firstLine = new long[lineCounts.length];
+    for (int i = 1; i < lineCounts.length; i++)
+      firstLine[i] = firstLine[i - 1] + lineCounts[i - 1];
+
+    List<RowError> sorted = new ArrayList<RowError>(errors);
+    Collections.sort(sorted);
+    List<String> messages = new ArrayList<String>(sorted.size());
+    for (RowError error : sorted)
+      messages.add(String.format("line %d: %s", firstLine[error.chunk] + error.line, error.message));
+    return messages;
+  }
+
+  private void printProgress(PrintStream progressOutput, long size, long startNanos) {
+    double seconds = Math.max(0.001, (System.nanoTime() - startNanos) / 1e9);
+    long imported = rowsImported.get();
+    progressOutput.println(String.format("%3d%% | %d rows imported, %d failed | %.0f rows/s",
+      size == 0 ? 100 : (int)(bytesDone.get() * 100 / size), imported, rowsFailed.get(), imported / seconds));
+  }
+}
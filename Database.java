@@ -1,24 +1,114 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 /**
  * Database class to handle connections and queries
  * @author Michael Snyder
  */
 public class Database {
-  private Connection dbConnection;
-  private Exception lastError;
-  private List<User> userList;
-  private User currentUser;
-  private Statement queryStatement;
-  private ResultSet queryResult;
+  // quality points of graded courses, +/- don't change the points and anything below D (withdrawn or failed!) is 0
+  private static final String QUALITY_POINTS_SQL = "sum(case left(`grade`, 1) when 'A' then 4.0 when 'B' then 3.0 when 'C' then 2.0 when 'D' then 1.0 else 0.0 end * `credits`)";
+  private static final RowMapper<Double> GPA_MAPPER = new RowMapper<Double>() {
+    public Double mapRow(ResultSet result) throws SQLException {
+      int creditHours = result.getInt(2);
+      if (creditHours == 0) // we don't want to divide by zero!
+        return 0.0;
+      return result.getDouble(1) / creditHours;
+    }
+  };
+  // reference data that rarely changes, lookups on these are cached until written to
+  private static final Set<String> CACHED_TABLES = new HashSet<String>(Arrays.asList("department", "course", "section"));
+  // reference data kept in the local snapshot, readable at startup and while the server is down
+  private static final List<String> SNAPSHOT_TABLES = Arrays.asList("department", "course", "section", "time_slot");
+  private static final long DEFAULT_SNAPSHOT_REFRESH_SECONDS = 60;
+  // every attribute of the tables that can be exported (or kept in the snapshot), in schema order
+  private static final HashMap<String, String[]> TABLE_COLUMNS = new HashMap<String, String[]>();
+  static {
+    TABLE_COLUMNS.put("department", new String[] { "dept_name", "building", "budget" });
+    TABLE_COLUMNS.put("course", new String[] { "course_id", "title", "dept_name", "credits" });
+    TABLE_COLUMNS.put("section", new String[] { "course_id", "sec_id", "semester", "year", "building", "room_number", "time_slot_id" });
+    TABLE_COLUMNS.put("takes", new String[] { "ID", "course_id", "sec_id", "semester", "year", "grade" });
+    TABLE_COLUMNS.put("time_slot", new String[] { "time_slot_id", "day", "start_hr", "start_min", "end_hr", "end_min" });
+  }
+  // MySQL error codes
+  private static final int UNKNOWN_COLUMN = 1054;
+  private static final int NO_SUCH_TABLE = 1146;
+  // first column as an int, for IDs and counts
+  private static final RowMapper<Integer> ID_MAPPER = new RowMapper<Integer>() {
+    public Integer mapRow(ResultSet result) throws SQLException {
+      return result.getInt(1);
+    }
+  };
+  // term that students register for
+  private static final String CURRENT_SEMESTER = "Spring";
+  private static final String CURRENT_YEAR = "2016";
+  private static final Pattern SPECIAL_CHARACTERS = Pattern.compile("`|'|\"|;");
+  private ConnectionPool connectionPool;
+  private volatile Exception lastError;
+  private UserRegistry userRegistry;
+  private volatile User currentUser;
+  // sessions read these settings through the database they were opened from, so changes reach sessions already open
+  private Database root;
+  private volatile int batchSize = 500;
+  private volatile boolean gpaSummaryEnabled;
+  private QueryCache<List<TableRow>> queryCache;
+  private boolean isSession;
+  private ExecutorService asyncExecutor;
+  private RegistrationEngine registrationEngine;
+  private Waitlist waitlist;
+  private DatabaseStats stats;
+  private SlowQueryLog slowQueryLog;
+  private volatile String currentAction;
+  // exports are only written inside this directory, sessions may be typing file names for another host
+  private volatile Path exportDirectory;
+  private CourseSearchIndex courseIndex;
+  private TimeSlotIndex timeSlots;
+  private ReferenceSnapshot snapshot;
+  private ScheduledExecutorService snapshotRefresher;
+  private ScheduledFuture<?> periodicRefresh;
+  private AtomicBoolean refreshPending;
+  // set while the server can't be reached and reads come from the snapshot
+  private AtomicBoolean offline;
 
   /**
    * Constructor to intialize the connection to the database
@@ -29,20 +119,232 @@ public class Database {
    * @throws DatabaseException If the server information is bad or server is offline or wrong credentials
    */
   public Database(String dbAddress, int dbPort, String dbUser, String dbPass) throws DatabaseException {
-    if (dbAddress != null && dbPort > 0 && dbUser != null && dbPass != null) {
-      String connectionStr = String.format("jdbc:mysql://%s:%d", dbAddress, dbPort);
-      try {
-        dbConnection = DriverManager.getConnection(connectionStr, dbUser, dbPass);
-      }
-      catch (SQLException E) {
+    this(dbAddress, dbPort, dbUser, dbPass, 1, 8);
+  }
+
+  /**
+   * Constructor to intialize the connection pool to the database
+   * @param dbAddress Address of the SQL Server
+   * @param dbPort Port of the SQL Server
+   * @param dbUser Username to authenticate with
+   * @param dbPass Password to authenticate with
+   * @param minConnections Number of idle connections to keep open
+   * @param maxConnections Maximum number of connections open at once
+   * @throws DatabaseException If the server information is bad or server is offline or wrong credentials
+   */
+  public Database(String dbAddress, int dbPort, String dbUser, String dbPass, int minConnections, int maxConnections) throws DatabaseException {
+    this(dbAddress, dbPort, dbUser, dbPass, minConnections, maxConnections, null);
+  }
+
+  /**
+   * Constructor to intialize the connection pool to the database, with a local snapshot of the reference tables
+   * @param dbAddress Address of the SQL Server
+   * @param dbPort Port of the SQL Server
+   * @param dbUser Username to authenticate with
+   * @param dbPass Password to authenticate with
+   * @param minConnections Number of idle connections to keep open
+   * @param maxConnections Maximum number of connections open at once
+   * @param snapshotFile File to keep the snapshot in, null for no snapshot
+   * @throws DatabaseException If the server information is bad, or the server is offline and there is no snapshot to read
+   */
+  public Database(String dbAddress, int dbPort, String dbUser, String dbPass, int minConnections, int maxConnections, Path snapshotFile) throws DatabaseException {
+    this(mysqlConnectionString(dbAddress, dbPort), dbUser, dbPass, minConnections, maxConnections, snapshotFile);
+  }
+
+  /**
+   * Constructor to intialize the connection pool to any JDBC url (such as a stand-in driver for benchmarks)
+   * @param connectionStr JDBC url of the SQL server
+   * @param dbUser Username to authenticate with
+   * @param dbPass Password to authenticate with
+   * @param minConnections Number of idle connections to keep open
+   * @param maxConnections Maximum number of connections open at once
+   * @throws DatabaseException If the server information is bad or server is offline or wrong credentials
+   */
+  public Database(String connectionStr, String dbUser, String dbPass, int minConnections, int maxConnections) throws DatabaseException {
+    this(connectionStr, dbUser, dbPass, minConnections, maxConnections, null);
+  }
+
+  /**
+   * Constructor to intialize the connection pool to any JDBC url, with a local snapshot of the reference tables
+   * If the server can't be reached but there is a snapshot, the database starts offline and reads the snapshot
+   * @param connectionStr JDBC url of the SQL server
+   * @param dbUser Username to authenticate with
+   * @param dbPass Password to authenticate with
+   * @param minConnections Number of idle connections to keep open
+   * @param maxConnections Maximum number of connections open at once
+   * @param snapshotFile File to keep the snapshot in, null for no snapshot
+   * @throws DatabaseException If the server information is bad, or the server is offline and there is no snapshot to read
+   */
+  public Database(String connectionStr, String dbUser, String dbPass, int minConnections, int maxConnections, Path snapshotFile) throws DatabaseException {
+    this(connectionStr, dbUser, dbPass, minConnections, maxConnections, snapshotFile, true);
+  }
+
+  /**
+   * Create a database that hasn't connected yet, so a prompt can be shown without waiting on the driver and server
+   * Nothing is checked until @see connect is called (on a background thread, say), which has to succeed before it is used
+   * @param dbAddress Address of the SQL Server
+   * @param dbPort Port of the SQL Server
+   * @param dbUser Username to authenticate with
+   * @param dbPass Password to authenticate with
+   * @param minConnections Number of idle connections to keep open
+   * @param maxConnections Maximum number of connections open at once
+   * @param snapshotFile File to keep the snapshot in, null for no snapshot
+   * @return Database that hasn't connected
+   * @throws DatabaseException If the server information is bad
+   */
+  public static Database connectLater(String dbAddress, int dbPort, String dbUser, String dbPass, int minConnections, int maxConnections, Path snapshotFile) throws DatabaseException {
+    return new Database(mysqlConnectionString(dbAddress, dbPort), dbUser, dbPass, minConnections, maxConnections, snapshotFile, false);
+  }
+
+  /**
+   * Constructor that sets everything up, connecting now or leaving it for @see connect
+   * @param connectionStr JDBC url of the SQL server
+   * @param dbUser Username to authenticate with
+   * @param dbPass Password to authenticate with
+   * @param minConnections Number of idle connections to keep open
+   * @param maxConnections Maximum number of connections open at once
+   * @param snapshotFile File to keep the snapshot in, null for no snapshot
+   * @param connectNow True to open the first connection before returning
+   * @throws DatabaseException If the server information is bad, or connecting now failed with no snapshot to read
+   */
+  private Database(String connectionStr, String dbUser, String dbPass, int minConnections, int maxConnections, Path snapshotFile, boolean connectNow) throws DatabaseException {
+    if (connectionStr != null && dbUser != null && dbPass != null && minConnections >= 0 && maxConnections >= Math.max(1, minConnections)) {
+      connectionPool = new ConnectionPool(connectionStr, dbUser, dbPass, minConnections, maxConnections);
+      root = this;
+      offline = new AtomicBoolean();
+      if (snapshotFile != null)
+        snapshot = new ReferenceSnapshot(snapshotFile);
+      userRegistry = new UserRegistry(1024);
+      queryCache = new QueryCache<List<TableRow>>(256, 300000);
+      asyncExecutor = newAsyncExecutor(maxConnections);
+      // statements the registration engine and waitlists run themselves are recorded like ours
+      registrationEngine = new RegistrationEngine(connectionPool, this::recordCall);
+      waitlist = new Waitlist(connectionPool, this::recordCall, registrationEngine);
+      registrationEngine.setWaitlist(waitlist);
+      // registered with JMX when connected, the platform MBean server is slow to start
+      stats = new DatabaseStats(connectionPool, queryCache);
+      // off until a threshold is set
+      slowQueryLog = new SlowQueryLog(new File("slow-query.log"), 10 * 1024 * 1024, 5);
+      exportDirectory = Paths.get("exports");
+      // loaded on the first search
+      courseIndex = new CourseSearchIndex();
+      // loaded on the first registration, then kept up to date as students enroll
+      timeSlots = new TimeSlotIndex(4096, 60000);
+      final TimeSlotIndex promotedSlots = timeSlots;
+      waitlist.setPromotionListener((studentID, section) -> {
+        if (section[2].equals(CURRENT_SEMESTER) && section[3].equals(CURRENT_YEAR))
+          promotedSlots.enrolled(studentID, section[0], section[1]);
+      });
+      // students who registered for an overlapping section while they waited are passed over
+      waitlist.setPromotionCheck((studentID, section) -> !section[2].equals(CURRENT_SEMESTER) || !section[3].equals(CURRENT_YEAR)
+        || findConflict(studentID, section[0], section[1]) == null);
+      refreshPending = new AtomicBoolean();
+      if (snapshot != null)
+        startSnapshotRefresh();
+
+      // open the first connection now so bad information is reported right away
+      if (connectNow && !connect()) {
+        close();
         throw new DatabaseException("Invalid database address/port or credentials entered.");
       }
-      userList = new ArrayList<User>();
     }
     else
       throw new DatabaseException("Bad database information entered.");
   }
 
+  /**
+   * Open the first connection, which loads the driver and does the server handshake
+   * If the server can't be reached but there is a snapshot, the database goes offline and reads the snapshot
+   * Called by the constructors, or once by whoever used @see connectLater
+   * @return True if connected (or offline with a snapshot to read), false if the server can't be used
+   */
+  public boolean connect() {
+    if (snapshot != null && !snapshot.isAvailable())
+      snapshot.open();
+    try {
+      connectionPool.release(connectionPool.borrow());
+    }
+    catch (SQLException E) {
+      lastError = E;
+      if (snapshot == null || !snapshot.isAvailable())
+        return false;
+      // the snapshot can still be browsed, the refresh will notice when the server is back
+      offline.set(true);
+    }
+    stats.register();
+    return true;
+  }
+
+  /**
+   * Constructor for a session that shares the pool, users and caches of another database
+   * but keeps its own logged in user and query state
+   * @param shared Database to share resources with
+   */
+  private Database(Database shared) {
+    connectionPool = shared.connectionPool;
+    userRegistry = shared.userRegistry;
+    queryCache = shared.queryCache;
+    asyncExecutor = shared.asyncExecutor;
+    registrationEngine = shared.registrationEngine;
+    waitlist = shared.waitlist;
+    stats = shared.stats;
+    slowQueryLog = shared.slowQueryLog;
+    exportDirectory = shared.exportDirectory;
+    courseIndex = shared.courseIndex;
+    timeSlots = shared.timeSlots;
+    snapshot = shared.snapshot;
+    snapshotRefresher = shared.snapshotRefresher;
+    refreshPending = shared.refreshPending;
+    offline = shared.offline;
+    root = shared.root;
+    isSession = true;
+  }
+
+  /**
+   * Create the bounded executor the async lookups run on
+   * There's no point running more lookups at once than there are connections,
+   * and once the queue is full the caller runs the lookup itself
+   * @param maxConnections Maximum number of connections in the pool
+   * @return New executor
+   */
+  private static ExecutorService newAsyncExecutor(int maxConnections) {
+    final AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConnections, maxConnections, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(1024), new ThreadFactory() {
+        public Thread newThread(Runnable R) {
+          Thread asyncThread = new Thread(R, "database-async-" + threadCount.incrementAndGet());
+          asyncThread.setDaemon(true);
+          return asyncThread;
+        }
+      }, new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Open a new session on this database for another user to log in to
+   * Closing the session does not close the shared connections
+   * @return New session
+   */
+  public Database openSession() {
+    return new Database(this);
+  }
+
+  /**
+   * Build the JDBC url of a MySQL server
+   * @param dbAddress Address of the SQL Server
+   * @param dbPort Port of the SQL Server
+   * @return JDBC url, or null if the address or port are bad
+   */
+  private static String mysqlConnectionString(String dbAddress, int dbPort) {
+    if (dbAddress == null || dbPort <= 0)
+      return null;
+    // server side prepared statements so the cached statements are only parsed once,
+    // and let the driver rewrite batched inserts into multi-row inserts
+    // years come back as numbers (not dates) so they can be bound back as keys when paging
+    return String.format("jdbc:mysql://%s:%d/?useServerPrepStmts=true&rewriteBatchedStatements=true&yearIsDateType=false", dbAddress, dbPort);
+  }
+
   /**
    * Get the last error the Database class encounterd
    * @return Last exception, or null if no exception have occurred
@@ -52,39 +354,103 @@ public class Database {
   }
 
   /**
-   * Close the potentially opened ResultSet or Statement
+   * Get the cache of department/course/section lookups
+   * @return The query cache (for hit/miss/eviction statistics)
    */
-  private void closeQueries() {
-    try {
-      queryResult.close();
-      queryStatement.close();
-    }
-    catch (SQLException | NullPointerException E) {
-      lastError = E;
-    }
+  public QueryCache<List<TableRow>> getQueryCache() {
+    return queryCache;
+  }
+
+  /**
+   * Get the engine handling section registrations
+   * @return The registration engine (to configure section capacity)
+   */
+  public RegistrationEngine getRegistrationEngine() {
+    return registrationEngine;
+  }
+
+  /**
+   * Get the connection pool backing this database
+   * @return The connection pool (for active/idle/wait statistics)
+   */
+  public ConnectionPool getConnectionPool() {
+    return connectionPool;
+  }
+
+  /**
+   * Get the per operation latency, row and error counts (shared by every session)
+   * @return Statistics of this database
+   */
+  public DatabaseStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Get the slow query log (shared by every session), it is off until a threshold is set
+   * @return Slow query log of this database
+   */
+  public SlowQueryLog getSlowQueryLog() {
+    return slowQueryLog;
+  }
+
+  /**
+   * Name the menu action this session is running, so slow queries can be traced back to it
+   * @param action Action such as "Retrieve section", null once it is done
+   */
+  public void setCurrentAction(String action) {
+    currentAction = action;
+  }
+
+  /**
+   * Record a finished call in the statistics and the slow query log
+   * @param sql SQL template that was run
+   * @param parameters Values bound to the template, may be null
+   * @param startNanos System.nanoTime() from before the call
+   * @param rows Rows returned or affected
+   * @param failed True if the call threw
+   */
+  private void recordCall(String sql, String[] parameters, long startNanos, long rows, boolean failed) {
+    long elapsedNanos = System.nanoTime() - startNanos;
+    stats.record(sql, elapsedNanos, rows, failed);
+    slowQueryLog.offer(sql, parameters, rows, elapsedNanos, failed, currentAction);
   }
 
   /**
-   * Execute the specified query and save results
-   * @param query Valid SQL query string
-   * @return True if the query was executed succcessfully, false otherwise
+   * Execute the specified query and map every row of the result
+   * The connection, and the result, are only held for the duration of the call
+   * @param query Valid SQL query string with '?' placeholders
+   * @param mapper Converts each row, reading columns by index
+   * @param parameters Values bound to the placeholders in order
+   * @return List of mapped rows, or null if the query failed
    */
-  private boolean executeQuery(String query) {
+  private <T> List<T> executeQuery(String query, RowMapper<T> mapper, String... parameters) {
+    PooledConnection queryConnection = null;
+    long startNanos = System.nanoTime();
     try {
-      if (!dbConnection.isClosed()) {
-        //System.out.println("***" + query + "***");
-        queryStatement = dbConnection.createStatement();
-        queryResult = queryStatement.executeQuery(query);
-        return true;
+      queryConnection = connectionPool.borrow();
+      // the statement stays open in the connection's statement cache
+      PreparedStatement queryStatement = queryConnection.prepare(query);
+      bindParameters(queryStatement, parameters);
+      ResultSet queryResult = queryStatement.executeQuery();
+      try {
+        List<T> rows = new ArrayList<T>();
+        while (queryResult.next())
+          rows.add(mapper.mapRow(queryResult));
+        recordCall(query, parameters, startNanos, rows.size(), false);
+        return rows;
+      }
+      finally {
+        queryResult.close();
       }
     }
     catch (SQLException E) {
-      //System.out.println("***" + E.getMessage() + "***");
-      closeQueries();
-      return false;
+      lastError = E;
+      recordCall(query, parameters, startNanos, 0, true);
+      return null;
+    }
+    finally {
+      connectionPool.release(queryConnection);
     }
-
-    return false;
   }
 
   /**
@@ -93,68 +459,169 @@ public class Database {
    * @return True if the command was executed succcessfully, false otherwise
    */
   private boolean executeCommand(String command) {
+    PooledConnection commandConnection = null;
+    long startNanos = System.nanoTime();
     try {
-      if (!dbConnection.isClosed()) {
-        Statement commandStatement = dbConnection.createStatement();
+      commandConnection = connectionPool.borrow();
+      Statement commandStatement = commandConnection.getConnection().createStatement();
+      try {
         commandStatement.execute(command);
+        recordCall(command, null, startNanos, Math.max(0, commandStatement.getUpdateCount()), false);
+      }
+      finally {
         commandStatement.close();
-        return true;
       }
+      return true;
     }
     catch (SQLException E) {
-      //System.out.println(E.getMessage());
-      closeQueries();
+      lastError = E;
+      recordCall(command, null, startNanos, 0, true);
       return false;
     }
-
-    return false;
+    finally {
+      connectionPool.release(commandConnection);
+    }
   }
 
   /**
-   * Get the specified attribute of the latest query
-   * @param attributeTitle Attribute to get
-   * @return List of attributes from query, empty list if there are no open results
+   * Execute a parameterized command with no result using the connection's cached prepared statement
+   * @param command Valid sql command string with '?' placeholders
+   * @param parameters Values bound to the placeholders in order (null binds a SQL NULL)
+   * @return True if the command was executed succcessfully, false otherwise
    */
-  private List<String> retrieveAttribute(String attributeTitle) {
-    ArrayList<String> attributes = new ArrayList<String>();
+  private boolean executePrepared(String command, String... parameters) {
+    PooledConnection commandConnection = null;
+    long startNanos = System.nanoTime();
     try {
-      while (queryResult.next()){
-          attributes.add(queryResult.getString(attributeTitle));
-      }
-        closeQueries();
+      commandConnection = connectionPool.borrow();
+      PreparedStatement commandStatement = commandConnection.prepare(command);
+      bindParameters(commandStatement, parameters);
+      int updateCount = commandStatement.executeUpdate();
+      recordCall(command, parameters, startNanos, updateCount, false);
+      return true;
     }
-
     catch (SQLException E) {
-      closeQueries();
       lastError = E;
+      recordCall(command, parameters, startNanos, 0, true);
+      return false;
+    }
+    finally {
+      connectionPool.release(commandConnection);
     }
+  }
 
-    return attributes;
+  /**
+   * Execute parameterized commands in batches on one connection, committing once per batch
+   * Consecutive rows with the same command are sent together, a failed batch is rolled back
+   * and retried one row at a time so each row gets its own result
+   * @param commands Command for each row (null if the row is invalid)
+   * @param parameters Parameters for each row
+   * @return Whether each row succeeded
+   */
+  private boolean[] executeBatch(String[] commands, String[][] parameters) {
+    return executeBatch(commands, parameters, null);
   }
 
   /**
-   * Get multiple attributes from the latest query
-   * @param attributeTitles Attributes to get
-   * @return List of attributes from query, empty list if there are no open results
+   * Execute parameterized commands in batches, keeping the reason each failed row was rejected
+   * @param commands Command for each row (null if the row is invalid)
+   * @param parameters Parameters for each row
+   * @param rowErrors Filled in with the exception of each row the server rejected, may be null
+   * @return Whether each row succeeded
    */
-  private List<String> retrieveAttributes(String... attributeTitles) {
-    List<String> attributeList = new ArrayList<String>();
+  private boolean[] executeBatch(String[] commands, String[][] parameters, SQLException[] rowErrors) {
+    boolean[] results = new boolean[commands.length];
+    PooledConnection batchConnection = null;
     try {
-      while (queryResult.next()) {
-        StringBuilder sb = new StringBuilder();
-        for (String title : attributeTitles)
-          sb.append(queryResult.getString(title) + ":");
-        String attributes = sb.toString();
-        attributeList.add(attributes.substring(0, attributes.length() - 1));
+      batchConnection = connectionPool.borrow();
+      batchConnection.getConnection().setAutoCommit(false);
+      int start = 0;
+      while (start < commands.length) {
+        if (commands[start] == null) {
+          start++;
+          continue;
+        }
+        int end = start + 1;
+        while (end < commands.length && end - start < root.batchSize && commands[start].equals(commands[end]))
+          end++;
+        executeBatchChunk(batchConnection, commands[start], parameters, start, end, results, rowErrors);
+        start = end;
       }
-      closeQueries();
     }
     catch (SQLException E) {
       lastError = E;
-      closeQueries();
     }
+    finally {
+      connectionPool.release(batchConnection);
+    }
+    return results;
+  }
+
+  /**
+   * Send one batch of rows sharing the same command
+   * @param batchConnection Connection with auto commit turned off
+   * @param command Parameterized command
+   * @param parameters Parameters for every row
+   * @param start First row of the batch
+   * @param end One past the last row of the batch
+   * @param results Per row results to fill in
+   * @param rowErrors Per row exceptions to fill in, may be null
+   * @throws SQLException If the connection itself failed
+   */
+  private void executeBatchChunk(PooledConnection batchConnection, String command, String[][] parameters, int start, int end, boolean[] results, SQLException[] rowErrors) throws SQLException {
+    Connection connection = batchConnection.getConnection();
+    PreparedStatement batchStatement = batchConnection.prepare(command);
+    long startNanos = System.nanoTime();
+    try {
+      for (int i = start; i < end; i++) {
+        bindParameters(batchStatement, parameters[i]);
+        batchStatement.addBatch();
+      }
+      batchStatement.executeBatch();
+      connection.commit();
+      for (int i = start; i < end; i++)
+        results[i] = true;
+      recordCall(command, parameters[start], startNanos, end - start, false);
+    }
+    catch (BatchUpdateException E) {
+      lastError = E;
+      recordCall(command, parameters[start], startNanos, 0, true);
+      batchStatement.clearBatch();
+      connection.rollback();
+      // find out exactly which rows are bad
+      for (int i = start; i < end; i++) {
+        long rowStartNanos = System.nanoTime();
+        try {
+          bindParameters(batchStatement, parameters[i]);
+          batchStatement.executeUpdate();
+          connection.commit();
+          results[i] = true;
+          recordCall(command, parameters[i], rowStartNanos, 1, false);
+        }
+        catch (SQLException F) {
+          lastError = F;
+          if (rowErrors != null)
+            rowErrors[i] = F;
+          recordCall(command, parameters[i], rowStartNanos, 0, true);
+          connection.rollback();
+        }
+      }
+    }
+  }
 
-    return attributeList;
+  /**
+   * Bind string parameters to a prepared statement
+   * @param statement Statement to bind to
+   * @param parameters Values bound to the placeholders in order (null binds a SQL NULL)
+   * @throws SQLException If a parameter could not be bound
+   */
+  private void bindParameters(PreparedStatement statement, String... parameters) throws SQLException {
+    for (int i = 0; i < parameters.length; i++) {
+      if (parameters[i] == null)
+        statement.setNull(i + 1, Types.VARCHAR);
+      else
+        statement.setString(i + 1, parameters[i]);
+    }
   }
 
   /**
@@ -166,25 +633,40 @@ public class Database {
     if (database == null || database.length() < 1)
       return false;
 
+    PooledConnection catalogConnection = null;
     try {
-      dbConnection.setCatalog(database);
+      catalogConnection = connectionPool.borrow();
+      catalogConnection.useCatalog(database);
+      // every connection borrowed from now on will switch to this catalog
+      connectionPool.setCatalog(database);
+      refreshSnapshotSoon();
       return true;
     }
     catch (SQLException E) {
+      lastError = E;
+      // can't check it while offline, connections opened once the server is back will use it
+      if (offline.get())
+        connectionPool.setCatalog(database);
       return false;
     }
+    finally {
+      connectionPool.release(catalogConnection);
+    }
   }
 
   /**
-   * Close the SQL connection
+   * Close the SQL connections (does nothing if this is a session)
    */
   public void close() {
-    try {
-      closeQueries();
-      dbConnection.close();
-    }
-    catch (SQLException E) {
-      return;
+    if (!isSession) {
+      // promotions still waiting to be committed need the pool
+      waitlist.close();
+      asyncExecutor.shutdown();
+      if (snapshotRefresher != null)
+        snapshotRefresher.shutdownNow();
+      connectionPool.close();
+      stats.unregister();
+      slowQueryLog.close();
     }
   }
 
@@ -198,7 +680,7 @@ public class Database {
   public boolean addUser(String user, String pass, UserPermission.Position pos) {
     try {
       User newUser = new User(user, pass, pos);
-      userList.add(newUser);
+      userRegistry.add(newUser);
       if (pos == UserPermission.Position.Student)
         return addStudent(newUser);
       return true;
@@ -209,24 +691,101 @@ public class Database {
   }
 
   /**
-   * Basic 'authentication' of a user with the internal userlist
+   * Basic 'authentication' of a user with the user registry
    * @return True if valid user, false otherwise
    */
   public boolean authUser(String username, String password) {
-      try {
-        for (User U : userList) {
-          if (U.equals(new User(username, password))) {
-            this.currentUser = U;
-            return true;
+    if (username == null || password == null)
+      return false;
+
+    loadUsers();
+    User U = userRegistry.get(username);
+    if (U != null && U.checkPassword(password)) {
+      this.currentUser = U;
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Get the number of users that can log in, loading them from the users table if needed
+   * @return User count, -1 if the users table exists but couldn't be read
+   */
+  public int getUserCount() {
+    loadUsers();
+    return userRegistry.isLoaded() ? userRegistry.size() : -1;
+  }
+
+  /**
+   * Bulk load the `users` (username, password, position, ID) table into the registry the first time it's needed
+   * Rows are streamed so large rosters don't need to fit in memory twice. The ID column is optional, students
+   * without one get a username-derived ID and a student row is created for them so they can register
+   */
+  private void loadUsers() {
+    if (userRegistry.isLoaded())
+      return;
+
+    synchronized (userRegistry) {
+      if (userRegistry.isLoaded())
+        return;
+      final List<String[]> newStudents = new ArrayList<String[]>();
+      Consumer<TableRow> addRow = new Consumer<TableRow>() {
+        public void accept(TableRow row) {
+          try {
+            String ID = row.size() > 3 ? row.getString(3) : null;
+            User loaded = new User(row.getString(0), row.getString(1), parsePosition(row.getString(2)), ID == null ? null : Integer.valueOf(ID.trim()));
+            userRegistry.add(loaded);
+            if (ID == null && loaded.getPermissions().getPosition() == UserPermission.Position.Student)
+              newStudents.add(new String[] { loaded.getID().toString(), loaded.getName() });
+          }
+          catch (UserException | NumberFormatException E) {
+            lastError = E;
           }
         }
-      }
+      };
+      int rowCount = streamTableInformation("users", null, addRow, "username", "password", "position", "ID");
+      // older users tables have no ID column
+      if (rowCount < 0 && sqlErrorCode(lastError) == UNKNOWN_COLUMN)
+        rowCount = streamTableInformation("users", null, addRow, "username", "password", "position");
+      if (!newStudents.isEmpty())
+        createStudents(newStudents);
 
-      catch (UserException E) {
-        return false;
-      }
+      // a missing users table just means we only have the users added with addUser, anything else is tried again next time
+      if (rowCount >= 0 || sqlErrorCode(lastError) == NO_SUCH_TABLE)
+        userRegistry.setLoaded();
+    }
+  }
 
-      return false;
+  /**
+   * Create the student rows of loaded students that don't have one, in batches
+   * @param students Students as (ID, name)
+   */
+  private void createStudents(List<String[]> students) {
+    String[] commands = new String[students.size()];
+    Arrays.fill(commands, "insert ignore into `student` values(?, ?, 'Biology', '0')");
+    executeBatch(commands, students.toArray(new String[0][]));
+  }
+
+  /**
+   * Get the vendor error code of an exception
+   * @param E Exception, may be null
+   * @return MySQL error code, or 0 if it isn't a SQLException
+   */
+  private static int sqlErrorCode(Exception E) {
+    return E instanceof SQLException ? ((SQLException)E).getErrorCode() : 0;
+  }
+
+  /**
+   * Convert a position stored in the users table
+   * @param position Position name (Staff/Student)
+   * @return Matching position, None if it is not recognized
+   */
+  private static UserPermission.Position parsePosition(String position) {
+    for (UserPermission.Position P : UserPermission.Position.values())
+      if (P.name().equalsIgnoreCase(position))
+        return P;
+    return UserPermission.Position.None;
   }
 
   /**
@@ -239,32 +798,127 @@ public class Database {
 
   /**
    * Return a list of 'tuples' containing attributes corresponding to the table attribute titles requested
+   * Only the requested attributes are selected from the server, reference tables are served from the cache
+   * (package visible so the benchmarks can measure it)
    * @param tableName Name of table to retrieve from
-   * @param optArgs Optional arguments such as (order/sort) appended to the end of query
+   * @param options Optional where/order by clauses, may be null
    * @param tableFields Title(s) of the desired attributes
    * @return
    */
-  private List<String> getTableInformation(String tableName, String optArgs, String... tableFields) {
-    ArrayList<String> result = new ArrayList<String>();
-    if (optArgs == null || optArgs.length() == 0)
-      optArgs = "";
-    if (executeQuery(String.format("select * from `%s` %s", tableName, optArgs))) {
+  List<TableRow> getTableInformation(String tableName, QueryOptions options, final String... tableFields) {
+    String query = selectSQL(tableName, options, tableFields);
+    if (query == null)
+      return new ArrayList<TableRow>();
+
+    String[] parameters = options == null ? new String[0] : options.getParameters();
+    String cacheKey = null;
+    long cacheGeneration = queryCache.getGeneration();
+    if (CACHED_TABLES.contains(tableName)) {
+      cacheKey = query + "|" + String.join("|", parameters);
+      List<TableRow> cached = queryCache.get(cacheKey);
+      if (cached != null)
+        return cached;
+    }
+
+    // whole reference tables are read from the snapshot when it has every write made through us
+    List<TableRow> result = options == null ? snapshotRows(tableName, true, tableFields) : null;
+    if (result == null) {
+      result = executeQuery(query, rowMapper(tableFields.length), parameters);
+      if (result == null && options == null) {
+        // the server is unreachable, an old copy is better than nothing (but isn't cached)
+        result = snapshotRows(tableName, false, tableFields);
+        cacheKey = null;
+      }
+      if (result == null)
+        return new ArrayList<TableRow>();
+    }
+
+    // cached results are shared, so nobody gets to modify them
+    result = Collections.unmodifiableList(result);
+    if (cacheKey != null)
+      queryCache.put(tableName, cacheKey, result, cacheGeneration);
+    return result;
+  }
+
+  /**
+   * Stream 'tuples' of the requested attributes to a handler one at a time as the server sends them
+   * Rows are not held in memory, so this is safe to use on very large tables
+   * @param tableName Name of table to retrieve from
+   * @param options Optional where/order by clauses, may be null
+   * @param rowHandler Called with each row in order (the same TableRow instance is reused)
+   * @param tableFields Title(s) of the desired attributes
+   * @return Number of rows streamed, or -1 if the query failed
+   */
+  private int streamTableInformation(String tableName, QueryOptions options, Consumer<TableRow> rowHandler, String... tableFields) {
+    String query = selectSQL(tableName, options, tableFields);
+    if (query == null)
+      return -1;
+
+    PooledConnection streamConnection = null;
+    PreparedStatement streamStatement = null;
+    ResultSet streamResult = null;
+    int rowCount = 0;
+    long startNanos = System.nanoTime();
+    try {
+      streamConnection = connectionPool.borrow();
+      // not cached, the streaming fetch size shouldn't leak into other queries
+      streamStatement = streamConnection.getConnection().prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      // tells Connector/J to hand us rows one at a time instead of reading the whole result
+      streamStatement.setFetchSize(Integer.MIN_VALUE);
+      if (options != null)
+        bindParameters(streamStatement, options.getParameters());
+      streamResult = streamStatement.executeQuery();
+
+      TableRow row = new TableRow(tableFields.length);
+      while (streamResult.next()) {
+        rowHandler.accept(row.load(streamResult));
+        rowCount++;
+      }
+      recordCall(query, options == null ? null : options.getParameters(), startNanos, rowCount, false);
+      return rowCount;
+    }
+    catch (SQLException E) {
+      lastError = E;
+      recordCall(query, options == null ? null : options.getParameters(), startNanos, rowCount, true);
+      return -1;
+    }
+    finally {
       try {
-        while (queryResult.next()){
-          String line = "";
-          for (String field : tableFields) {
-            line += queryResult.getString(field) + ", ";
-          }
-          result.add(line.substring(0,line.length()-2));
-        }
-        closeQueries();
+        if (streamResult != null)
+          streamResult.close();
+        if (streamStatement != null)
+          streamStatement.close();
       }
       catch (SQLException E) {
-        closeQueries();
         lastError = E;
       }
+      connectionPool.release(streamConnection);
     }
-    return result;
+  }
+
+  /**
+   * Build a select of only the requested attributes
+   * @param tableName Name of table to retrieve from
+   * @param options Optional where/order by clauses, may be null
+   * @param tableFields Title(s) of the desired attributes
+   * @return Query string, or null if a title is invalid
+   */
+  private String selectSQL(String tableName, QueryOptions options, String... tableFields) {
+    if (!isValidIdentifier(tableName) || tableFields.length == 0)
+      return null;
+
+    StringBuilder sb = new StringBuilder("select ");
+    for (int i = 0; i < tableFields.length; i++) {
+      if (!isValidIdentifier(tableFields[i]))
+        return null;
+      if (i > 0)
+        sb.append(", ");
+      sb.append('`').append(tableFields[i]).append('`');
+    }
+    sb.append(" from `").append(tableName).append('`');
+    if (options != null)
+      options.appendTo(sb);
+    return sb.toString();
   }
 
   /**
@@ -275,53 +929,41 @@ public class Database {
    * @return True if update succeeds, false otherwise
    */
   public boolean updateTable(String tableName, HashMap<String, String> primaryKeys, HashMap<String, String> attributes) {
-      if (tableName == null || tableName.length() == 0)
-        return false;
-
-      StringBuilder sb = new StringBuilder();
-
-      // format our new updated values for the query
-      for (String key : attributes.keySet())
-        sb.append(String.format("`%s`='%s', ", cleanInput(key), cleanInput(attributes.get(key))));
-
-      String attributeValues = sb.toString();
-
-      sb = new StringBuilder();
-
-      // format our primary keys for the query
-      for (String pKey : primaryKeys.keySet())
-        sb.append(String.format("`%s`='%s' and ", cleanInput(pKey), cleanInput(primaryKeys.get(pKey))));
-
-      String primaryKeyValues = sb.toString();
-
-      // make sure that primary keys and attributes have at least one element
-      // if not, will get a IOOB exception and this is easier than try/catch
-      if (attributeValues.length() < 2 || primaryKeyValues.length() < 5)
-        return false;
+    String updateCommand = updateSQL(tableName, primaryKeys, attributes);
+    if (updateCommand == null)
+      return false;
 
-      attributeValues = attributeValues.substring(0, attributeValues.length() - 2);
-      primaryKeyValues = primaryKeyValues.substring(0, primaryKeyValues.length() - 5);
-      // need to clean input
-      String updateCommand = String.format("update `%s` set %s where %s", tableName, attributeValues, primaryKeyValues);
-      //System.out.println(updateCommand);
-      return executeCommand(updateCommand);
+    if (!executePrepared(updateCommand, updateParameters(primaryKeys, attributes)))
+      return false;
+    tableWritten(tableName);
+    if (attributes.containsKey("grade"))
+      gradesChanged(tableName, primaryKeys.get("ID"));
+    creditsChanged(tableName, primaryKeys, attributes);
+    courseUpdated(tableName, primaryKeys, attributes);
+    scheduleChanged(tableName, primaryKeys.get("ID"));
+    seatsChanged(tableName, takesSections(primaryKeys, attributes));
+    return true;
   }
 
   /**
    * Add a new tuple to the requested table
    * @param tableName Name of the table to add to
-   * @param tupleValues Values of the tuple attributes
+   * @param tupleValues Values of the tuple attributes ("null" inserts a NULL)
    * @return True if succeeds, false otherwise
    */
   public boolean insertTuple(String tableName, String... tupleValues) {
-    tupleValues = cleanInput(tupleValues);
-    for (String value : tupleValues)
-      if (value == null || value.length() == 0)
-        return false;
+    String insertCommand = insertSQL(tableName, tupleValues);
+    if (insertCommand == null)
+      return false;
 
-    String insertCommand = String.format("insert into `%s` values %s", tableName, asSQLArray(tupleValues));
-    //System.out.println(insertCommand);
-    return executeCommand(insertCommand);
+    if (!executePrepared(insertCommand, insertParameters(tupleValues)))
+      return false;
+    tableWritten(tableName);
+    gradesChanged(tableName, tupleValues);
+    courseInserted(tableName, insertParameters(tupleValues));
+    scheduleChanged(tableName, tupleValues[0]);
+    seatsChanged(tableName, takesSections(tupleValues));
+    return true;
   }
 
   /**
@@ -331,27 +973,296 @@ public class Database {
    * @return True if the tuple was deleted, false otherwise
    */
   public boolean deleteTuple(String tableName, HashMap<String, String> primaryKeys) {
-    StringBuilder sb = new StringBuilder();
-    for (String pKey : primaryKeys.keySet())
-      sb.append(String.format("`%s`='%s' and ", cleanInput(pKey), cleanInput(primaryKeys.get(pKey))));
-
-    String primaryKeyValues = sb.toString();
-
-    // make sure we have at least one primary key
-    if (primaryKeyValues.length() < 10)
+    String deleteCommand = deleteSQL(tableName, primaryKeys);
+    if (deleteCommand == null)
       return false;
 
-    primaryKeyValues = primaryKeyValues.substring(0, primaryKeyValues.length() - 4);
+    if (!executePrepared(deleteCommand, primaryKeys.values().toArray(new String[0])))
+      return false;
+    tableWritten(tableName);
+    gradesChanged(tableName, primaryKeys.get("ID"));
+    gradesDeleted(tableName);
+    courseDeleted(tableName, primaryKeys);
+    scheduleChanged(tableName, primaryKeys.get("ID"));
+    seatsChanged(tableName, takesSections(primaryKeys, null));
+    return true;
+  }
 
-    String deleteCommand = String.format("delete from `%s` where %s", tableName, primaryKeyValues);
-    return executeCommand(deleteCommand);
+  /**
+   * Add many tuples to the requested table using batched inserts
+   * @param tableName Name of the table to add to
+   * @param tuples Values of each tuple's attributes ("null" inserts a NULL)
+   * @return Whether each tuple was added, in the same order as given
+   */
+  public boolean[] insertTuples(String tableName, List<String[]> tuples) {
+    return insertTuples(tableName, tuples, true, null);
   }
 
-  /* MISC */
   /**
-   * Create a SQL formatted 'value array' from individual values
-   * @param array List of values
-   * @return "one", "two", "three" -> ('one', 'two', 'three')
+   * Add a chunk of an import to the requested table, leaving the GPA summary and seat counts
+   * to be brought up to date once the whole import is done (by @see importTable)
+   * @param tableName Name of the table to add to
+   * @param tuples Values of each tuple's attributes, taken as they are (null inserts a NULL, "" stays empty)
+   * @param rowErrors Filled in with the exception of each tuple the server rejected
+   * @return Whether each tuple was added, in the same order as given
+   */
+  boolean[] importTuples(String tableName, List<String[]> tuples, SQLException[] rowErrors) {
+    return insertTuples(tableName, tuples, false, rowErrors);
+  }
+
+  /**
+   * Add many tuples to the requested table using batched inserts
+   * @param tableName Name of the table to add to
+   * @param tuples Values of each tuple's attributes ("null" inserts a NULL, unless they are imported)
+   * @param summarize True to update the GPA summary and seat counts of the rows added
+   * @param rowErrors Filled in with the exception of each rejected tuple for an import whose values are
+   *                  taken as they are, null for tuples entered by hand
+   * @return Whether each tuple was added, in the same order as given
+   */
+  private boolean[] insertTuples(String tableName, List<String[]> tuples, boolean summarize, SQLException[] rowErrors) {
+    boolean imported = rowErrors != null;
+    String[] commands = new String[tuples.size()];
+    String[][] parameters = new String[tuples.size()][];
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = imported ? insertSQL(tableName, tuples.get(i).length) : insertSQL(tableName, tuples.get(i));
+      if (commands[i] != null)
+        parameters[i] = imported ? tuples.get(i) : insertParameters(tuples.get(i));
+    }
+    boolean[] results = executeBatch(commands, parameters, rowErrors);
+    tableWritten(tableName);
+    // students with many graded rows in the batch are only summarized once
+    Map<String, String[]> graded = new LinkedHashMap<String, String[]>();
+    List<String[]> sections = new ArrayList<String[]>();
+    for (int i = 0; i < results.length; i++) {
+      if (results[i]) {
+        if (isGraded(parameters[i]))
+          graded.put(parameters[i][0], parameters[i]);
+        courseInserted(tableName, parameters[i]);
+        scheduleChanged(tableName, parameters[i][0]);
+        sections.addAll(takesSections(parameters[i]));
+      }
+    }
+    if (summarize) {
+      for (String[] tuple : graded.values())
+        gradesChanged(tableName, tuple);
+      seatsChanged(tableName, sections);
+    }
+    return results;
+  }
+
+  /**
+   * Update many tuples in the requested table using batched updates
+   * @param tableName Table to update
+   * @param primaryKeys Primary key(s) of each tuple to update
+   * @param attributes Attribute title(s) and value(s) to update for each tuple (same order as primaryKeys)
+   * @return Whether each update succeeded, in the same order as given
+   */
+  public boolean[] updateTuples(String tableName, List<HashMap<String, String>> primaryKeys, List<HashMap<String, String>> attributes) {
+    if (primaryKeys.size() != attributes.size())
+      return new boolean[primaryKeys.size()];
+
+    String[] commands = new String[primaryKeys.size()];
+    String[][] parameters = new String[primaryKeys.size()][];
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = updateSQL(tableName, primaryKeys.get(i), attributes.get(i));
+      if (commands[i] != null)
+        parameters[i] = updateParameters(primaryKeys.get(i), attributes.get(i));
+    }
+    boolean[] results = executeBatch(commands, parameters);
+    tableWritten(tableName);
+    List<String[]> sections = new ArrayList<String[]>();
+    for (int i = 0; i < results.length; i++) {
+      if (results[i] && attributes.get(i).containsKey("grade"))
+        gradesChanged(tableName, primaryKeys.get(i).get("ID"));
+      if (results[i]) {
+        creditsChanged(tableName, primaryKeys.get(i), attributes.get(i));
+        courseUpdated(tableName, primaryKeys.get(i), attributes.get(i));
+        scheduleChanged(tableName, primaryKeys.get(i).get("ID"));
+        sections.addAll(takesSections(primaryKeys.get(i), attributes.get(i)));
+      }
+    }
+    seatsChanged(tableName, sections);
+    return results;
+  }
+
+  /**
+   * Remove many tuples from the requested table using batched deletes
+   * @param tableName Table to delete from
+   * @param primaryKeys Primary key titles and values of each tuple
+   * @return Whether each delete succeeded, in the same order as given
+   */
+  public boolean[] deleteTuples(String tableName, List<HashMap<String, String>> primaryKeys) {
+    String[] commands = new String[primaryKeys.size()];
+    String[][] parameters = new String[primaryKeys.size()][];
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = deleteSQL(tableName, primaryKeys.get(i));
+      if (commands[i] != null)
+        parameters[i] = primaryKeys.get(i).values().toArray(new String[0]);
+    }
+    boolean[] results = executeBatch(commands, parameters);
+    tableWritten(tableName);
+    boolean anyDeleted = false;
+    List<String[]> sections = new ArrayList<String[]>();
+    for (int i = 0; i < results.length; i++) {
+      if (results[i]) {
+        anyDeleted = true;
+        gradesChanged(tableName, primaryKeys.get(i).get("ID"));
+        courseDeleted(tableName, primaryKeys.get(i));
+        scheduleChanged(tableName, primaryKeys.get(i).get("ID"));
+        sections.addAll(takesSections(primaryKeys.get(i), null));
+      }
+    }
+    // once for the whole batch
+    if (anyDeleted)
+      gradesDeleted(tableName);
+    seatsChanged(tableName, sections);
+    return results;
+  }
+
+  /**
+   * Set how many rows are sent to the server per batch by the batched methods
+   * @param batchSize Rows per batch
+   */
+  public void setBatchSize(int batchSize) {
+    if (batchSize > 0)
+      root.batchSize = batchSize;
+  }
+
+  /**
+   * Build the parameterized insert for a tuple
+   * @param tableName Name of the table to add to
+   * @param tupleValues Values of the tuple attributes
+   * @return Insert command, or null if the table name or any value is invalid
+   */
+  private String insertSQL(String tableName, String[] tupleValues) {
+    for (String value : tupleValues)
+      if (value == null || value.length() == 0)
+        return null;
+    return insertSQL(tableName, tupleValues.length);
+  }
+
+  /**
+   * Build the parameterized insert for a tuple of the given size, whatever its values
+   * @param tableName Table to insert into
+   * @param valueCount Number of attribute values
+   * @return Insert command, or null if the table name is invalid or there are no values
+   */
+  private String insertSQL(String tableName, int valueCount) {
+    if (!isValidIdentifier(tableName) || valueCount == 0)
+      return null;
+
+    StringBuilder sb = new StringBuilder("insert into `").append(tableName).append("` values (");
+    for (int i = 0; i < valueCount; i++)
+      sb.append(i == 0 ? "?" : ", ?");
+    return sb.append(")").toString();
+  }
+
+  /**
+   * Convert tuple values to bound parameters, "null" becomes a SQL NULL
+   * @param tupleValues Values of the tuple attributes
+   * @return Parameters to bind
+   */
+  private String[] insertParameters(String[] tupleValues) {
+    String[] parameters = new String[tupleValues.length];
+    for (int i = 0; i < tupleValues.length; i++)
+      parameters[i] = tupleValues[i].equals("null") ? null : tupleValues[i];
+    return parameters;
+  }
+
+  /**
+   * Order the update values the way @see updateSQL expects them
+   * @param primaryKeys Primary key(s) of the tuple to update
+   * @param attributes Attribute title(s) and value(s) that are being updated
+   * @return Parameters to bind
+   */
+  private String[] updateParameters(HashMap<String, String> primaryKeys, HashMap<String, String> attributes) {
+    String[] parameters = new String[attributes.size() + primaryKeys.size()];
+    int i = 0;
+    for (String value : attributes.values())
+      parameters[i++] = value;
+    for (String value : primaryKeys.values())
+      parameters[i++] = value;
+    return parameters;
+  }
+
+  /**
+   * Build the parameterized update for the given attribute and primary key titles
+   * Parameters are bound attribute values first, then primary key values
+   * @param tableName Table to update
+   * @param primaryKeys Primary key(s) of the tuple to update
+   * @param attributes Attribute title(s) that are being updated
+   * @return Update command, or null if there are no attributes/primary keys or a title is invalid
+   */
+  private String updateSQL(String tableName, HashMap<String, String> primaryKeys, HashMap<String, String> attributes) {
+    if (!isValidIdentifier(tableName) || attributes.isEmpty() || primaryKeys.isEmpty())
+      return null;
+
+    StringBuilder sb = new StringBuilder("update `").append(tableName).append("` set ");
+    if (!appendColumns(sb, attributes.keySet(), ", "))
+      return null;
+    sb.append(" where ");
+    if (!appendColumns(sb, primaryKeys.keySet(), " and "))
+      return null;
+    return sb.toString();
+  }
+
+  /**
+   * Build the parameterized delete for the given primary key titles
+   * @param tableName Table to delete from
+   * @param primaryKeys Primary key titles
+   * @return Delete command, or null if there are no primary keys or a title is invalid
+   */
+  private String deleteSQL(String tableName, HashMap<String, String> primaryKeys) {
+    if (!isValidIdentifier(tableName) || primaryKeys.isEmpty())
+      return null;
+
+    StringBuilder sb = new StringBuilder("delete from `").append(tableName).append("` where ");
+    if (!appendColumns(sb, primaryKeys.keySet(), " and "))
+      return null;
+    return sb.toString();
+  }
+
+  /**
+   * Append "`column` = ?" for each column, joined by the separator
+   * @param sb Builder to append to
+   * @param columns Column titles
+   * @param separator Text between each column
+   * @return True if every column title was valid, false otherwise
+   */
+  private boolean appendColumns(StringBuilder sb, Iterable<String> columns, String separator) {
+    boolean first = true;
+    for (String column : columns) {
+      if (!isValidIdentifier(column))
+        return false;
+      if (!first)
+        sb.append(separator);
+      sb.append('`').append(column).append("` = ?");
+      first = false;
+    }
+    return true;
+  }
+
+  /**
+   * Check that a table or attribute title can be safely quoted with backticks
+   * @param identifier Title to check
+   * @return True if valid, false otherwise
+   */
+  private boolean isValidIdentifier(String identifier) {
+    if (identifier == null || identifier.length() == 0 || identifier.length() > 64)
+      return false;
+    for (int i = 0; i < identifier.length(); i++) {
+      char C = identifier.charAt(i);
+      if (C == '`' || C == '\'' || C == '"' || C == ';' || Character.isISOControl(C))
+        return false;
+    }
+    return true;
+  }
+
+  /* MISC */
+  /**
+   * Create a SQL formatted 'value array' from individual values
+   * @param array List of values
+   * @return "one", "two", "three" -> ('one', 'two', 'three')
    */
   public String asSQLArray(String... array) {
     array = cleanInput(array);
@@ -372,19 +1283,14 @@ public class Database {
 
   /**
   * Clean the input of special charaters
+  * (package visible so the benchmarks can measure it)
   */
-  private String[] cleanInput(String... inputs) {
+  String[] cleanInput(String... inputs) {
     for (int i = 0; i < inputs.length; i++)
-      inputs[i] = inputs[i].replaceAll("`|'|\"|;", "");
+      inputs[i] = SPECIAL_CHARACTERS.matcher(inputs[i]).replaceAll("");
     return inputs;
   }
 
-  private String cleanInput(String input) {
-    if (input != null)
-      return input.replaceAll("`|'|\"|;", "");
-    return input;
-  }
-
   /* PROJECT SPECIFIC METHODS */
 
   /**
@@ -393,9 +1299,10 @@ public class Database {
     @return Truee if added or already exists, false otherwise
   */
   private boolean addStudent(User student) {
-    if (executeQuery(String.format("select `ID` from `student` where `ID` = %d", student.getID()))) {
-      if (!retrieveAttribute("ID").contains(student.getID().toString()))
-        if (executeCommand(String.format("insert into student values(%d, '%s', 'Biology', '0')", student.getID(), student.getName())))
+    List<Integer> existing = executeQuery("select `ID` from `student` where `ID` = ?", ID_MAPPER, student.getID().toString());
+    if (existing != null) {
+      if (existing.isEmpty())
+        if (executePrepared("insert into student values(?, ?, 'Biology', '0')", student.getID().toString(), student.getName()))
           return true;
       return true;
     }
@@ -407,7 +1314,7 @@ public class Database {
   * Get the information on all departments in the department relation ( minus budget attribute )
   * @return Department Information
   */
-  public List<String> getDepartmentInfo() {
+  public List<TableRow> getDepartmentInfo() {
     return getTableInformation("department", null, "dept_name", "building");
   }
 
@@ -415,7 +1322,7 @@ public class Database {
   * Get the course id, title, department name, and credits for all courses in the course relation
   * @return See above
   */
-  public List<String> getCourseInfo() {
+  public List<TableRow> getCourseInfo() {
     return getTableInformation("course", null, "course_id", "title", "dept_name", "credits");
   }
 
@@ -423,36 +1330,571 @@ public class Database {
   * Get the course id, section id, semester, year, building, room number, and time slot id from all sections in the section relation
   * @return See above
   */
-  public List<String> getSectionInfo() {
+  public List<TableRow> getSectionInfo() {
     return getTableInformation("section", null, "course_id", "sec_id", "semester", "year", "building", "room_number", "time_slot_id");
   }
 
+  /**
+  * Stream the course id, title, department name, and credits of every course to a handler
+  * @param rowHandler Called with each course as it arrives
+  * @return Number of courses, or -1 if the query failed
+  */
+  public int streamCourseInfo(Consumer<TableRow> rowHandler) {
+    return streamTableInformation("course", null, rowHandler, "course_id", "title", "dept_name", "credits");
+  }
+
+  /**
+  * Stream the same attributes as @see getSectionInfo for every section to a handler
+  * @param rowHandler Called with each section as it arrives
+  * @return Number of sections, or -1 if the query failed
+  */
+  public int streamSectionInfo(Consumer<TableRow> rowHandler) {
+    return streamTableInformation("section", null, rowHandler, "course_id", "sec_id", "semester", "year", "building", "room_number", "time_slot_id");
+  }
+
+  /**
+  * Set the directory exports are written to (and imports are read from), sessions opened afterwards share it
+  * @param exportDirectory Directory, created on the first export if it doesn't exist
+  */
+  public void setExportDirectory(Path exportDirectory) {
+    this.exportDirectory = exportDirectory;
+  }
+
+  /**
+  * Get the directory exports are written to
+  * @return Export directory
+  */
+  public Path getExportDirectory() {
+    return exportDirectory;
+  }
+
+  /**
+  * Find where an export file name points inside the export directory
+  * @param file File name, relative to the export directory
+  * @return The file, or null if it is outside the export directory (absolute, or climbing out with ..)
+  */
+  public Path resolveExportFile(Path file) {
+    Path directory = exportDirectory.toAbsolutePath().normalize();
+    Path resolved = directory.resolve(file).normalize();
+    if (!resolved.startsWith(directory) || resolved.equals(directory))
+      return null;
+    return resolved;
+  }
+
+  /**
+  * Export every tuple of a table to a file in the export directory, streamed so any size of table can be exported
+  * The rows are written to a temporary file that replaces the file once the export has finished,
+  * so a failed export leaves the old file alone
+  * @param tableName One of department, course, section or takes
+  * @param file File to write relative to the export directory, replaced if it exists
+  * @param format CSV (with a header line) or NDJSON
+  * @return Number of tuples exported, or -1 if the export failed
+  */
+  public long exportTable(String tableName, Path file, TableExporter.Format format) {
+    final String[] columns = TABLE_COLUMNS.get(tableName);
+    Path target = resolveExportFile(file);
+    if (columns == null || target == null)
+      return -1;
+
+    Path temporary = null;
+    try {
+      Files.createDirectories(target.getParent());
+      // a symbolic link in the directory mustn't lead the export outside of it
+      if (!target.getParent().toRealPath().startsWith(exportDirectory.toRealPath()))
+        return -1;
+      temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+      final TableExporter exporter = new TableExporter(temporary, format, columns);
+      long rowCount;
+      try {
+        rowCount = streamTableInformation(tableName, null, new Consumer<TableRow>() {
+          public void accept(TableRow row) {
+            try {
+              exporter.write(row);
+            }
+            catch (IOException E) {
+              throw new UncheckedIOException(E);
+            }
+          }
+        }, columns) < 0 ? -1 : exporter.getRowCount();
+      }
+      finally {
+        exporter.close();
+      }
+      if (rowCount >= 0) {
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        temporary = null;
+      }
+      return rowCount;
+    }
+    catch (IOException E) {
+      lastError = E;
+      return -1;
+    }
+    catch (UncheckedIOException E) {
+      lastError = E.getCause();
+      return -1;
+    }
+    finally {
+      deleteQuietly(temporary);
+    }
+  }
+
+  /**
+  * Delete a file if there is one, a failure is only kept as the last error
+  * @param file File to delete, may be null
+  */
+  private void deleteQuietly(Path file) {
+    try {
+      if (file != null)
+        Files.deleteIfExists(file);
+    }
+    catch (IOException E) {
+      lastError = E;
+    }
+  }
+
+  /**
+  * Bulk load a CSV file (in the format written by @see exportTable) into a table
+  * Chunks of the file are loaded in parallel, using up to half the pool's connections
+  * Seat counts and the GPA summary are recomputed once at the end of a takes import
+  * @param tableName One of course, section or takes
+  * @param file CSV file relative to the export directory, a header line is skipped
+  * @param progressOutput Stream to print progress to every second, may be null
+  * @return Rows imported and the errors of the rows that weren't, or null if the file could not be read
+  *         (or is outside the export directory)
+  */
+  public CsvImporter.Result importTable(String tableName, Path file, PrintStream progressOutput) {
+    String[] columns = TABLE_COLUMNS.get(tableName);
+    Path source = resolveExportFile(file);
+    if (columns == null || source == null)
+      return null;
+
+    // leave connections for everyone else using the pool
+    int parallelism = Math.min(Runtime.getRuntime().availableProcessors(), Math.max(1, connectionPool.getMaxSize() / 2));
+    try {
+      // a symbolic link in the directory mustn't lead the import outside of it
+      if (!source.toRealPath().startsWith(exportDirectory.toRealPath()))
+        return null;
+      CsvImporter.Result result = new CsvImporter(this, tableName, columns, parallelism, root.batchSize).importFile(source, progressOutput);
+      // once for the whole import instead of once per row
+      if (tableName.equals("takes") && result.getRowsImported() > 0) {
+        seatsChanged(tableName, Collections.<String[]>singletonList(null));
+        if (root.gpaSummaryEnabled)
+          rebuildGPASummary();
+      }
+      return result;
+    }
+    catch (IOException E) {
+      lastError = E;
+      return null;
+    }
+  }
+
+  /**
+  * Search the course catalog by course_id, title and department without going to the server
+  * The catalog is loaded into the index on the first search, and kept up to date as courses are written
+  * @param query Words to search for, three or more characters match anywhere, shorter ones match the start of a word
+  * @param limit Most courses returned
+  * @return Matching courses as (course_id, title, dept_name, credits), best matches first
+  */
+  public List<TableRow> searchCourses(String query, int limit) {
+    loadCourseIndex();
+    return courseIndex.search(query, limit);
+  }
+
+  /**
+  * Find courses with a word starting with the prefix, for autocomplete
+  * @param prefix Start of a course_id, title or department word
+  * @param limit Most courses returned
+  * @return Matching courses as (course_id, title, dept_name, credits) in course_id order
+  */
+  public List<TableRow> autocompleteCourses(String prefix, int limit) {
+    loadCourseIndex();
+    return courseIndex.autocomplete(prefix, limit);
+  }
+
+  /**
+  * Bulk load the course catalog into the search index if it hasn't been yet
+  */
+  private void loadCourseIndex() {
+    if (courseIndex.isLoaded())
+      return;
+    synchronized (courseIndex) {
+      if (courseIndex.isLoaded())
+        return;
+      courseIndex.startLoading();
+      List<TableRow> snapshotCourses = snapshotRows("course", true, "course_id", "title", "dept_name", "credits");
+      if (snapshotCourses != null) {
+        courseIndex.load(snapshotCourses);
+        return;
+      }
+      final List<TableRow> catalog = new ArrayList<TableRow>();
+      if (streamCourseInfo(row -> catalog.add(row.copy())) >= 0)
+        courseIndex.load(catalog);
+      else if ((snapshotCourses = snapshotRows("course", false, "course_id", "title", "dept_name", "credits")) != null)
+        courseIndex.load(snapshotCourses);
+    }
+  }
+
+  /**
+  * Load the time slots and sections of the registration term into the conflict index if they aren't loaded
+  * @return True if the index is loaded, false if it could not be read
+  */
+  private boolean loadTimeSlots() {
+    if (timeSlots.isLoaded())
+      return true;
+    List<TableRow> slots = snapshotRows("time_slot", true, TABLE_COLUMNS.get("time_slot"));
+    List<TableRow> sections = null;
+    List<TableRow> allSections = snapshotRows("section", true, "course_id", "sec_id", "time_slot_id", "semester", "year");
+    if (allSections != null) {
+      sections = new ArrayList<TableRow>();
+      for (TableRow section : allSections)
+        if (CURRENT_SEMESTER.equals(section.getString(3)) && CURRENT_YEAR.equals(section.getString(4)))
+          sections.add(section);
+    }
+    if (slots == null)
+      slots = executeQuery("select `time_slot_id`, `day`, `start_hr`, `start_min`, `end_hr`, `end_min` from `time_slot`", rowMapper(6));
+    if (sections == null)
+      sections = executeQuery("select `course_id`, `sec_id`, `time_slot_id` from `section` where `semester` = ? and `year` = ?", rowMapper(3), CURRENT_SEMESTER, CURRENT_YEAR);
+    if (slots == null || sections == null)
+      return false;
+    timeSlots.load(slots, sections);
+    return true;
+  }
+
+  /**
+  * Load a student's sections of the registration term into the conflict index if they aren't loaded
+  * @param studentID ID of the student
+  * @return True if the schedule is loaded, false if it could not be read
+  */
+  private boolean loadSchedule(String studentID) {
+    if (timeSlots.hasSchedule(studentID))
+      return true;
+    List<TableRow> enrolled = executeQuery("select `course_id`, `sec_id` from `takes` where `ID` = ? and `semester` = ? and `year` = ?", rowMapper(2), studentID, CURRENT_SEMESTER, CURRENT_YEAR);
+    if (enrolled == null)
+      return false;
+    timeSlots.loadSchedule(studentID, enrolled);
+    return true;
+  }
+
+  /**
+  * Build a mapper that reads the first columns of a row
+  * @param columnCount Number of columns to read
+  * @return Mapper to new TableRows
+  */
+  private static RowMapper<TableRow> rowMapper(final int columnCount) {
+    return new RowMapper<TableRow>() {
+      public TableRow mapRow(ResultSet row) throws SQLException {
+        return new TableRow(columnCount).load(row);
+      }
+    };
+  }
+
+  /**
+  * Check if the server couldn't be reached the last time the snapshot was refreshed
+  * @return True if reads are coming from the snapshot and writes will fail
+  */
+  public boolean isOffline() {
+    return offline.get();
+  }
+
+  /**
+  * Get when the snapshot of the reference tables was last written
+  * @return Milliseconds since the epoch, 0 if there is no snapshot
+  */
+  public long getSnapshotTime() {
+    return snapshot == null ? 0 : snapshot.getWrittenAt();
+  }
+
+  /**
+  * Log in as a guest who can only browse the reference tables, for when the server is unreachable
+  * and users can't be authenticated
+  * @return True if logged in, false if the database isn't offline
+  */
+  public boolean browseOffline() {
+    if (!offline.get())
+      return false;
+    try {
+      // nobody can log in as the guest, the password is never stored
+      currentUser = new User("guest", UUID.randomUUID().toString(), UserPermission.Position.Guest);
+      return true;
+    }
+    catch (UserException E) {
+      lastError = E;
+      return false;
+    }
+  }
+
+  /**
+  * Refresh the snapshot every minute in the background, the first refresh is made once a database is selected
+  */
+  private void startSnapshotRefresh() {
+    snapshotRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable R) {
+        Thread refreshThread = new Thread(R, "snapshot-refresh");
+        refreshThread.setDaemon(true);
+        return refreshThread;
+      }
+    });
+    periodicRefresh = snapshotRefresher.scheduleWithFixedDelay(this::refreshSnapshot, DEFAULT_SNAPSHOT_REFRESH_SECONDS, DEFAULT_SNAPSHOT_REFRESH_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+  * Set how often the snapshot is refreshed in the background
+  * Each refresh is one information_schema query, plus a full read of every table the server can't say is unchanged
+  * (tables not written since the server started, and the server's own tables on MariaDB, have no update time)
+  * @param seconds Seconds between refreshes, 0 to only refresh after writes made through us
+  */
+  public synchronized void setSnapshotRefreshInterval(long seconds) {
+    if (periodicRefresh == null)
+      return;
+    periodicRefresh.cancel(false);
+    if (seconds > 0)
+      periodicRefresh = snapshotRefresher.scheduleWithFixedDelay(this::refreshSnapshot, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+  * Refresh the snapshot shortly after a write, writes made together share the refresh
+  */
+  private void refreshSnapshotSoon() {
+    if (snapshotRefresher != null && refreshPending.compareAndSet(false, true))
+      snapshotRefresher.schedule(this::refreshSnapshot, 1, TimeUnit.SECONDS);
+  }
+
+  /**
+  * Copy the reference tables that changed on the server into the snapshot
+  * Tables the server last changed when the snapshot's copy was made (and that weren't written through us) aren't read at all
+  */
+  private void refreshSnapshot() {
+    refreshPending.set(false);
+    try {
+      try {
+        connectionPool.release(connectionPool.borrow());
+        offline.set(false);
+      }
+      catch (SQLException E) {
+        offline.set(true);
+        return;
+      }
+
+      Map<String, Long> changeMarkers = tableChangeMarkers();
+      Map<String, List<TableRow>> changed = new LinkedHashMap<String, List<TableRow>>();
+      Map<String, String[]> columns = new HashMap<String, String[]>();
+      Map<String, Long> writeCounts = new HashMap<String, Long>();
+      for (String table : SNAPSHOT_TABLES) {
+        Long changeMarker = changeMarkers.get(table);
+        // a table the server has no update time for is read every time
+        if (changeMarker != null && changeMarker == snapshot.getChangeMarker(table) && snapshot.isFresh(table))
+          continue;
+
+        long writeCount = snapshot.getWriteCount(table);
+        final List<TableRow> rows = new ArrayList<TableRow>();
+        // a table that can't be read keeps its old copy
+        if (streamTableInformation(table, null, row -> rows.add(row.copy()), TABLE_COLUMNS.get(table)) < 0)
+          continue;
+        // with a new update time the copy is written again even if the rows are the same, so the time is kept
+        if (changeMarker == null && snapshot.isFresh(table) && snapshot.hasSameRows(table, rows))
+          continue;
+        changed.put(table, rows);
+        columns.put(table, TABLE_COLUMNS.get(table));
+        writeCounts.put(table, writeCount);
+      }
+
+      if (!changed.isEmpty() && !snapshot.replace(changed, columns, changeMarkers, writeCounts))
+        lastError = snapshot.getLastError();
+      for (String table : changed.keySet())
+        queryCache.invalidate(table);
+    }
+    catch (RuntimeException E) {
+      // an exception would stop the refreshes from being scheduled again
+      lastError = E;
+    }
+  }
+
+  /**
+  * Ask the server when each snapshot table was last changed, CHECKSUM TABLE would read every row of them
+  * @return Update times (seconds since the epoch) by table name, tables without one (or all of them, if it can't be asked) are left out
+  */
+  private Map<String, Long> tableChangeMarkers() {
+    Map<String, Long> changeMarkers = new HashMap<String, Long>();
+    String query = "select table_name, unix_timestamp(update_time), unix_timestamp() from information_schema.tables"
+      + " where table_schema = database() and table_name in ('department', 'course', 'section', 'time_slot')";
+    PooledConnection markerConnection = null;
+    long startNanos = System.nanoTime();
+    try {
+      markerConnection = connectionPool.borrow();
+      // MySQL 8 caches update times for a day unless told not to, older servers don't know the variable
+      try {
+        markerConnection.prepare("set session information_schema_stats_expiry = 0").execute();
+      }
+      catch (SQLException E) {
+        // nothing cached to expire
+      }
+      ResultSet markerResult = markerConnection.prepare(query).executeQuery();
+      try {
+        int rowCount = 0;
+        while (markerResult.next()) {
+          rowCount++;
+          long updated = markerResult.getLong(2);
+          // times are in whole seconds, a write later in the same second wouldn't change it
+          if (!markerResult.wasNull() && updated < markerResult.getLong(3) - 1)
+            changeMarkers.put(markerResult.getString(1).toLowerCase(), updated);
+        }
+        recordCall(query, null, startNanos, rowCount, false);
+      }
+      finally {
+        markerResult.close();
+      }
+    }
+    catch (SQLException E) {
+      lastError = E;
+      recordCall(query, null, startNanos, 0, true);
+    }
+    finally {
+      connectionPool.release(markerConnection);
+    }
+    return changeMarkers;
+  }
+
+  /**
+  * Read attributes of a whole table from the snapshot
+  * @param tableName Table to read
+  * @param freshOnly True to only read the table if it has every write made through us
+  * @param tableFields Title(s) of the desired attributes
+  * @return Rows (not to be modified), null if the snapshot can't answer
+  */
+  private List<TableRow> snapshotRows(String tableName, boolean freshOnly, String... tableFields) {
+    if (snapshot == null || (freshOnly && !snapshot.isFresh(tableName)))
+      return null;
+    String[] columns = snapshot.getColumns(tableName);
+    List<TableRow> rows = snapshot.getRows(tableName);
+    if (columns == null || rows == null)
+      return null;
+    if (Arrays.equals(columns, tableFields))
+      return rows;
+
+    int[] indexes = new int[tableFields.length];
+    for (int i = 0; i < indexes.length; i++) {
+      indexes[i] = Arrays.asList(columns).indexOf(tableFields[i]);
+      if (indexes[i] < 0)
+        return null;
+    }
+    List<TableRow> projected = new ArrayList<TableRow>(rows.size());
+    for (TableRow row : rows) {
+      Object[] values = new Object[indexes.length];
+      for (int i = 0; i < indexes.length; i++)
+        values[i] = row.get(indexes[i]);
+      projected.add(new TableRow(values));
+    }
+    return Collections.unmodifiableList(projected);
+  }
+
+  /**
+  * Page through the same attributes as @see getCourseInfo in course_id order
+  * @param pageSize Courses per page
+  * @return Listing positioned before the first page
+  */
+  public PagedListing pageCourseInfo(int pageSize) {
+    return new PagedListing(this, "course", new String[] { "course_id" }, pageSize, "course_id", "title", "dept_name", "credits");
+  }
+
+  /**
+  * Page through the same attributes as @see getSectionInfo in primary key order
+  * @param pageSize Sections per page
+  * @return Listing positioned before the first page
+  */
+  public PagedListing pageSectionInfo(int pageSize) {
+    return new PagedListing(this, "section", new String[] { "course_id", "sec_id", "semester", "year" }, pageSize, "course_id", "sec_id", "semester", "year", "building", "room_number", "time_slot_id");
+  }
+
   /**
   * Get all attributes of sections offered this year
   * @return See above
   */
-  public List<String> getCurrentSections() {
-    return getTableInformation("section", "where `year` = 2016", "course_id", "sec_id", "semester", "year", "building", "room_number", "time_slot_id");
+  public List<TableRow> getCurrentSections() {
+    return getTableInformation("section", new QueryOptions().where("year", "=", CURRENT_YEAR), "course_id", "sec_id", "semester", "year", "building", "room_number", "time_slot_id");
   }
 
   /**
   * Get the classes that the current user is enrolled for
   * @return See above
   */
-  public List<String> getCurrrentlyEnrolledSections() {
-	  return getTableInformation("takes", String.format("where `ID` = %d and `grade` is NULL", currentUser.getID()), "course_id", "sec_id", "semester", "year");
+  public List<TableRow> getCurrrentlyEnrolledSections() {
+	  return getTableInformation("takes", new QueryOptions().where("ID", "=", currentUser.getID().toString()).whereNull("grade"), "course_id", "sec_id", "semester", "year");
   }
 
   /**
   * Register the current user for the given section
   * @param course_id ID of the course to register for
   * @param sec_id Section of the course to register
-  * @return True if the student successfully registered for the section, false otherwise.
+  * @return Outcome of the registration (Registered if the student successfully registered for the section), with the conflicting section on a TimeConflict
   */
-  public boolean registerForSection(String course_id, String sec_id) {
-    if (currentUser.getPermissions().getPosition() == UserPermission.Position.Student)
-      return insertTuple("takes", currentUser.getID().toString(), course_id, sec_id, "Spring", "2016", "null");
-    return false;
+  public Registration registerForSection(final String course_id, final String sec_id) {
+    if (currentUser.getPermissions().getPosition() != UserPermission.Position.Student)
+      return new Registration(RegistrationResult.NotAllowed);
+
+    final String studentID = currentUser.getID().toString();
+    // the time slots are read on a connection of their own, so they're loaded before the registration borrows one
+    final boolean slotsLoaded = loadTimeSlots();
+    // given the schedule read inside the registration transaction, which also refreshes the cached one
+    Function<List<TableRow>, String[]> findConflict = schedule -> {
+      if (!slotsLoaded)
+        return null;
+      timeSlots.loadSchedule(studentID, schedule);
+      return timeSlots.findConflict(studentID, course_id, sec_id);
+    };
+
+    Registration registration = registrationEngine.register(studentID, course_id, sec_id, CURRENT_SEMESTER, CURRENT_YEAR, findConflict);
+    RegistrationResult result = registration.getResult();
+    if (result == RegistrationResult.Failed)
+      lastError = registrationEngine.getLastError();
+    if (result == RegistrationResult.Registered)
+      timeSlots.enrolled(studentID, course_id, sec_id);
+    // full sections put the student in line for the next seat that opens up
+    if (result == RegistrationResult.SectionFull) {
+      int position = waitlist.join(studentID, course_id, sec_id, CURRENT_SEMESTER, CURRENT_YEAR);
+      // enrolled since the seat claim failed
+      if (position == 0)
+        return new Registration(RegistrationResult.AlreadyEnrolled);
+      if (position < 0)
+        return registration;
+      // a seat dropped between the claim and the join went back to the section with nobody waiting, so try once more
+      RegistrationResult retried = registrationEngine.register(studentID, course_id, sec_id, CURRENT_SEMESTER, CURRENT_YEAR, findConflict).getResult();
+      // already promoted off the waitlist
+      if (retried == RegistrationResult.AlreadyEnrolled)
+        return new Registration(RegistrationResult.Registered);
+      if (retried != RegistrationResult.Registered)
+        return new Registration(RegistrationResult.Waitlisted);
+      // a seat held for the student meanwhile is passed on by the promoter, their enrollment fails as a duplicate
+      waitlist.leave(studentID, new String[] { course_id, sec_id, CURRENT_SEMESTER, CURRENT_YEAR });
+      timeSlots.enrolled(studentID, course_id, sec_id);
+      return new Registration(RegistrationResult.Registered);
+    }
+    return registration;
+  }
+
+  /**
+  * Find the section of a student's schedule this term that meets at the same time as another section
+  * Checked in memory, the time slots and the student's schedule are only read the first time
+  * @param studentID ID of the student
+  * @param course_id ID of the course
+  * @param sec_id Section of the course
+  * @return Conflicting section as (course_id, sec_id), null if there is no conflict (or the schedule could not be read)
+  */
+  private String[] findConflict(String studentID, String course_id, String sec_id) {
+    if (loadTimeSlots() && loadSchedule(studentID))
+      return timeSlots.findConflict(studentID, course_id, sec_id);
+    return null;
+  }
+
+  /**
+  * Get the current user's place on a section's waitlist
+  * @param course_id ID of the course
+  * @param sec_id Section of the course
+  * @return Position (1 is next), 0 if the user is not waiting for the section
+  */
+  public int getWaitlistPosition(String course_id, String sec_id) {
+    return waitlist.getPosition(currentUser.getID().toString(), new String[] { course_id, sec_id, CURRENT_SEMESTER, CURRENT_YEAR });
   }
 
   /**
@@ -461,62 +1903,284 @@ public class Database {
   * @return See above
   */
   public boolean dropSection(String course_id) {
-    if (currentUser.getPermissions().getPosition() == UserPermission.Position.Student)
-      return executeCommand(String.format("delete from `takes` where `course_id` = '%s' and ID = %d and `grade` is NULL", course_id, currentUser.getID()));
+    if (currentUser.getPermissions().getPosition() == UserPermission.Position.Student) {
+      // seats of the dropped sections are given back in the same transaction
+      if (registrationEngine.drop(currentUser.getID().toString(), course_id) != null) {
+        timeSlots.dropped(currentUser.getID().toString(), course_id);
+        return true;
+      }
+      lastError = registrationEngine.getLastError();
+    }
     return false;
   }
 
+  /**
+  * Keep a per-student GPA summary table up to date so GPAs can be read with a single row lookup
+  * Creates the `student_gpa` table if it does not exist yet, and rebuilds it if it disagrees with takes
+  * Only writes made through this class keep it up to date, grades changed by other clients or by hand
+  * need a @see rebuildGPASummary
+  * @return True if the summary is now being maintained, false otherwise
+  */
+  public boolean enableGPASummary() {
+    if (!executeCommand("create table if not exists `student_gpa` (`ID` int primary key, `quality_points` decimal(10,2) not null, `credit_hours` int not null)"))
+      return false;
+    // other clients may have changed grades since the summary was last written
+    int stale = validateGPASummary();
+    root.gpaSummaryEnabled = stale == 0 || (stale > 0 && rebuildGPASummary());
+    return root.gpaSummaryEnabled;
+  }
+
+  /**
+  * Count the students whose GPA summary row doesn't match their graded takes rows
+  * Students with no summary row aren't counted, their row is filled in when their GPA is first read
+  * @return Number of wrong summary rows, or -1 if they could not be counted
+  */
+  public int validateGPASummary() {
+    List<Integer> wrong = executeQuery("select count(*) from `student_gpa` G left join (select `ID`, round(coalesce(" + QUALITY_POINTS_SQL + ", 0), 2) as `quality_points`, coalesce(sum(`credits`), 0) as `credit_hours` "
+      + "from `takes` natural join `course` where `grade` is not NULL group by `ID`) T on T.`ID` = G.`ID` "
+      + "where G.`quality_points` <> coalesce(T.`quality_points`, 0) or G.`credit_hours` <> coalesce(T.`credit_hours`, 0)", ID_MAPPER);
+    if (wrong == null || wrong.isEmpty())
+      return -1;
+    return wrong.get(0);
+  }
+
+  /**
+  * Recompute every row of the GPA summary from the takes table
+  * Students read while it is being rebuilt get their GPA from takes instead
+  * @return True if the summary was rebuilt, false otherwise
+  */
+  public boolean rebuildGPASummary() {
+    return executeCommand("delete from `student_gpa`")
+      && executeCommand("insert into `student_gpa` (`ID`, `quality_points`, `credit_hours`) select `ID`, coalesce(" + QUALITY_POINTS_SQL + ", 0), coalesce(sum(`credits`), 0) "
+        + "from `takes` natural join `course` where `grade` is not NULL group by `ID`");
+  }
+
+  /**
+  * Get the GPA of any student, computed by the server
+  * Reads the summary row if @see enableGPASummary has been called, filling it in on first use
+  * @param studentID ID of the student
+  * @return The student's GPA, 0 if they have no graded courses
+  */
+  public double getStudentGPA(Integer studentID) {
+    if (root.gpaSummaryEnabled) {
+      List<Double> gpa = executeQuery("select `quality_points`, `credit_hours` from `student_gpa` where `ID` = ?", GPA_MAPPER, studentID.toString());
+      if (gpa != null && !gpa.isEmpty())
+        return gpa.get(0);
+      refreshGPASummary(studentID.toString());
+    }
+
+    List<Double> gpa = executeQuery("select " + QUALITY_POINTS_SQL + ", sum(`credits`) from `takes` natural join `course` where ID = ? and `grade` is not NULL", GPA_MAPPER, studentID.toString());
+    if (gpa != null && !gpa.isEmpty())
+      return gpa.get(0);
+    return 0;
+  }
+
+  /**
+  * Recompute a student's GPA summary row after their grades have changed
+  * @param tableName Table that was modified
+  * @param studentID ID of the student whose rows changed, may be null
+  */
+  private void gradesChanged(String tableName, String studentID) {
+    if (root.gpaSummaryEnabled && studentID != null && tableName.equals("takes"))
+      refreshGPASummary(studentID);
+  }
+
+  /**
+  * Recompute a student's GPA summary row after a takes tuple was inserted
+  * @param tableName Table that was inserted into
+  * @param tupleValues Values of the inserted tuple
+  */
+  private void gradesChanged(String tableName, String[] tupleValues) {
+    if (isGraded(tupleValues))
+      gradesChanged(tableName, tupleValues[0]);
+  }
+
+  /**
+  * Check if a tuple is a graded takes tuple
+  * @param tupleValues Values of the tuple
+  * @return True if it has a grade, false otherwise
+  */
+  private static boolean isGraded(String[] tupleValues) {
+    // takes is (ID, course_id, sec_id, semester, year, grade), new enrollments have no grade yet
+    return tupleValues.length == 6 && tupleValues[5] != null && !tupleValues[5].equals("null");
+  }
+
+  /**
+  * Recompute the GPA summary rows of every student graded in a course whose credits changed
+  * @param tableName Table that was modified
+  * @param primaryKeys Primary key of the modified tuple
+  * @param attributes New attribute values
+  */
+  private void creditsChanged(String tableName, HashMap<String, String> primaryKeys, HashMap<String, String> attributes) {
+    if (!root.gpaSummaryEnabled || !tableName.equals("course") || !attributes.containsKey("credits"))
+      return;
+    // the takes rows follow the course if its ID changed too
+    String course_id = attributes.containsKey("course_id") ? attributes.get("course_id") : primaryKeys.get("course_id");
+    executePrepared("replace into `student_gpa` (`ID`, `quality_points`, `credit_hours`) select `ID`, coalesce(" + QUALITY_POINTS_SQL + ", 0), coalesce(sum(`credits`), 0) from `takes` natural join `course` "
+      + "where `grade` is not NULL and `ID` in (select `ID` from `takes` where `course_id` = ? and `grade` is not NULL) group by `ID`", course_id);
+  }
+
+  /**
+  * Rebuild the GPA summary after courses or sections were deleted
+  * Their takes rows are deleted with them (on delete cascade), and which students had them isn't known anymore
+  * @param tableName Table that was deleted from
+  */
+  private void gradesDeleted(String tableName) {
+    if (root.gpaSummaryEnabled && (tableName.equals("course") || tableName.equals("section")))
+      rebuildGPASummary();
+  }
+
+  /**
+  * Add a newly inserted course to the search index
+  * @param tableName Table that was inserted into
+  * @param values Values bound for the inserted tuple (null for a NULL)
+  */
+  private void courseInserted(String tableName, String[] values) {
+    // course is (course_id, title, dept_name, credits)
+    if (tableName.equals("course") && values.length == 4)
+      courseIndex.put(new TableRow((Object[])values));
+  }
+
+  /**
+  * Update a course in the search index
+  * @param tableName Table that was modified
+  * @param primaryKeys Primary key of the modified tuple
+  * @param attributes New attribute values
+  */
+  private void courseUpdated(String tableName, HashMap<String, String> primaryKeys, HashMap<String, String> attributes) {
+    if (tableName.equals("course") && primaryKeys.containsKey("course_id"))
+      courseIndex.update(primaryKeys.get("course_id"), attributes);
+  }
+
+  /**
+  * Remove a deleted course from the search index
+  * @param tableName Table that was deleted from
+  * @param primaryKeys Primary key of the deleted tuple
+  */
+  private void courseDeleted(String tableName, HashMap<String, String> primaryKeys) {
+    if (tableName.equals("course") && primaryKeys.containsKey("course_id"))
+      courseIndex.delete(primaryKeys.get("course_id"));
+  }
+
+  /**
+  * Drop everything cached about a table after it was written
+  * @param tableName Table that was modified
+  */
+  private void tableWritten(String tableName) {
+    queryCache.invalidate(tableName);
+    if (snapshot != null && SNAPSHOT_TABLES.contains(tableName)) {
+      // the snapshot isn't read for this table until the write has been copied into it
+      snapshot.markStale(tableName);
+      refreshSnapshotSoon();
+    }
+  }
+
+  /**
+  * Keep the time conflict index in step with enrollments and sections written directly
+  * @param tableName Table that was modified
+  * @param studentID ID of the student whose enrollments changed, for takes (null if not known)
+  */
+  private void scheduleChanged(String tableName, String studentID) {
+    // the student's schedule is read again before their next registration
+    if (tableName.equals("takes"))
+      timeSlots.forget(studentID);
+    else if (tableName.equals("section"))
+      timeSlots.invalidate();
+  }
+
+  /**
+  * Recount the seats taken in sections whose takes rows were written directly instead of by the registration engine
+  * @param tableName Table that was modified
+  * @param sections Section keys (course_id, sec_id, semester, year) that were written, null for unknown sections
+  */
+  private void seatsChanged(String tableName, List<String[]> sections) {
+    if (!tableName.equals("takes") || sections.isEmpty())
+      return;
+    // a batch usually writes the same few sections over and over
+    LinkedHashMap<String, String[]> distinct = new LinkedHashMap<String, String[]>();
+    for (String[] section : sections)
+      distinct.put(section == null ? null : String.join("|", section), section);
+    if (!registrationEngine.recountSeats(new ArrayList<String[]>(distinct.values())))
+      lastError = registrationEngine.getLastError();
+  }
+
+  /**
+  * Get the section of an inserted takes tuple
+  * @param tupleValues Values of the tuple (ID, course_id, sec_id, semester, year, grade)
+  * @return The tuple's section key, or nothing if it isn't a takes tuple
+  */
+  private static List<String[]> takesSections(String[] tupleValues) {
+    if (tupleValues.length != 6)
+      return Collections.emptyList();
+    return Collections.singletonList(new String[] { tupleValues[1], tupleValues[2], tupleValues[3], tupleValues[4] });
+  }
+
+  /**
+  * Get the sections an updated or deleted takes tuple was in, and is in now
+  * @param primaryKeys Primary key of the tuple
+  * @param attributes New attribute values, null for a delete
+  * @return Section keys whose counts may have changed, null for a section that isn't fully known
+  */
+  private static List<String[]> takesSections(HashMap<String, String> primaryKeys, HashMap<String, String> attributes) {
+    List<String> sectionColumns = Arrays.asList("course_id", "sec_id", "semester", "year");
+    if (attributes == null)
+      return Collections.singletonList(sectionOf(primaryKeys, sectionColumns));
+    if (Collections.disjoint(attributes.keySet(), sectionColumns))
+      return Collections.emptyList();
+    HashMap<String, String> moved = new HashMap<String, String>(primaryKeys);
+    moved.putAll(attributes);
+    return Arrays.asList(sectionOf(primaryKeys, sectionColumns), sectionOf(moved, sectionColumns));
+  }
+
+  private static String[] sectionOf(Map<String, String> values, List<String> sectionColumns) {
+    String[] section = new String[sectionColumns.size()];
+    for (int i = 0; i < section.length; i++)
+      if ((section[i] = values.get(sectionColumns.get(i))) == null)
+        return null;
+    return section;
+  }
+
+  /**
+  * Replace a student's GPA summary row with the current totals from their graded courses
+  * @param studentID ID of the student
+  */
+  private void refreshGPASummary(String studentID) {
+    executePrepared("replace into `student_gpa` (`ID`, `quality_points`, `credit_hours`) select ?, coalesce(" + QUALITY_POINTS_SQL + ", 0), coalesce(sum(`credits`), 0) from `takes` natural join `course` where ID = ? and `grade` is not NULL", studentID, studentID);
+  }
+
   /**
   * Get the GPA and courses taken of the current user if they are a student
-  * @return see above
+  * @return see above, an empty transcript if the user is not a student
   */
-  public List<String> getTranscript() {
-    if (currentUser.getPermissions().getPosition() == UserPermission.Position.Student) {
-      List<String> transcript = new ArrayList<String>();
-      if (executeQuery(String.format("select * from `takes` natural join `course` where ID = %d and `grade` is not NULL order by year desc, case semester when 'Spring' then 1 when 'Summer' then 2 when 'Fall' then 3 end desc", currentUser.getID()))) {
-        List<String> takenCourses = retrieveAttributes("title", "course_id", "semester", "year", "grade", "credits");
-        double studentGPA = 0;
-        double qualityPoints = 0;
-        int totalCreditHours = 0;
-        for (String classTaken : takenCourses) {
-          String[] separate = classTaken.split(":");
-          String formatted = String.format("Took %s (%s) in %s of %s and received grade of '%s' | %s credits", separate[0], separate[1], separate[2], separate[3], separate[4], separate[5]);
-          transcript.add(formatted);
-          int creditHours = Integer.parseInt(separate[5]);
-          totalCreditHours += creditHours;
-          switch (separate[4]) {
-            case "A":
-            case "A+":
-            case "A-":
-              qualityPoints += 4.0 * creditHours;
-              break;
-            case "B":
-            case "B+":
-            case "B-":
-              qualityPoints += 3.0 * creditHours;
-              break;
-            case "C":
-            case "C+":
-            case "C-":
-              qualityPoints += 2.0 * creditHours;
-              break;
-            case "D":
-            case "D+":
-            case "D-":
-              qualityPoints += 1.0 * creditHours;
-              break;
-            default: // withdrawn or failed!
-              qualityPoints += 0.0;
-          }
-        }
-        if (totalCreditHours > 0) // we don't want to divide by zero!
-          studentGPA = qualityPoints / totalCreditHours;
-        transcript.add(0, "***Transcript for: " + currentUser.getName() + "***");
-        transcript.add(1, String.format("GPA: %.2f", studentGPA));
-      }
-      return transcript;
+  public Transcript getTranscript() {
+    return getTranscript(currentUser);
+  }
+
+  /**
+  * Get the GPA and courses taken of a student
+  * @param student User to get the transcript of
+  * @return see above, an empty transcript if the user is not a student
+  */
+  private Transcript getTranscript(User student) {
+    if (student != null && student.getPermissions().getPosition() == UserPermission.Position.Student) {
+      List<Transcript.Entry> takenCourses = executeQuery("select `title`, `course_id`, `semester`, `year`, `grade`, `credits` from `takes` natural join `course` where ID = ? and `grade` is not NULL order by year desc, case semester when 'Spring' then 1 when 'Summer' then 2 when 'Fall' then 3 end desc", Transcript.ENTRY_MAPPER, student.getID().toString());
+      if (takenCourses == null)
+        takenCourses = new ArrayList<Transcript.Entry>();
+      return new Transcript(student.getName(), getStudentGPA(student.getID()), takenCourses);
     }
     // not a student
-    return new ArrayList<String>();
+    return new Transcript();
+  }
+
+  /* ASYNC */
+
+  /**
+  * Run a lookup on the async executor
+  * (package visible so @see PagedListing can read ahead)
+  * @param lookup Lookup to run
+  * @return Future completed with the lookup's result
+  */
+  <T> CompletableFuture<T> runAsync(Supplier<T> lookup) {
+    return CompletableFuture.supplyAsync(lookup, asyncExecutor);
   }
 }
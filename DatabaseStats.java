@@ -0,0 +1,215 @@
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Per operation instrumentation for @see Database, grouped by SQL kind and table
+ * Registered as a JMX MBean and shown to staff by the "stats" menu
+ * @author Michael Snyder
+ */
+
+public class DatabaseStats implements DatabaseStatsMBean {
+  // sql strings are mostly constants, but don't let ad hoc commands grow the cache forever
+  private static final int MAX_CLASSIFIED = 4096;
+  private static final AtomicInteger instanceCount = new AtomicInteger();
+
+  private ConcurrentHashMap<String, OperationStats> operations;
+  private ConcurrentHashMap<String, String> classified;
+  private ConnectionPool connectionPool;
+  private QueryCache<?> queryCache;
+  private ObjectName objectName;
+
+  /**
+   * Constructor for empty statistics
+   * @param connectionPool Pool to report alongside the operations
+   * @param queryCache Cache to report alongside the operations
+   */
+  public DatabaseStats(ConnectionPool connectionPool, QueryCache<?> queryCache) {
+    this.connectionPool = connectionPool;
+    this.queryCache = queryCache;
+    operations = new ConcurrentHashMap<String, OperationStats>();
+    classified = new ConcurrentHashMap<String, String>();
+  }
+
+  /**
+   * Record one call
+   * @param sql SQL that was run
+   * @param elapsedNanos How long the call took
+   * @param rows Rows returned or affected
+   * @param failed True if the call threw
+   */
+  public void record(String sql, long elapsedNanos, long rows, boolean failed) {
+    long micros = elapsedNanos / 1000;
+    String name = classified.get(sql);
+    if (name == null) {
+      name = classify(sql);
+      if (classified.size() < MAX_CLASSIFIED)
+        classified.put(sql, name);
+    }
+
+    OperationStats stats = operations.get(name);
+    if (stats == null) {
+      OperationStats newStats = new OperationStats(name);
+      stats = operations.putIfAbsent(name, newStats);
+      if (stats == null)
+        stats = newStats;
+    }
+    stats.record(micros, rows, failed);
+  }
+
+  /**
+   * Name a statement by its kind and the table it works on, such as "insert takes"
+   * @param sql SQL statement
+   * @return Kind and table, the table is "-" if there isn't one
+   */
+  static String classify(String sql) {
+    String[] tokens = sql.trim().split("\\s+");
+    String kind = tokens[0].toLowerCase(Locale.ROOT);
+    String tableKeyword;
+    switch (kind) {
+      case "select":
+      case "delete":
+        tableKeyword = "from";
+        break;
+      case "insert":
+      case "replace":
+        tableKeyword = "into";
+        break;
+      case "create":
+      case "drop":
+      case "alter":
+        tableKeyword = "table";
+        break;
+      case "update":
+        return kind + " " + tableName(tokens, 1);
+      default:
+        return kind + " -";
+    }
+
+    for (int i = 1; i < tokens.length - 1; i++) {
+      if (tokens[i].equalsIgnoreCase(tableKeyword)) {
+        int tableIndex = i + 1;
+        // create table if not exists `name`
+        while (tableIndex < tokens.length - 1 && (tokens[tableIndex].equalsIgnoreCase("if") || tokens[tableIndex].equalsIgnoreCase("not") || tokens[tableIndex].equalsIgnoreCase("exists")))
+          tableIndex++;
+        return kind + " " + tableName(tokens, tableIndex);
+      }
+    }
+    return kind + " -";
+  }
+
+  /**
+   * Get the bare table name out of a token such as `section_seats`(
+   * @param tokens SQL split on whitespace
+   * @param index Token holding the table name
+   * @return Table name, "-" if there isn't one
+   */
+  private static String tableName(String[] tokens, int index) {
+    if (index >= tokens.length)
+      return "-";
+    StringBuilder sb = new StringBuilder();
+    for (char C : tokens[index].toCharArray()) {
+      if (C == '`')
+        continue;
+      if (!Character.isLetterOrDigit(C) && C != '_')
+        break;
+      sb.append(C);
+    }
+    return sb.length() == 0 ? "-" : sb.toString();
+  }
+
+  /**
+   * Get every operation seen so far, busiest first
+   * @return Snapshot of the operations
+   */
+  public List<OperationStats> getOperationStats() {
+    List<OperationStats> snapshot = new ArrayList<OperationStats>(operations.values());
+    Collections.sort(snapshot, new Comparator<OperationStats>() {
+      public int compare(OperationStats A, OperationStats B) {
+        return Long.compare(B.getCount(), A.getCount());
+      }
+    });
+    return snapshot;
+  }
+
+  public long getCallCount() {
+    long total = 0;
+    for (OperationStats stats : operations.values())
+      total += stats.getCount();
+    return total;
+  }
+
+  public long getErrorCount() {
+    long total = 0;
+    for (OperationStats stats : operations.values())
+      total += stats.getErrorCount();
+    return total;
+  }
+
+  public long getRowCount() {
+    long total = 0;
+    for (OperationStats stats : operations.values())
+      total += stats.getRowCount();
+    return total;
+  }
+
+  public String[] getOperations() {
+    List<OperationStats> snapshot = getOperationStats();
+    String[] lines = new String[snapshot.size()];
+    for (int i = 0; i < lines.length; i++)
+      lines[i] = snapshot.get(i).toString();
+    return lines;
+  }
+
+  public String getConnectionPool() {
+    return connectionPool.toString();
+  }
+
+  public String getQueryCache() {
+    return queryCache.toString();
+  }
+
+  public void reset() {
+    for (OperationStats stats : operations.values())
+      stats.reset();
+  }
+
+  /**
+   * Register with the platform MBean server, failures are ignored since the CLI can still show the stats
+   */
+  public void register() {
+    if (objectName != null)
+      return;
+    try {
+      objectName = new ObjectName("csc3300:type=DatabaseStats,id=" + instanceCount.incrementAndGet());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    }
+    catch (JMException E) {
+      objectName = null;
+    }
+  }
+
+  /**
+   * Unregister from the platform MBean server
+   */
+  public void unregister() {
+    if (objectName == null)
+      return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+    catch (JMException E) {
+      // already gone
+    }
+    objectName = null;
+  }
+}
@@ -0,0 +1,23 @@
+/**
+ * JMX view of @see DatabaseStats
+ * @author Michael Snyder
+ */
+
+public interface DatabaseStatsMBean {
+  long getCallCount();
+
+  long getErrorCount();
+
+  long getRowCount();
+
+  /**
+   * One summary line per SQL kind and table (calls, errors, rows and latency percentiles)
+   */
+  String[] getOperations();
+
+  String getConnectionPool();
+
+  String getQueryCache();
+
+  void reset();
+}
@@ -1,6 +1,8 @@
 import java.io.BufferedReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.NumberFormatException;
 
 /**
@@ -13,19 +15,39 @@ public class InputReader {
 
   private static InputReader instance;
   private BufferedReader buffInput;
+  private PrintStream promptOutput;
+  private boolean endOfInput;
 
   /**
    * Get the input reader
    * @return InputReader Singleton
    */
-  public static InputReader getReader() {
+  public static synchronized InputReader getReader() {
     if (instance == null)
       instance = new InputReader();
     return instance;
   }
 
   private InputReader() {
-    buffInput = new BufferedReader(new InputStreamReader(System.in));
+    this(System.in, System.out);
+  }
+
+  /**
+   * Constructor to read from a stream other than cin (such as a session socket)
+   * @param inputStream Stream to read input from
+   * @param promptOutput Stream to print prompts to
+   */
+  public InputReader(InputStream inputStream, PrintStream promptOutput) {
+    buffInput = new BufferedReader(new InputStreamReader(inputStream));
+    this.promptOutput = promptOutput;
+  }
+
+  /**
+   * Check if there is no more input to read (the stream was closed)
+   * @return True if the input has ended, false otherwise
+   */
+  public boolean isEndOfInput() {
+    return endOfInput;
   }
 
   /**
@@ -34,14 +56,18 @@ public class InputReader {
    * @return Input from user via cin
    */
   public String readString(String prompt) {
-    System.out.print(prompt);
+    promptOutput.print(prompt);
+    promptOutput.flush();
     try {
       String inputStr = buffInput.readLine();
-      if (inputStr == null)
+      if (inputStr == null) {
+        endOfInput = true;
         inputStr = "";
+      }
       return inputStr;
     }
     catch (IOException E) {
+      endOfInput = true;
       return "";
     }
   }
@@ -50,10 +76,12 @@ public class InputReader {
    * Prompt the user to enter an unsigned integer (-1 means invalid)
    * More of a convenience menthod for the CLI
    * @param prompt String to print out to the user
-   * @return Unsigned integer the user entered if valid, -1 otherwise
+   * @return Unsigned integer the user entered if valid, -1 otherwise (0 once the input has ended so menus return)
    */
   public int readUnsignedInt(String prompt) {
     String input = readString(prompt);
+    if (endOfInput)
+      return 0;
     try {
     	int num = Integer.parseInt(input);
     	if (num < 0)
@@ -67,20 +95,11 @@ public class InputReader {
 
   /**
    * Static method to prompt the user to enter an input ( does not need an instance of the class)
+   * Reads through the singleton, a new reader per call would throw away input it had already buffered
    * @param prompt String to print out to the user
    * @return Input from the user via cin
    */
   public static String _readString(String prompt) {
-    BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in));
-    System.out.print(prompt);
-    try {
-      String inputStr = userInput.readLine();
-      if (inputStr == null)
-        inputStr = "";
-      return inputStr;
-    }
-    catch (IOException E) {
-      return "";
-    }
+    return getReader().readString(prompt);
   }
 }
@@ -0,0 +1,119 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of latencies in microseconds, in the style of an HDR histogram
+ * Each power of two range is split into 16 buckets, so any recorded value is within ~6% of its bucket
+ * @author Michael Snyder
+ */
+
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // values below 16 get a bucket each, then 16 buckets for every power of two up to 2^63
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private AtomicLongArray counts;
+  private LongAdder totalCount;
+  private LongAdder totalMicros;
+  private LongAccumulator maxMicros;
+
+  public LatencyHistogram() {
+    counts = new AtomicLongArray(BUCKET_COUNT);
+    totalCount = new LongAdder();
+    totalMicros = new LongAdder();
+    maxMicros = new LongAccumulator(Math::max, 0);
+  }
+
+  /**
+   * Record one latency
+   * @param micros Latency in microseconds, negative values are recorded as 0
+   */
+  public void record(long micros) {
+    if (micros < 0)
+      micros = 0;
+    counts.incrementAndGet(bucketFor(micros));
+    totalCount.increment();
+    totalMicros.add(micros);
+    maxMicros.accumulate(micros);
+  }
+
+  /**
+   * Get the latency that the given percentage of recorded latencies are at or below
+   * @param percentile Percentile between 0 and 100
+   * @return Latency in microseconds (the low edge of its bucket), 0 if nothing was recorded
+   */
+  public long getPercentile(double percentile) {
+    long[] snapshot = new long[BUCKET_COUNT];
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    if (count == 0)
+      return 0;
+
+    long target = Math.max(1, (long)Math.ceil(percentile / 100.0 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += snapshot[i];
+      if (seen >= target)
+        return bucketValue(i);
+    }
+    return getMax();
+  }
+
+  public long getCount() {
+    return totalCount.sum();
+  }
+
+  /**
+   * Get the mean latency
+   * @return Mean in microseconds, 0 if nothing was recorded
+   */
+  public double getMean() {
+    long count = totalCount.sum();
+    return count == 0 ? 0 : (double)totalMicros.sum() / count;
+  }
+
+  public long getMax() {
+    return maxMicros.get();
+  }
+
+  /**
+   * Forget every recorded latency
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++)
+      counts.set(i, 0);
+    totalCount.reset();
+    totalMicros.reset();
+    maxMicros.reset();
+  }
+
+  /**
+   * Find the bucket a value is counted in
+   * @param value Non-negative value
+   * @return Bucket index
+   */
+  private static int bucketFor(long value) {
+    if (value < SUB_BUCKETS)
+      return (int)value;
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int)(value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Get the smallest value counted in a bucket
+   * @param bucket Bucket index
+   * @return Low edge of the bucket
+   */
+  private static long bucketValue(int bucket) {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+    int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    return (long)(SUB_BUCKETS | bucket % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS);
+  }
+}
@@ -0,0 +1,70 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, row and error counts for one kind of SQL operation on one table, such as "select section"
+ * @author Michael Snyder
+ */
+
+public class OperationStats {
+  private String name;
+  private LatencyHistogram latency;
+  private LongAdder rowCount;
+  private LongAdder errorCount;
+
+  /**
+   * Constructor for an operation with nothing recorded yet
+   * @param name SQL kind and table, such as "select section"
+   */
+  public OperationStats(String name) {
+    this.name = name;
+    latency = new LatencyHistogram();
+    rowCount = new LongAdder();
+    errorCount = new LongAdder();
+  }
+
+  /**
+   * Record one call of the operation
+   * @param micros How long the call took in microseconds
+   * @param rows Rows returned or affected
+   * @param failed True if the call threw
+   */
+  public void record(long micros, long rows, boolean failed) {
+    latency.record(micros);
+    if (rows > 0)
+      rowCount.add(rows);
+    if (failed)
+      errorCount.increment();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public LatencyHistogram getLatency() {
+    return latency;
+  }
+
+  public long getCount() {
+    return latency.getCount();
+  }
+
+  public long getRowCount() {
+    return rowCount.sum();
+  }
+
+  public long getErrorCount() {
+    return errorCount.sum();
+  }
+
+  public void reset() {
+    latency.reset();
+    rowCount.reset();
+    errorCount.reset();
+  }
+
+  public String toString() {
+    return String.format("%s: calls=%d errors=%d rows=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms",
+      name, getCount(), getErrorCount(), getRowCount(), latency.getMean() / 1000.0,
+      latency.getPercentile(50) / 1000.0, latency.getPercentile(99) / 1000.0, latency.getMax() / 1000.0);
+  }
+}
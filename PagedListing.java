@@ -0,0 +1,186 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Pages through a table in primary key order with keyset pagination
+ * Every page is read as one range of the key's index starting from the key of the row next to it,
+ * so a page deep in the table costs the same as the first. The page after the current one is
+ * read in the background while the user looks at the current one
+ * @author Michael Snyder
+ */
+
+public class PagedListing {
+  private Database database;
+  private String tableName;
+  private String[] keyColumns;
+  private String[] fields;
+  private int pageSize;
+
+  private List<TableRow> page;
+  private int pageNumber;
+  private boolean hasNext;
+  private boolean hasPrevious;
+
+  // the page after the current one, read ahead of time
+  private TableRow prefetchedAfter;
+  private CompletableFuture<List<TableRow>> prefetched;
+
+  /**
+   * Constructor for a listing positioned before the first page
+   * @param database Database to read from
+   * @param tableName Table to list
+   * @param keyColumns Primary key attribute titles, they must be the first fields
+   * @param pageSize Rows per page
+   * @param fields Attribute titles to list, starting with the key
+   */
+  public PagedListing(Database database, String tableName, String[] keyColumns, int pageSize, String... fields) {
+    for (int i = 0; i < keyColumns.length; i++)
+      if (i >= fields.length || !keyColumns[i].equals(fields[i]))
+        throw new IllegalArgumentException("The key has to be the first fields");
+    this.database = database;
+    this.tableName = tableName;
+    this.keyColumns = keyColumns;
+    this.fields = fields;
+    this.pageSize = Math.max(1, pageSize);
+    page = new ArrayList<TableRow>();
+  }
+
+  /**
+   * Move to the first page
+   * @return Rows of the first page
+   */
+  public List<TableRow> first() {
+    List<TableRow> rows = read(null, false);
+    pageNumber = 1;
+    hasPrevious = false;
+    return show(rows);
+  }
+
+  /**
+   * Move to the next page, if there is one
+   * @return Rows of the next page (the current page if this is the last one)
+   */
+  public List<TableRow> next() {
+    if (!hasNext)
+      return page;
+
+    TableRow last = page.get(page.size() - 1);
+    List<TableRow> rows = null;
+    if (prefetched != null && prefetchedAfter == last) {
+      try {
+        rows = prefetched.get();
+      }
+      catch (InterruptedException E) {
+        Thread.currentThread().interrupt();
+      }
+      catch (ExecutionException E) {
+        // read it again below
+      }
+    }
+    if (rows == null)
+      rows = read(last, false);
+
+    pageNumber++;
+    hasPrevious = true;
+    return show(rows);
+  }
+
+  /**
+   * Move to the previous page, if there is one
+   * @return Rows of the previous page (the current page if this is the first one)
+   */
+  public List<TableRow> previous() {
+    if (!hasPrevious)
+      return page;
+
+    List<TableRow> rows = read(page.get(0), true);
+    // fewer rows than a page means rows were deleted, start over from the top
+    if (rows.size() < pageSize)
+      return first();
+
+    // going backwards the extra row is the first one
+    hasPrevious = rows.size() > pageSize;
+    page = hasPrevious ? rows.subList(1, rows.size()) : rows;
+    pageNumber = hasPrevious ? Math.max(2, pageNumber - 1) : 1;
+    hasNext = true;
+    startPrefetch();
+    return page;
+  }
+
+  public List<TableRow> getPage() {
+    return page;
+  }
+
+  public int getPageNumber() {
+    return pageNumber;
+  }
+
+  public boolean hasNext() {
+    return hasNext;
+  }
+
+  public boolean hasPrevious() {
+    return hasPrevious;
+  }
+
+  /**
+   * Make the rows the current page, one extra row read past the page only says there is more
+   * @param rows Page rows in key order, plus one if there are more
+   * @return The page rows
+   */
+  private List<TableRow> show(List<TableRow> rows) {
+    hasNext = rows.size() > pageSize;
+    page = hasNext ? rows.subList(0, pageSize) : rows;
+    startPrefetch();
+    return page;
+  }
+
+  /**
+   * Start reading the page after the current one in the background
+   */
+  private void startPrefetch() {
+    if (!hasNext) {
+      prefetched = null;
+      prefetchedAfter = null;
+      return;
+    }
+    final TableRow last = page.get(page.size() - 1);
+    if (prefetchedAfter == last)
+      return;
+    prefetchedAfter = last;
+    prefetched = database.runAsync(() -> read(last, false));
+  }
+
+  /**
+   * Read a page (plus one row) next to a row
+   * @param boundary Row next to the page, null for the first page
+   * @param backwards True to read the rows before the boundary instead of after it
+   * @return Rows in key order, an empty list if the query failed
+   */
+  private List<TableRow> read(TableRow boundary, boolean backwards) {
+    QueryOptions options = new QueryOptions();
+    if (boundary != null) {
+      String[] key = new String[keyColumns.length];
+      for (int i = 0; i < key.length; i++)
+        key[i] = boundary.getString(i);
+      if (backwards)
+        options.whereBefore(keyColumns, key);
+      else
+        options.whereAfter(keyColumns, key);
+    }
+    for (String column : keyColumns)
+      options.orderBy(column, backwards);
+    options.limit(pageSize + 1);
+
+    List<TableRow> rows = database.getTableInformation(tableName, options, fields);
+    if (!backwards)
+      return rows;
+    // read nearest first, so put them back in key order
+    List<TableRow> reversed = new ArrayList<TableRow>(rows);
+    Collections.reverse(reversed);
+    return reversed;
+  }
+}
@@ -0,0 +1,226 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wrapper around a physical connection handed out by @see ConnectionPool
+ * Keeps track of when the connection was last used and which catalog it is on,
+ * and caches the prepared statements created on it
+ * @author Michael Snyder
+ */
+
+public class PooledConnection {
+  private Connection connection;
+  private String catalog;
+  private long lastUsed;
+  private StatementCache statementCache;
+
+  /**
+   * Least recently used cache of prepared statements keyed by their SQL text
+   * Evicted statements are closed so the server can free them
+   */
+  private static class StatementCache extends LinkedHashMap<String, PreparedStatement> {
+    private static final long serialVersionUID = 412342326837574725L;
+    private int maxSize;
+
+    public StatementCache(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+      if (size() <= maxSize)
+        return false;
+      try {
+        eldest.getValue().close();
+      }
+      catch (SQLException E) {
+        // nothing else we can do with it
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Constructor to wrap a freshly opened connection
+   * @param connection Physical connection to the SQL server
+   * @param statementCacheSize Maximum number of prepared statements to keep open
+   */
+  public PooledConnection(Connection connection, int statementCacheSize) {
+    this.connection = connection;
+    this.lastUsed = System.currentTimeMillis();
+    this.statementCache = new StatementCache(statementCacheSize);
+  }
+
+  /**
+   * Get the underlying connection
+   * @return The physical connection
+   */
+  public Connection getConnection() {
+    return connection;
+  }
+
+  /**
+   * Get a prepared statement for the given SQL, reusing a previously prepared one if possible
+   * The statement must not be closed by the caller
+   * @param sql SQL with '?' placeholders
+   * @return Prepared statement with its parameters cleared
+   * @throws SQLException If the statement could not be prepared
+   */
+  public PreparedStatement prepare(String sql) throws SQLException {
+    PreparedStatement statement = statementCache.get(sql);
+    if (statement == null || statement.isClosed()) {
+      statement = connection.prepareStatement(sql);
+      statementCache.put(sql, statement);
+    }
+    else
+      statement.clearParameters();
+    return statement;
+  }
+
+  /**
+   * Run a statement with no result on a cached prepared statement, and record it
+   * @param recorder Records the statement
+   * @param sql Statement with '?' placeholders
+   * @param parameters Values bound to the placeholders in order
+   * @return Rows affected
+   * @throws SQLException If the statement failed
+   */
+  public int update(CallRecorder recorder, String sql, String... parameters) throws SQLException {
+    long startNanos = System.nanoTime();
+    try {
+      PreparedStatement statement = prepare(sql);
+      bind(statement, parameters);
+      int rows = statement.executeUpdate();
+      recorder.record(sql, parameters, startNanos, rows, false);
+      return rows;
+    }
+    catch (SQLException E) {
+      recorder.record(sql, parameters, startNanos, 0, true);
+      throw E;
+    }
+  }
+
+  /**
+   * Run a query on a cached prepared statement and map every row, and record it
+   * @param recorder Records the query
+   * @param sql Query with '?' placeholders
+   * @param mapper Converts each row, reading columns by index
+   * @param parameters Values bound to the placeholders in order
+   * @return Mapped rows
+   * @throws SQLException If the query failed
+   */
+  public <T> List<T> query(CallRecorder recorder, String sql, RowMapper<T> mapper, String... parameters) throws SQLException {
+    long startNanos = System.nanoTime();
+    List<T> rows = new ArrayList<T>();
+    try {
+      PreparedStatement statement = prepare(sql);
+      bind(statement, parameters);
+      ResultSet result = statement.executeQuery();
+      try {
+        while (result.next())
+          rows.add(mapper.mapRow(result));
+      }
+      finally {
+        result.close();
+      }
+      recorder.record(sql, parameters, startNanos, rows.size(), false);
+      return rows;
+    }
+    catch (SQLException E) {
+      recorder.record(sql, parameters, startNanos, rows.size(), true);
+      throw E;
+    }
+  }
+
+  /**
+   * Run a query on a cached prepared statement, and record it
+   * @param recorder Records the query
+   * @param sql Query with '?' placeholders
+   * @param parameters Values bound to the placeholders in order
+   * @return True if the query returned a row, false otherwise
+   * @throws SQLException If the query failed
+   */
+  public boolean exists(CallRecorder recorder, String sql, String... parameters) throws SQLException {
+    long startNanos = System.nanoTime();
+    try {
+      PreparedStatement statement = prepare(sql);
+      bind(statement, parameters);
+      ResultSet result = statement.executeQuery();
+      try {
+        boolean found = result.next();
+        recorder.record(sql, parameters, startNanos, found ? 1 : 0, false);
+        return found;
+      }
+      finally {
+        result.close();
+      }
+    }
+    catch (SQLException E) {
+      recorder.record(sql, parameters, startNanos, 0, true);
+      throw E;
+    }
+  }
+
+  /**
+   * Bind string parameters to a prepared statement
+   * @param statement Statement to bind to
+   * @param parameters Values bound to the placeholders in order
+   * @throws SQLException If a parameter could not be bound
+   */
+  private static void bind(PreparedStatement statement, String... parameters) throws SQLException {
+    for (int i = 0; i < parameters.length; i++)
+      statement.setString(i + 1, parameters[i]);
+  }
+
+  /**
+   * Switch this connection to the given catalog if it is not already on it
+   * @param catalog Database to use
+   * @throws SQLException If the catalog does not exist
+   */
+  public void useCatalog(String catalog) throws SQLException {
+    if (catalog != null && !catalog.equals(this.catalog)) {
+      // statements prepared against the old catalog shouldn't be reused
+      for (PreparedStatement statement : statementCache.values())
+        statement.close();
+      statementCache.clear();
+      connection.setCatalog(catalog);
+      this.catalog = catalog;
+    }
+  }
+
+  /**
+   * Mark the connection as just used
+   */
+  public void touch() {
+    lastUsed = System.currentTimeMillis();
+  }
+
+  /**
+   * Get the time in milliseconds since this connection was last used
+   * @return Idle time in milliseconds
+   */
+  public long getIdleTime() {
+    return System.currentTimeMillis() - lastUsed;
+  }
+
+  /**
+   * Close the physical connection, ignoring any errors
+   */
+  public void close() {
+    try {
+      // closing the connection also closes the cached statements
+      statementCache.clear();
+      connection.close();
+    }
+    catch (SQLException E) {
+      return;
+    }
+  }
+}
@@ -1,47 +1,218 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Main class for the CSC3300 University Database CLI
  * Initializes the database connection, adds the project specific users
- * and starts the main CLI
+ * and starts the main CLI (or serves many CLI sessions with --server [port])
+ * or runs a script of operations without prompts (--batch [file], stdin by default, see @see BatchRunner)
+ * Calls slower than --slow-log <ms> are logged to slow-query.log
+ * Reference tables are kept in a local snapshot (--snapshot <file>, reference.snapshot by default, or --no-snapshot)
+ * that is read at startup and browsed read only if the server is down, and refreshed every --snapshot-refresh <seconds> (60 by default)
+ * With --lazy the login prompt is shown right away, while the driver loads and the connection is opened in the background
+ * Exports are written to, and imports read from, --export-dir <dir> (exports by default)
+ * With --gpa-summary GPAs are read from the student_gpa summary table, which is checked against takes (and rebuilt if needed) at startup
  * @author Michael Snyder
  */
 
 public class Program {
 
+	private static final int DEFAULT_SERVER_PORT = 3300;
+	private static final String DEFAULT_SNAPSHOT_FILE = "reference.snapshot";
+
 	public static void main(String[] args)
 	{
+		boolean serverMode = false;
+		boolean batchMode = false;
+		String batchFile = null;
+		int serverPort = DEFAULT_SERVER_PORT;
+		long slowQueryThreshold = -1;
+		double slowQuerySampleRate = 1.0;
+		Path snapshotFile = Paths.get(DEFAULT_SNAPSHOT_FILE);
+		boolean lazyStartup = false;
+		boolean gpaSummary = false;
+		Path exportDirectory = Paths.get("exports");
+		long snapshotRefreshSeconds = -1;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--server")) {
+					serverMode = true;
+					// the port is optional
+					if (i + 1 < args.length && !args[i + 1].startsWith("--"))
+						serverPort = Integer.parseInt(args[++i]);
+				}
+				else if (args[i].equals("--batch")) {
+					batchMode = true;
+					// stdin if no file is given
+					if (i + 1 < args.length && !args[i + 1].startsWith("--"))
+						batchFile = args[++i];
+				}
+				else if (args[i].equals("--slow-log") && i + 1 < args.length)
+					slowQueryThreshold = Long.parseLong(args[++i]);
+				else if (args[i].equals("--slow-log-sample") && i + 1 < args.length)
+					slowQuerySampleRate = Double.parseDouble(args[++i]);
+				else if (args[i].equals("--snapshot") && i + 1 < args.length)
+					snapshotFile = Paths.get(args[++i]);
+				else if (args[i].equals("--snapshot-refresh") && i + 1 < args.length)
+					snapshotRefreshSeconds = Long.parseLong(args[++i]);
+				else if (args[i].equals("--no-snapshot"))
+					snapshotFile = null;
+				else if (args[i].equals("--lazy"))
+					lazyStartup = true;
+				else if (args[i].equals("--gpa-summary"))
+					gpaSummary = true;
+				else if (args[i].equals("--export-dir") && i + 1 < args.length)
+					exportDirectory = Paths.get(args[++i]);
+				else {
+					System.out.println("Usage: Program [--server [port] | --batch [file] | --lazy] [--slow-log <ms> [--slow-log-sample <rate>]] [--snapshot <file> [--snapshot-refresh <seconds>] | --no-snapshot] [--gpa-summary] [--export-dir <dir>]");
+					return;
+				}
+			}
+		}
+		catch (NumberFormatException E) {
+			System.out.println("Invalid number: " + E.getMessage());
+			return;
+		}
+
+		// only someone typing at the login prompt gives the connection time to open
+		boolean connectLater = lazyStartup && !serverMode && !batchMode;
 		Database rootDatabase = null;
 		try {
-			rootDatabase = new Database("localhost", 3306, "root", "new-password");
+			// sessions share the pool, so give the server more connections to go around
+			if (serverMode)
+				rootDatabase = new Database("localhost", 3306, "root", "new-password", 4, 32, snapshotFile);
+			else if (connectLater)
+				rootDatabase = Database.connectLater("localhost", 3306, "root", "new-password", 1, 8, snapshotFile);
+			else
+				rootDatabase = new Database("localhost", 3306, "root", "new-password", 1, 8, snapshotFile);
 		}
 		catch (DatabaseException E) {
 			System.out.println(E.getMessage());
 			return;
 		}
+		rootDatabase.setExportDirectory(exportDirectory);
+		if (snapshotRefreshSeconds >= 0)
+			rootDatabase.setSnapshotRefreshInterval(snapshotRefreshSeconds);
+
+		// completes with an error message, or null once users can log in
+		CompletableFuture<String> startup;
+		if (connectLater) {
+			final Database lazyDatabase = rootDatabase;
+			final long threshold = slowQueryThreshold;
+			final double sampleRate = slowQuerySampleRate;
+			final boolean summary = gpaSummary;
+			startup = CompletableFuture.supplyAsync(() -> lazyDatabase.connect()
+				? prepareDatabase(lazyDatabase, threshold, sampleRate, summary)
+				: "Invalid database address/port or credentials entered.");
+		}
+		else {
+			String error = prepareDatabase(rootDatabase, slowQueryThreshold, slowQuerySampleRate, gpaSummary);
+			if (error != null) {
+				System.out.println(error);
+				rootDatabase.close();
+				return;
+			}
+			startup = CompletableFuture.completedFuture(null);
+		}
 
-		if (!rootDatabase.selectDatabase("university")) {
-			System.out.println("Could not select the university database. Exiting...");
+		if (serverMode) {
+			SessionServer sessionServer = new SessionServer(rootDatabase, serverPort, 500);
+			try {
+				sessionServer.run();
+			}
+			catch (IOException E) {
+				System.out.println("Could not start the session server: " + E.getMessage());
+			}
 			rootDatabase.close();
 			return;
 		}
 
-		// add our test users with specified permissions
-		rootDatabase.addUser("brown", "brown123", UserPermission.Position.Staff);
-		rootDatabase.addUser("grey", "grey123", UserPermission.Position.Student);
-
-		System.out.println("Welcome to the CSC3300 University Database CLI!\nPlease log in.");
-		boolean validAuth = false;
-		do {
-			String username = InputReader._readString("Enter username: ");
-			String password = InputReader._readString("Enter password: ");
-			validAuth = rootDatabase.authUser(username, password);
-			if (!validAuth)
-				System.out.println("Invalid credentials supplied. Please try again.");
-		} while (!validAuth);
+		if (batchMode) {
+			boolean batchSucceeded = false;
+			try {
+				BufferedReader batchInput = new BufferedReader(batchFile == null || batchFile.equals("-")
+					? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+					: new InputStreamReader(new FileInputStream(batchFile), StandardCharsets.UTF_8));
+				try {
+					// results are flushed in bulk, not per line
+					PrintStream batchOutput = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false, "UTF-8");
+					batchSucceeded = new BatchRunner(rootDatabase, batchOutput, 500).run(batchInput);
+				}
+				finally {
+					batchInput.close();
+				}
+			}
+			catch (IOException E) {
+				System.err.println("Could not read the batch: " + E.getMessage());
+			}
+			rootDatabase.close();
+			if (!batchSucceeded)
+				System.exit(1);
+			return;
+		}
 
+		final Database interactiveDatabase = rootDatabase;
 		UserInterface userInteraction = new UserInterface(rootDatabase);
-		userInteraction.mainMenu();
-
-		System.out.println("Thank you for using the CSC3300 University Database CLI!");
+		userInteraction.setStartup(startup.thenApply(error -> error == null && !interactiveDatabase.isOffline()));
+		if (!rootDatabase.isOffline() && userInteraction.loginMenu()) {
+			userInteraction.mainMenu();
+			System.out.println("Thank you for using the CSC3300 University Database CLI!");
+		}
+		else if (startup.join() != null)
+			System.out.println(startup.join());
+		// users can't be checked without the server, so all that's left is browsing the snapshot
+		else if (rootDatabase.isOffline()) {
+			System.out.println(String.format("The database server is unreachable. Browsing the local copy from %tc, read only.", rootDatabase.getSnapshotTime()));
+			rootDatabase.browseOffline();
+			userInteraction.mainMenu();
+		}
 		rootDatabase.close();
 	}
+
+	/**
+	 * Get a connected database ready for users to log in
+	 * @param rootDatabase Connected (or offline) database
+	 * @param slowQueryThreshold Log calls slower than this many milliseconds, negative for none
+	 * @param slowQuerySampleRate Fraction of the slow calls to log
+	 * @param gpaSummary True to read GPAs from the summary table
+	 * @return Message to exit with, null if the database is ready
+	 */
+	private static String prepareDatabase(Database rootDatabase, long slowQueryThreshold, double slowQuerySampleRate, boolean gpaSummary) {
+		if (!rootDatabase.selectDatabase("university") && !rootDatabase.isOffline())
+			return "Could not select the university database. Exiting...";
+
+		// slow queries go to slow-query.log in the working directory
+		rootDatabase.getSlowQueryLog().setThreshold(slowQueryThreshold);
+		rootDatabase.getSlowQueryLog().setSampleRate(slowQuerySampleRate);
+
+		// GPAs are read from a summary table if asked for, and we are allowed to create it
+		if (gpaSummary && !rootDatabase.isOffline() && !rootDatabase.enableGPASummary())
+			System.out.println("Could not set up the GPA summary, GPAs will be computed from takes.");
+
+		// nobody logs in while offline
+		if (rootDatabase.isOffline())
+			return null;
+
+		// users come from the users table, fall back to our test users only if there is no such table (or it is empty)
+		int userCount = rootDatabase.getUserCount();
+		if (userCount < 0)
+			return "Could not load the users table. Exiting...";
+		if (userCount == 0) {
+			rootDatabase.addUser("brown", "brown123", UserPermission.Position.Staff);
+			rootDatabase.addUser("grey", "grey123", UserPermission.Position.Student);
+		}
+		return null;
+	}
 }
@@ -0,0 +1,144 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded, time limited cache of query results used by @see Database
+ * Entries are tagged with the table they came from so writes can invalidate them
+ * @author Michael Snyder
+ */
+
+public class QueryCache<V> {
+  private int maxEntries;
+  private long timeToLive;
+  private LinkedHashMap<String, CachedResult<V>> entries;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+  private long invalidationCount;
+  private long generation;
+
+  private static class CachedResult<V> {
+    private String table;
+    private V value;
+    private long expiresAt;
+
+    public CachedResult(String table, V value, long expiresAt) {
+      this.table = table;
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * Constructor for an empty cache
+   * @param maxEntries Maximum number of results kept, least recently used are evicted first
+   * @param timeToLive How long a result is kept in milliseconds
+   */
+  public QueryCache(int maxEntries, long timeToLive) {
+    this.maxEntries = maxEntries;
+    this.timeToLive = timeToLive;
+    entries = new LinkedHashMap<String, CachedResult<V>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 412342326837574726L;
+
+      protected boolean removeEldestEntry(Map.Entry<String, CachedResult<V>> eldest) {
+        if (size() <= QueryCache.this.maxEntries)
+          return false;
+        evictionCount++;
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Get a cached result
+   * @param key Key the result was stored under
+   * @return The cached result, or null if it is missing or expired
+   */
+  public synchronized V get(String key) {
+    CachedResult<V> entry = entries.get(key);
+    if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+      entries.remove(key);
+      evictionCount++;
+      entry = null;
+    }
+
+    if (entry == null) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return entry.value;
+  }
+
+  /**
+   * Get the current generation, taken before running a query so a result read
+   * while the table was being written is not cached
+   * @return Number of invalidations so far
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Store a result, unless something was invalidated since it was read
+   * @param table Table the result was read from
+   * @param key Key to store the result under
+   * @param value Result to store
+   * @param readGeneration Generation from before the result was read
+   */
+  public synchronized void put(String table, String key, V value, long readGeneration) {
+    if (readGeneration != generation)
+      return;
+    entries.put(key, new CachedResult<V>(table, value, System.currentTimeMillis() + timeToLive));
+  }
+
+  /**
+   * Remove every result that was read from the table
+   * @param table Table that was modified
+   */
+  public synchronized void invalidate(String table) {
+    generation++;
+    Iterator<CachedResult<V>> entryIterator = entries.values().iterator();
+    while (entryIterator.hasNext()) {
+      if (entryIterator.next().table.equals(table)) {
+        entryIterator.remove();
+        invalidationCount++;
+      }
+    }
+  }
+
+  /**
+   * Remove every result
+   */
+  public synchronized void clear() {
+    generation++;
+    invalidationCount += entries.size();
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  public synchronized long getInvalidationCount() {
+    return invalidationCount;
+  }
+
+  public synchronized String toString() {
+    return String.format("entries=%d/%d hits=%d misses=%d evictions=%d invalidations=%d",
+      entries.size(), maxEntries, hitCount, missCount, evictionCount, invalidationCount);
+  }
+}
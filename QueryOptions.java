@@ -0,0 +1,164 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Structured where/order by/limit clauses for the queries built by @see Database
+ * Values are bound as parameters instead of being pasted into the SQL
+ * @author Michael Snyder
+ */
+
+public class QueryOptions {
+  private static final List<String> OPERATORS = Arrays.asList("=", "<>", "<", "<=", ">", ">=", "like");
+
+  private List<String> conditions;
+  private List<String> parameters;
+  private List<String> ordering;
+  private int limit = -1;
+
+  public QueryOptions() {
+    conditions = new ArrayList<String>();
+    parameters = new ArrayList<String>();
+    ordering = new ArrayList<String>();
+  }
+
+  /**
+   * Only return rows where the attribute compares to the value
+   * @param column Attribute title
+   * @param operator One of =, <>, <, <=, >, >=, like
+   * @param value Value to compare against
+   * @return This for chaining
+   */
+  public QueryOptions where(String column, String operator, String value) {
+    if (!OPERATORS.contains(operator))
+      throw new IllegalArgumentException("Unsupported operator: " + operator);
+    conditions.add(String.format("`%s` %s ?", checkColumn(column), operator));
+    parameters.add(value);
+    return this;
+  }
+
+  /**
+   * Only return rows where the attribute is NULL
+   * @param column Attribute title
+   * @return This for chaining
+   */
+  public QueryOptions whereNull(String column) {
+    conditions.add(String.format("`%s` is null", checkColumn(column)));
+    return this;
+  }
+
+  /**
+   * Only return rows where the attribute is not NULL
+   * @param column Attribute title
+   * @return This for chaining
+   */
+  public QueryOptions whereNotNull(String column) {
+    conditions.add(String.format("`%s` is not null", checkColumn(column)));
+    return this;
+  }
+
+  /**
+   * Only return rows whose key comes after the given key, for keyset pagination
+   * The condition is written out column by column with a leading range on the first column,
+   * so the server can read it as one range of the key's index
+   * @param columns Key attribute titles, most significant first
+   * @param values Key of the last row already seen
+   * @return This for chaining
+   */
+  public QueryOptions whereAfter(String[] columns, String[] values) {
+    return whereKey(columns, values, ">");
+  }
+
+  /**
+   * Only return rows whose key comes before the given key, for paging backwards
+   * @param columns Key attribute titles, most significant first
+   * @param values Key of the first row already seen
+   * @return This for chaining
+   */
+  public QueryOptions whereBefore(String[] columns, String[] values) {
+    return whereKey(columns, values, "<");
+  }
+
+  /**
+   * Build a keyset condition such as `a` >= ? and (`a` > ? or (`a` = ? and `b` > ?))
+   * @param columns Key attribute titles, most significant first
+   * @param values Key to compare against
+   * @param operator > or <
+   * @return This for chaining
+   */
+  private QueryOptions whereKey(String[] columns, String[] values, String operator) {
+    if (columns.length == 0 || columns.length != values.length)
+      throw new IllegalArgumentException("Key needs a value for every column");
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("`%s` %s= ?", checkColumn(columns[0]), operator));
+    parameters.add(values[0]);
+    sb.append(" and ");
+    for (int i = 0; i < columns.length - 1; i++) {
+      sb.append(String.format("(`%s` %s ? or (`%s` = ? and ", checkColumn(columns[i]), operator, columns[i]));
+      parameters.add(values[i]);
+      parameters.add(values[i]);
+    }
+    sb.append(String.format("`%s` %s ?", checkColumn(columns[columns.length - 1]), operator));
+    parameters.add(values[columns.length - 1]);
+    for (int i = 0; i < columns.length - 1; i++)
+      sb.append("))");
+    conditions.add(sb.toString());
+    return this;
+  }
+
+  /**
+   * Sort the rows by the attribute, in the order this is called
+   * @param column Attribute title
+   * @param descending True to sort largest first
+   * @return This for chaining
+   */
+  public QueryOptions orderBy(String column, boolean descending) {
+    ordering.add(String.format("`%s`%s", checkColumn(column), descending ? " desc" : ""));
+    return this;
+  }
+
+  /**
+   * Return at most this many rows
+   * @param limit Row count
+   * @return This for chaining
+   */
+  public QueryOptions limit(int limit) {
+    if (limit < 0)
+      throw new IllegalArgumentException("Invalid limit: " + limit);
+    this.limit = limit;
+    return this;
+  }
+
+  /**
+   * Append the where, order by and limit clauses to a query
+   * @param sb Query being built
+   */
+  public void appendTo(StringBuilder sb) {
+    for (int i = 0; i < conditions.size(); i++)
+      sb.append(i == 0 ? " where " : " and ").append(conditions.get(i));
+    for (int i = 0; i < ordering.size(); i++)
+      sb.append(i == 0 ? " order by " : ", ").append(ordering.get(i));
+    if (limit >= 0)
+      sb.append(" limit ").append(limit);
+  }
+
+  /**
+   * Get the values to bind, in the order their placeholders appear
+   * @return Parameter values
+   */
+  public String[] getParameters() {
+    return parameters.toArray(new String[0]);
+  }
+
+  /**
+   * Make sure an attribute title can be quoted with backticks
+   * @param column Attribute title
+   * @return The same title
+   */
+  private static String checkColumn(String column) {
+    if (column == null || column.length() == 0 || column.indexOf('`') >= 0)
+      throw new IllegalArgumentException("Invalid attribute title: " + column);
+    return column;
+  }
+}
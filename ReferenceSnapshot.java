@@ -0,0 +1,501 @@
+import java.io.IOException;
+
+import java.io.File;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local copy of small reference tables kept in a memory-mapped file, so they can be read
+ * at startup without a round trip to the server, and while the server is unreachable
+ * The file has a header, a directory of tables (name, change marker, offset and length) and each table's rows,
+ * every value being a varint length (0 for NULL) followed by its UTF-8 bytes. Tables are decoded the first
+ * time they are read. A refresh rewrites the file with the changed tables only, the bytes of the others
+ * are copied over as they are, and then renames it over the old one
+ * Windows won't replace a file that is mapped, so there the file is read into memory instead
+ * @author Michael Snyder
+ */
+
+public class ReferenceSnapshot {
+  private static final int MAGIC = 0x43534e50;
+  private static final int FORMAT_VERSION = 2;
+  private static final boolean MAP_FILE = File.separatorChar != '\\';
+
+  private Path file;
+  private volatile Contents contents;
+  private volatile Exception lastError;
+  // writes made to each table through this process, the snapshot is stale while they are ahead of it
+  private ConcurrentHashMap<String, AtomicLong> writeCounts;
+
+  /**
+   * One version of the file, replaced as a whole by a refresh
+   */
+  private static class Contents {
+    private ByteBuffer mapped;
+    private long generation;
+    private long writtenAt;
+    private LinkedHashMap<String, TableEntry> tables = new LinkedHashMap<String, TableEntry>();
+  }
+
+  private static class TableEntry {
+    private long changeMarker;
+    private int offset;
+    private int length;
+    private long writeCount;
+    private String[] columns;
+    private volatile List<TableRow> rows;
+  }
+
+  /**
+   * Constructor for a snapshot kept in a file, nothing is read until @see open
+   * @param file File to keep the snapshot in
+   */
+  public ReferenceSnapshot(Path file) {
+    this.file = file;
+    writeCounts = new ConcurrentHashMap<String, AtomicLong>();
+  }
+
+  /**
+   * Map the snapshot file if there is a valid one
+   * @return True if a snapshot was opened, false if there is none (or it is unreadable)
+   */
+  public boolean open() {
+    if (!Files.isRegularFile(file))
+      return false;
+    try {
+      contents = map(file);
+      return true;
+    }
+    catch (IOException | RuntimeException E) {
+      lastError = E;
+      return false;
+    }
+  }
+
+  /**
+   * Check if a snapshot has been opened or written
+   * @return True if tables can be read
+   */
+  public boolean isAvailable() {
+    return contents != null;
+  }
+
+  /**
+   * Get the last error the snapshot encountered
+   * @return Last exception, or null if no exception has occurred
+   */
+  public Exception getLastError() {
+    return lastError;
+  }
+
+  /**
+   * Get the version of the snapshot, it goes up by one every refresh that changes a table
+   * @return Generation, 0 if there is no snapshot
+   */
+  public long getGeneration() {
+    Contents current = contents;
+    return current == null ? 0 : current.generation;
+  }
+
+  /**
+   * Get when the snapshot was last written
+   * @return Milliseconds since the epoch, 0 if there is no snapshot
+   */
+  public long getWrittenAt() {
+    Contents current = contents;
+    return current == null ? 0 : current.writtenAt;
+  }
+
+  /**
+   * Get the change marker (update time) a table had on the server when it was copied
+   * @param table Table name
+   * @return Change marker, -1 if the table isn't in the snapshot or the server had none
+   */
+  public long getChangeMarker(String table) {
+    Contents current = contents;
+    TableEntry entry = current == null ? null : current.tables.get(table);
+    return entry == null ? -1 : entry.changeMarker;
+  }
+
+  /**
+   * Note that a table was written through this process, it won't be read until a refresh copies it again
+   * @param table Table name
+   */
+  public void markStale(String table) {
+    writeCount(table).incrementAndGet();
+  }
+
+  /**
+   * Get the number of writes made to a table so far, taken before reading it for @see replace
+   * @param table Table name
+   * @return Write count
+   */
+  public long getWriteCount(String table) {
+    return writeCount(table).get();
+  }
+
+  /**
+   * Check if a table is in the snapshot and hasn't been written since it was copied
+   * @param table Table name
+   * @return True if reading the table from the snapshot gives the same rows as the server (as of the last refresh)
+   */
+  public boolean isFresh(String table) {
+    Contents current = contents;
+    TableEntry entry = current == null ? null : current.tables.get(table);
+    return entry != null && entry.writeCount == writeCount(table).get();
+  }
+
+  /**
+   * Get the attribute titles of a table in the order its rows have them
+   * @param table Table name
+   * @return Attribute titles, null if the table isn't in the snapshot
+   */
+  public String[] getColumns(String table) {
+    Contents current = contents;
+    TableEntry entry = current == null ? null : current.tables.get(table);
+    return entry == null ? null : entry.columns;
+  }
+
+  /**
+   * Get every row of a table, decoding it from the file the first time
+   * @param table Table name
+   * @return Rows (not to be modified), null if the table isn't in the snapshot
+   */
+  public List<TableRow> getRows(String table) {
+    Contents current = contents;
+    TableEntry entry = current == null ? null : current.tables.get(table);
+    if (entry == null)
+      return null;
+    List<TableRow> rows = entry.rows;
+    if (rows == null) {
+      // decoding twice at once is harmless, both get the same rows
+      rows = Collections.unmodifiableList(decodeRows(current.mapped, entry));
+      entry.rows = rows;
+    }
+    return rows;
+  }
+
+  /**
+   * Check if a table in the snapshot has the same values as some rows
+   * @param table Table name
+   * @param rows Rows read from the server
+   * @return True if the rows are the same, in the same order
+   */
+  public boolean hasSameRows(String table, List<TableRow> rows) {
+    List<TableRow> current = getRows(table);
+    if (current == null || current.size() != rows.size())
+      return false;
+    for (int r = 0; r < rows.size(); r++) {
+      TableRow A = current.get(r);
+      TableRow B = rows.get(r);
+      for (int i = 0; i < A.size(); i++)
+        if (!Objects.equals(A.getString(i), B.getString(i)))
+          return false;
+    }
+    return true;
+  }
+
+  /**
+   * Write a new snapshot with some tables replaced, then switch to it
+   * @param changed Rows of the tables read again, by table name
+   * @param columns Attribute titles of the tables read again
+   * @param changeMarkers Change markers of the tables read again (-1 if the server had none)
+   * @param writeCountsRead Write counts of the tables read again, taken before reading them
+   * @return True if the snapshot was written, false otherwise
+   */
+  public synchronized boolean replace(Map<String, List<TableRow>> changed, Map<String, String[]> columns, Map<String, Long> changeMarkers, Map<String, Long> writeCountsRead) {
+    Contents current = contents;
+    List<String> names = new ArrayList<String>();
+    if (current != null)
+      names.addAll(current.tables.keySet());
+    for (String table : changed.keySet())
+      if (!names.contains(table))
+        names.add(table);
+
+    // encode the changed tables, the others are copied straight from the current file
+    Map<String, ByteBuffer> bodies = new LinkedHashMap<String, ByteBuffer>();
+    for (String table : names) {
+      if (changed.containsKey(table))
+        bodies.put(table, encodeRows(columns.get(table), changed.get(table)));
+      else {
+        TableEntry entry = current.tables.get(table);
+        ByteBuffer body = current.mapped.duplicate();
+        body.position(entry.offset).limit(entry.offset + entry.length);
+        bodies.put(table, body.slice());
+      }
+    }
+
+    // the directory size is known up front, so offsets can be worked out before writing it
+    int headerSize = 4 + 4 + 8 + 8 + 4;
+    for (String table : names)
+      headerSize += 2 + table.getBytes(StandardCharsets.UTF_8).length + 8 + 4 + 4;
+    ByteBuffer header = ByteBuffer.allocate(headerSize);
+    header.putInt(MAGIC).putInt(FORMAT_VERSION);
+    header.putLong(current == null ? 1 : current.generation + 1);
+    header.putLong(System.currentTimeMillis());
+    header.putInt(names.size());
+    int offset = headerSize;
+    for (String table : names) {
+      byte[] name = table.getBytes(StandardCharsets.UTF_8);
+      header.putShort((short)name.length).put(name);
+      header.putLong(changed.containsKey(table) ? changeMarkers.getOrDefault(table, -1L) : current.tables.get(table).changeMarker);
+      header.putInt(offset).putInt(bodies.get(table).remaining());
+      offset += bodies.get(table).remaining();
+    }
+    header.flip();
+
+    Path temporary = null;
+    try {
+      // a name of its own, other processes may be refreshing the same file
+      temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName() + ".", ".tmp");
+      FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+      try {
+        while (header.hasRemaining())
+          channel.write(header);
+        for (ByteBuffer body : bodies.values())
+          while (body.hasRemaining())
+            channel.write(body);
+        channel.force(true);
+      }
+      finally {
+        channel.close();
+      }
+      try {
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException E) {
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+
+      Contents replacement = map(file);
+      for (Map.Entry<String, TableEntry> entry : replacement.tables.entrySet()) {
+        String table = entry.getKey();
+        if (changed.containsKey(table)) {
+          entry.getValue().writeCount = writeCountsRead.getOrDefault(table, 0L);
+          // already have them decoded
+          entry.getValue().rows = Collections.unmodifiableList(new ArrayList<TableRow>(changed.get(table)));
+        }
+        else {
+          entry.getValue().writeCount = current.tables.get(table).writeCount;
+          entry.getValue().rows = current.tables.get(table).rows;
+        }
+      }
+      contents = replacement;
+      return true;
+    }
+    catch (IOException E) {
+      lastError = E;
+      if (temporary != null)
+        deleteQuietly(temporary);
+      return false;
+    }
+  }
+
+  private static void deleteQuietly(Path temporary) {
+    try {
+      Files.deleteIfExists(temporary);
+    }
+    catch (IOException E) {
+      // left for whoever looks in the directory
+    }
+  }
+
+  private AtomicLong writeCount(String table) {
+    AtomicLong count = writeCounts.get(table);
+    if (count == null) {
+      writeCounts.putIfAbsent(table, new AtomicLong());
+      count = writeCounts.get(table);
+    }
+    return count;
+  }
+
+  /**
+   * Map a snapshot file and read its header and directory
+   * Every table body is checked to be complete, so decoding it later can't run off its end
+   * @param file Snapshot file
+   * @return Contents of the file, tables are not decoded yet
+   * @throws IOException If the file could not be read, is not a snapshot or is corrupt
+   */
+  private static Contents map(Path file) throws IOException {
+    Contents mapped = new Contents();
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      ByteBuffer buffer;
+      // the mapping stays valid after the channel is closed
+      if (MAP_FILE)
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      else {
+        buffer = ByteBuffer.allocate((int)channel.size());
+        while (buffer.hasRemaining())
+          if (channel.read(buffer) < 0)
+            throw new IOException("Truncated snapshot file: " + file);
+        buffer.flip();
+      }
+      mapped.mapped = buffer;
+      if (buffer.remaining() < 28 || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION)
+        throw new IOException("Not a snapshot file: " + file);
+      mapped.generation = buffer.getLong();
+      mapped.writtenAt = buffer.getLong();
+      int tableCount = buffer.getInt();
+      for (int i = 0; i < tableCount; i++) {
+        byte[] name = new byte[buffer.getShort()];
+        buffer.get(name);
+        TableEntry entry = new TableEntry();
+        entry.changeMarker = buffer.getLong();
+        entry.offset = buffer.getInt();
+        entry.length = buffer.getInt();
+        if (entry.offset < 0 || entry.length < 0 || (long)entry.offset + entry.length > buffer.capacity() || !isComplete(buffer, entry))
+          throw new IOException("Truncated snapshot file: " + file);
+        entry.columns = decodeColumns(buffer, entry);
+        mapped.tables.put(new String(name, StandardCharsets.UTF_8), entry);
+      }
+    }
+    catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException E) {
+      throw new IOException("Corrupt snapshot file: " + file, E);
+    }
+    finally {
+      channel.close();
+    }
+    return mapped;
+  }
+
+  /**
+   * Encode a table as its column count, column titles, row count and then every value
+   */
+  private static ByteBuffer encodeRows(String[] columns, List<TableRow> rows) {
+    ByteBuffer body = ByteBuffer.allocate(4096);
+    body = putVarint(body, columns.length);
+    for (String column : columns)
+      body = putValue(body, column);
+    body = putVarint(body, rows.size());
+    for (TableRow row : rows)
+      for (int i = 0; i < columns.length; i++)
+        body = putValue(body, row.getString(i));
+    body.flip();
+    return body;
+  }
+
+  /**
+   * Walk a table's values without decoding them
+   * @return True if the body holds exactly the values its counts say it does
+   */
+  private static boolean isComplete(ByteBuffer mapped, TableEntry entry) {
+    ByteBuffer body = bodyOf(mapped, entry);
+    int columnCount = getVarint(body);
+    for (int i = 0; i < columnCount; i++)
+      skipValue(body);
+    long valueCount = (long)getVarint(body) * columnCount;
+    for (long v = 0; v < valueCount; v++)
+      skipValue(body);
+    return !body.hasRemaining();
+  }
+
+  private static ByteBuffer bodyOf(ByteBuffer mapped, TableEntry entry) {
+    ByteBuffer body = mapped.duplicate();
+    body.limit(entry.offset + entry.length).position(entry.offset);
+    return body;
+  }
+
+  private static String[] decodeColumns(ByteBuffer mapped, TableEntry entry) {
+    ByteBuffer body = bodyOf(mapped, entry);
+    String[] columns = new String[getVarint(body)];
+    for (int i = 0; i < columns.length; i++)
+      columns[i] = getValue(body);
+    return columns;
+  }
+
+  private static List<TableRow> decodeRows(ByteBuffer mapped, TableEntry entry) {
+    ByteBuffer body = bodyOf(mapped, entry);
+    int columnCount = getVarint(body);
+    for (int i = 0; i < columnCount; i++)
+      getValue(body);
+    int rowCount = getVarint(body);
+    List<TableRow> rows = new ArrayList<TableRow>(rowCount);
+    for (int r = 0; r < rowCount; r++) {
+      Object[] values = new Object[columnCount];
+      for (int i = 0; i < columnCount; i++)
+        values[i] = getValue(body);
+      rows.add(new TableRow(values));
+    }
+    return rows;
+  }
+
+  /**
+   * Append a value as a varint of its length plus one (0 for NULL) and its UTF-8 bytes
+   * @return The buffer, or a bigger copy of it if it had to grow
+   */
+  private static ByteBuffer putValue(ByteBuffer body, String value) {
+    if (value == null)
+      return putVarint(body, 0);
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    body = putVarint(body, bytes.length + 1);
+    body = ensureRemaining(body, bytes.length);
+    body.put(bytes);
+    return body;
+  }
+
+  private static String getValue(ByteBuffer body) {
+    int length = getVarint(body);
+    if (length == 0)
+      return null;
+    byte[] bytes = new byte[length - 1];
+    body.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void skipValue(ByteBuffer body) {
+    int length = getVarint(body);
+    if (length > 1)
+      body.position(body.position() + length - 1);
+  }
+
+  private static ByteBuffer putVarint(ByteBuffer body, int value) {
+    body = ensureRemaining(body, 5);
+    while ((value & ~0x7f) != 0) {
+      body.put((byte)((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    body.put((byte)value);
+    return body;
+  }
+
+  private static int getVarint(ByteBuffer body) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte B = body.get();
+      value |= (B & 0x7f) << shift;
+      if ((B & 0x80) == 0) {
+        if (value < 0)
+          throw new IllegalArgumentException("Negative length");
+        return value;
+      }
+      if (shift >= 28)
+        throw new IllegalArgumentException("Varint too long");
+    }
+  }
+
+  private static ByteBuffer ensureRemaining(ByteBuffer body, int needed) {
+    if (body.remaining() >= needed)
+      return body;
+    ByteBuffer bigger = ByteBuffer.allocate(Math.max(body.capacity() * 2, body.position() + needed));
+    body.flip();
+    bigger.put(body);
+    return bigger;
+  }
+}
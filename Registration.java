@@ -0,0 +1,48 @@
+/**
+ * Outcome of a student trying to register for a section, with the section it clashed with on a time conflict
+ * @author Michael Snyder
+ */
+
+public class Registration {
+  private RegistrationResult result;
+  // section as (course_id, sec_id), only set for TimeConflict
+  private String[] conflict;
+
+  /**
+   * Constructor for an outcome without a conflict
+   * @param result Outcome of the registration
+   */
+  public Registration(RegistrationResult result) {
+    this(result, null);
+  }
+
+  /**
+   * Constructor for an outcome that may have conflicted with another section
+   * @param result Outcome of the registration
+   * @param conflict Section the student's schedule clashed with as (course_id, sec_id), null if there was none
+   */
+  public Registration(RegistrationResult result, String[] conflict) {
+    this.result = result;
+    this.conflict = conflict;
+  }
+
+  /**
+   * Get the outcome of the registration
+   * @return See above
+   */
+  public RegistrationResult getResult() {
+    return result;
+  }
+
+  /**
+   * Get the section the registration conflicted with
+   * @return Section as (course_id, sec_id), null if the registration had no time conflict
+   */
+  public String[] getConflict() {
+    return conflict;
+  }
+
+  public String toString() {
+    return result.toString();
+  }
+}
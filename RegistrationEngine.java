@@ -0,0 +1,302 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.function.Function;
+
+/**
+ * Registers students for sections while enforcing each section's seat capacity
+ * Seats are claimed with a conditional update on a per-section counter, so concurrent
+ * registrations only contend on the seat row of the section they want
+ * @author Michael Snyder
+ */
+
+public class RegistrationEngine {
+  // MySQL error codes
+  private static final int DUPLICATE_ENTRY = 1062;
+  // seats given to sections that have no classroom recorded
+  private static final int UNKNOWN_ROOM_CAPACITY = 30;
+
+  private static final String SECTION_KEY = "`course_id` = ? and `sec_id` = ? and `semester` = ? and `year` = ?";
+  private static final String CLAIM_SEAT = "update `section_seats` set `enrolled` = `enrolled` + 1 where " + SECTION_KEY + " and `enrolled` < `capacity`";
+  private static final String RELEASE_SEAT = "update `section_seats` set `enrolled` = `enrolled` - 1 where " + SECTION_KEY + " and `enrolled` > 0";
+  // seats taken in section S, by enrolled students and by seats held for students being promoted off the waitlist
+  private static final String SEATS_TAKEN = "(select count(*) from `takes` T where T.`course_id` = S.`course_id` and T.`sec_id` = S.`sec_id` and T.`semester` = S.`semester` and T.`year` = S.`year`)"
+    + " + (select count(*) from `waitlist` W where W.`course_id` = S.`course_id` and W.`sec_id` = S.`sec_id` and W.`semester` = S.`semester` and W.`year` = S.`year` and W.`seat_held`)";
+  private static final String RECOUNT_SEATS = "update `section_seats` S set `enrolled` = " + SEATS_TAKEN;
+  private static final String RECOUNT_SECTION = RECOUNT_SEATS + " where " + SECTION_KEY;
+  private static final String FIND_SEATS = "select `enrolled` from `section_seats` where " + SECTION_KEY;
+  // seat rows are created the first time a section is registered for, sized to its classroom and counting the students already in it
+  private static final String CREATE_SEATS = "insert ignore into `section_seats` (`course_id`, `sec_id`, `semester`, `year`, `capacity`, `enrolled`) "
+    + "select S.`course_id`, S.`sec_id`, S.`semester`, S.`year`, coalesce(C.`capacity`, " + UNKNOWN_ROOM_CAPACITY + "), " + SEATS_TAKEN + " "
+    + "from `section` S left join `classroom` C on C.`building` = S.`building` and C.`room_number` = S.`room_number` where S.`course_id` = ? and S.`sec_id` = ? and S.`semester` = ? and S.`year` = ?";
+  // held until the registration commits, so registrations of the same student run one at a time
+  private static final String LOCK_STUDENT = "select 1 from `student` where `ID` = ? for update";
+  private static final String FIND_SCHEDULE = "select `course_id`, `sec_id` from `takes` where `ID` = ? and `semester` = ? and `year` = ?";
+  private static final String ENROLL = "insert into `takes` (`ID`, `course_id`, `sec_id`, `semester`, `year`, `grade`) values (?, ?, ?, ?, ?, NULL)";
+  private static final String FIND_ENROLLMENT = "select 1 from `takes` where `ID` = ? and " + SECTION_KEY;
+  private static final String FIND_ENROLLMENTS = "select `sec_id`, `semester`, `year` from `takes` where `ID` = ? and `course_id` = ? and `grade` is NULL";
+  private static final String UNENROLL = "delete from `takes` where `ID` = ? and " + SECTION_KEY + " and `grade` is NULL";
+
+  private ConnectionPool connectionPool;
+  private CallRecorder recorder;
+  private volatile boolean schemaReady;
+  private volatile Exception lastError;
+  private Waitlist waitlist;
+
+  /**
+   * Constructor for the engine
+   * @param connectionPool Pool to run registrations on
+   * @param recorder Records every statement the engine runs
+   */
+  public RegistrationEngine(ConnectionPool connectionPool, CallRecorder recorder) {
+    this.connectionPool = connectionPool;
+    this.recorder = recorder;
+  }
+
+  /**
+   * Set the waitlist that freed seats are handed to before being given back to the section
+   * Seat counts include the seats held on it, so it must be set before the engine is used
+   * @param waitlist Section waitlists
+   */
+  public void setWaitlist(Waitlist waitlist) {
+    this.waitlist = waitlist;
+  }
+
+  /**
+   * Get the last error the engine encountered
+   * @return Last exception, or null if no exception has occurred
+   */
+  public Exception getLastError() {
+    return lastError;
+  }
+
+  /**
+   * Register a student for a section, claiming a seat if one is free
+   * The student's schedule is read and checked for time conflicts inside the same transaction
+   * @param studentID ID of the student
+   * @param course_id ID of the course
+   * @param sec_id Section of the course
+   * @param semester Semester of the section
+   * @param year Year of the section
+   * @param findConflict Finds the section of the student's schedule, given as (course_id, sec_id) rows, that clashes with this one, null if none does
+   * @return Outcome of the registration
+   */
+  public Registration register(String studentID, String course_id, String sec_id, String semester, String year, Function<List<TableRow>, String[]> findConflict) {
+    if (!ensureSchema())
+      return new Registration(RegistrationResult.Failed);
+
+    PooledConnection registerConnection = null;
+    try {
+      registerConnection = connectionPool.borrow();
+      Connection connection = registerConnection.getConnection();
+      connection.setAutoCommit(false);
+
+      // creating a missing seat row commits, which ends the transaction, so the student is locked and checked again after it
+      for (boolean seatsCreated = false; ; seatsCreated = true) {
+        if (!registerConnection.exists(recorder, LOCK_STUDENT, studentID)) {
+          connection.rollback();
+          return new Registration(RegistrationResult.NoSuchStudent);
+        }
+        // read after the lock, so enrollments committed by another session of the student are seen
+        List<TableRow> schedule = registerConnection.query(recorder, FIND_SCHEDULE, new RowMapper<TableRow>() {
+          public TableRow mapRow(ResultSet section) throws SQLException {
+            return new TableRow(2).load(section);
+          }
+        }, studentID, semester, year);
+        String[] conflict = findConflict.apply(schedule);
+        if (conflict != null) {
+          connection.rollback();
+          return new Registration(RegistrationResult.TimeConflict, conflict);
+        }
+
+        if (claimSeat(registerConnection, course_id, sec_id, semester, year))
+          break;
+        connection.rollback();
+        // either the section doesn't have a seat row yet, doesn't exist, or is full
+        if (seatsCreated || !createSeats(registerConnection, course_id, sec_id, semester, year))
+          return new Registration(!seatsExist(registerConnection, course_id, sec_id, semester, year) ? RegistrationResult.NoSuchSection : fullOrEnrolled(registerConnection, studentID, course_id, sec_id, semester, year));
+      }
+
+      try {
+        registerConnection.update(recorder, ENROLL, studentID, course_id, sec_id, semester, year);
+      }
+      catch (SQLException E) {
+        // gives the seat back
+        connection.rollback();
+        if (E.getErrorCode() == DUPLICATE_ENTRY)
+          return new Registration(RegistrationResult.AlreadyEnrolled);
+        throw E;
+      }
+
+      connection.commit();
+      return new Registration(RegistrationResult.Registered);
+    }
+    catch (SQLException E) {
+      lastError = E;
+      return new Registration(RegistrationResult.Failed);
+    }
+    finally {
+      connectionPool.release(registerConnection);
+    }
+  }
+
+  /**
+   * Drop a student's ungraded enrollments in a course and give their seats back
+   * (or hand them to the next student on the section's waitlist)
+   * @param studentID ID of the student
+   * @param course_id ID of the course
+   * @return Keys (sec_id, semester, year) of the sections dropped, null if the drop failed
+   */
+  public List<String[]> drop(String studentID, String course_id) {
+    if (!ensureSchema())
+      return null;
+
+    PooledConnection dropConnection = null;
+    try {
+      dropConnection = connectionPool.borrow();
+      Connection connection = dropConnection.getConnection();
+      connection.setAutoCommit(false);
+
+      List<String[]> dropped = dropConnection.query(recorder, FIND_ENROLLMENTS, new RowMapper<String[]>() {
+        public String[] mapRow(ResultSet enrollment) throws SQLException {
+          return new String[] { enrollment.getString(1), enrollment.getString(2), enrollment.getString(3) };
+        }
+      }, studentID, course_id);
+
+      List<String> heldFor = new ArrayList<String>();
+      List<String[]> heldSections = new ArrayList<String[]>();
+      for (String[] section : dropped) {
+        if (dropConnection.update(recorder, UNENROLL, studentID, course_id, section[0], section[1], section[2]) > 0) {
+          String[] sectionKey = new String[] { course_id, section[0], section[1], section[2] };
+          String next = passSeatOn(dropConnection, sectionKey);
+          if (next != null) {
+            heldFor.add(next);
+            heldSections.add(sectionKey);
+          }
+        }
+      }
+
+      connection.commit();
+      for (int i = 0; i < heldFor.size(); i++)
+        waitlist.seatHeld(heldFor.get(i), heldSections.get(i));
+      return dropped;
+    }
+    catch (SQLException E) {
+      lastError = E;
+      return null;
+    }
+    finally {
+      connectionPool.release(dropConnection);
+    }
+  }
+
+  /**
+   * Hand a seat that is still claimed to the first student waiting for the section, or give it back if nobody is
+   * Runs in the caller's transaction, so the seat is never left claimed without a student it is held for
+   * @param seatConnection Connection of the transaction the seat is claimed in
+   * @param section Section key (course_id, sec_id, semester, year)
+   * @return ID of the student the seat is now held for, null if it was given back
+   * @throws SQLException If the seat could not be handed off or given back
+   */
+  public String passSeatOn(PooledConnection seatConnection, String[] section) throws SQLException {
+    String heldFor = waitlist == null ? null : waitlist.holdSeat(seatConnection, section);
+    if (heldFor == null)
+      seatConnection.update(recorder, RELEASE_SEAT, section);
+    return heldFor;
+  }
+
+  /**
+   * Recount the students in sections whose takes rows were written without going through the engine
+   * Each seat row is locked while it is counted, so registrations in flight are counted once
+   * @param sections Section keys (course_id, sec_id, semester, year), a null key recounts every section
+   * @return True if the sections were recounted, false otherwise
+   */
+  public boolean recountSeats(List<String[]> sections) {
+    if (!ensureSchema())
+      return false;
+
+    PooledConnection recountConnection = null;
+    try {
+      recountConnection = connectionPool.borrow();
+      if (sections.contains(null)) {
+        recountConnection.update(recorder, RECOUNT_SEATS);
+        return true;
+      }
+      for (String[] section : sections)
+        recountConnection.update(recorder, RECOUNT_SECTION, section);
+      return true;
+    }
+    catch (SQLException E) {
+      lastError = E;
+      return false;
+    }
+    finally {
+      connectionPool.release(recountConnection);
+    }
+  }
+
+  /**
+   * Try to take one seat in the section
+   * @return True if a seat was taken, false if the section is full or has no seat row
+   */
+  private boolean claimSeat(PooledConnection registerConnection, String course_id, String sec_id, String semester, String year) throws SQLException {
+    return registerConnection.update(recorder, CLAIM_SEAT, course_id, sec_id, semester, year) > 0;
+  }
+
+  /**
+   * Work out why a seat couldn't be claimed in a section that exists
+   * A student already in a full section is told so, instead of being put on its waitlist
+   * @return AlreadyEnrolled if the student has a takes row for the section, SectionFull otherwise
+   */
+  private RegistrationResult fullOrEnrolled(PooledConnection registerConnection, String studentID, String course_id, String sec_id, String semester, String year) throws SQLException {
+    return registerConnection.exists(recorder, FIND_ENROLLMENT, studentID, course_id, sec_id, semester, year) ? RegistrationResult.AlreadyEnrolled : RegistrationResult.SectionFull;
+  }
+
+  /**
+   * Create the seat row of a section that exists but has never been registered for
+   * @return True if a seat row was created, false if it already existed or there is no such section
+   */
+  private boolean createSeats(PooledConnection registerConnection, String course_id, String sec_id, String semester, String year) throws SQLException {
+    boolean created = registerConnection.update(recorder, CREATE_SEATS, course_id, sec_id, semester, year) > 0;
+    registerConnection.getConnection().commit();
+    return created;
+  }
+
+  /**
+   * Check whether the section has a seat row
+   * @return True if it does, false otherwise
+   */
+  private boolean seatsExist(PooledConnection registerConnection, String course_id, String sec_id, String semester, String year) throws SQLException {
+    return registerConnection.exists(recorder, FIND_SEATS, course_id, sec_id, semester, year);
+  }
+
+  /**
+   * Create the seat counter table the first time it's needed
+   * @return True if the table is ready, false otherwise
+   */
+  private boolean ensureSchema() {
+    if (schemaReady)
+      return true;
+    // the seat counts read the waitlist table, and it needs a connection of its own to load
+    if (waitlist != null && !waitlist.ensureLoaded())
+      return false;
+
+    PooledConnection schemaConnection = null;
+    try {
+      schemaConnection = connectionPool.borrow();
+      schemaConnection.update(recorder, "create table if not exists `section_seats` (`course_id` varchar(8), `sec_id` varchar(8), `semester` varchar(6), `year` decimal(4,0), "
+        + "`capacity` int not null, `enrolled` int not null default 0, primary key (`course_id`, `sec_id`, `semester`, `year`))");
+      schemaReady = true;
+    }
+    catch (SQLException E) {
+      lastError = E;
+    }
+    finally {
+      connectionPool.release(schemaConnection);
+    }
+    return schemaReady;
+  }
+}
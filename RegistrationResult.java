@@ -0,0 +1,16 @@
+/**
+ * Outcome of a student trying to register for a section
+ * @author Michael Snyder
+ */
+
+public enum RegistrationResult {
+  Registered,
+  AlreadyEnrolled,
+  SectionFull,
+  TimeConflict,
+  Waitlisted,
+  NoSuchSection,
+  NoSuchStudent,
+  NotAllowed,
+  Failed,
+}
@@ -0,0 +1,18 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Converts the current row of a ResultSet into an object
+ * Implementations should read columns by index, in select order
+ * @author Michael Snyder
+ */
+
+public interface RowMapper<T> {
+  /**
+   * Map the row the result is currently positioned on
+   * @param result Open result positioned on a row
+   * @return Mapped row
+   * @throws SQLException If a column could not be read
+   */
+  T mapRow(ResultSet result) throws SQLException;
+}
@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves CLI sessions over a local socket so one process can handle many users at once
+ * Each connection gets its own @see Database session and @see UserInterface
+ * @author Michael Snyder
+ */
+
+public class SessionServer {
+  private Database rootDatabase;
+  private int port;
+  private Semaphore sessionSlots;
+  private AtomicInteger activeSessions;
+  private ExecutorService sessionExecutor;
+  private ServerSocket serverSocket;
+
+  /**
+   * Constructor for a server that has not started listening yet
+   * @param rootDatabase Database whose connections are shared by every session
+   * @param port Local port to listen on
+   * @param maxSessions Maximum number of sessions served at once
+   */
+  public SessionServer(Database rootDatabase, int port, int maxSessions) {
+    this.rootDatabase = rootDatabase;
+    this.port = port;
+    sessionSlots = new Semaphore(maxSessions);
+    activeSessions = new AtomicInteger();
+    sessionExecutor = newSessionExecutor();
+  }
+
+  /**
+   * Use a virtual thread per session when the JVM has them (Java 21+),
+   * otherwise fall back to a platform thread per session
+   * @return Executor to run sessions on
+   */
+  private static ExecutorService newSessionExecutor() {
+    try {
+      return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    }
+    catch (ReflectiveOperationException E) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable R) {
+          Thread sessionThread = new Thread(R, "session-" + threadCount.incrementAndGet());
+          sessionThread.setDaemon(true);
+          return sessionThread;
+        }
+      });
+    }
+  }
+
+  /**
+   * Accept sessions until the server is closed
+   * Blocks the calling thread
+   * @throws IOException If the port could not be listened on
+   */
+  public void run() throws IOException {
+    // only local connections, the sessions are not encrypted
+    serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+    System.out.println("Listening for sessions on " + serverSocket.getLocalSocketAddress());
+    while (!serverSocket.isClosed()) {
+      final Socket sessionSocket;
+      try {
+        sessionSocket = serverSocket.accept();
+      }
+      catch (IOException E) {
+        if (serverSocket.isClosed())
+          break;
+        continue;
+      }
+
+      if (!sessionSlots.tryAcquire()) {
+        try {
+          PrintStream busyOutput = new PrintStream(sessionSocket.getOutputStream(), true);
+          busyOutput.println("The server is busy. Please try again later.");
+        }
+        catch (IOException E) {
+          // the client went away, it doesn't need telling
+        }
+        finally {
+          try {
+            sessionSocket.close();
+          }
+          catch (IOException E) {
+            // already closed
+          }
+        }
+        continue;
+      }
+
+      sessionExecutor.execute(new Runnable() {
+        public void run() {
+          try {
+            serve(sessionSocket);
+          }
+          finally {
+            sessionSlots.release();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Run a full CLI session (log in and main menu) over a socket
+   * @param sessionSocket Connected socket
+   */
+  private void serve(Socket sessionSocket) {
+    Database session = rootDatabase.openSession();
+    activeSessions.incrementAndGet();
+    try {
+      PrintStream sessionOutput = new PrintStream(sessionSocket.getOutputStream(), true, "UTF-8");
+      InputReader sessionInput = new InputReader(sessionSocket.getInputStream(), sessionOutput);
+      UserInterface userInteraction = new UserInterface(session, sessionInput, sessionOutput);
+      if (userInteraction.loginMenu()) {
+        userInteraction.mainMenu();
+        sessionOutput.println("Thank you for using the CSC3300 University Database CLI!");
+      }
+    }
+    catch (IOException E) {
+      // the client went away, nothing to clean up but the session
+    }
+    finally {
+      activeSessions.decrementAndGet();
+      session.close();
+      try {
+        sessionSocket.close();
+      }
+      catch (IOException E) {
+        // already closed
+      }
+    }
+  }
+
+  /**
+   * Get the number of sessions currently being served
+   * @return Active session count
+   */
+  public int getActiveSessions() {
+    return activeSessions.get();
+  }
+
+  /**
+   * Stop accepting sessions, sessions already running are left to finish
+   */
+  public void close() {
+    try {
+      if (serverSocket != null)
+        serverSocket.close();
+    }
+    catch (IOException E) {
+      // already closed
+    }
+    sessionExecutor.shutdown();
+  }
+}
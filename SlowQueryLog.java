@@ -0,0 +1,208 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.nio.charset.StandardCharsets;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log of slow SQL calls made by @see Database, written to a rolling file by a background thread
+ * Callers only format the entry and hand it off, an entry is dropped rather than blocking when the writer falls behind
+ * @author Michael Snyder
+ */
+
+public class SlowQueryLog {
+  private File logFile;
+  private long maxFileBytes;
+  private int maxFiles;
+  private volatile long thresholdNanos = -1;
+  private volatile double sampleRate = 1.0;
+  private BlockingQueue<String> pending;
+  private AtomicLong droppedCount;
+  private AtomicLong loggedCount;
+  private volatile boolean closed;
+  private Thread writer;
+
+  /**
+   * Constructor for a disabled log, @see setThreshold turns it on
+   * @param logFile File to append to, rolled over to logFile.1, logFile.2 ... when full
+   * @param maxFileBytes Size a file can grow to before it is rolled over
+   * @param maxFiles Number of files kept, including the current one
+   */
+  public SlowQueryLog(File logFile, long maxFileBytes, int maxFiles) {
+    this.logFile = logFile;
+    this.maxFileBytes = maxFileBytes;
+    this.maxFiles = Math.max(1, maxFiles);
+    pending = new ArrayBlockingQueue<String>(4096);
+    droppedCount = new AtomicLong();
+    loggedCount = new AtomicLong();
+  }
+
+  /**
+   * Log calls that take at least this long
+   * @param thresholdMillis Threshold in milliseconds, negative turns the log off
+   */
+  public void setThreshold(long thresholdMillis) {
+    thresholdNanos = thresholdMillis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+  }
+
+  /**
+   * Only log a fraction of the slow calls, to keep the log small under heavy load
+   * @param sampleRate Fraction between 0 and 1 of slow calls to log
+   */
+  public void setSampleRate(double sampleRate) {
+    this.sampleRate = Math.max(0.0, Math.min(1.0, sampleRate));
+  }
+
+  public boolean isEnabled() {
+    return thresholdNanos >= 0 && !closed;
+  }
+
+  /**
+   * Log a call if it was slow enough and is sampled
+   * @param sql SQL template that was run
+   * @param parameters Values bound to the template, may be null
+   * @param rows Rows returned or affected
+   * @param elapsedNanos How long the call took
+   * @param failed True if the call threw
+   * @param action Menu action the call was made for, may be null
+   */
+  public void offer(String sql, String[] parameters, long rows, long elapsedNanos, boolean failed, String action) {
+    long threshold = thresholdNanos;
+    if (threshold < 0 || elapsedNanos < threshold || closed)
+      return;
+    if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate)
+      return;
+
+    String entry = String.format("%s\t%.3fms\trows=%d\t%s\taction=%s\t%s\tparams=%s",
+      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS").format(new Date()), elapsedNanos / 1000000.0, rows,
+      failed ? "failed" : "ok", action == null ? "-" : action, sql, parameters == null ? "[]" : Arrays.toString(parameters));
+    startWriter();
+    if (!pending.offer(entry))
+      droppedCount.incrementAndGet();
+  }
+
+  public long getLoggedCount() {
+    return loggedCount.get();
+  }
+
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * Write out the entries still waiting and stop the background thread
+   */
+  public void close() {
+    closed = true;
+    if (writer != null) {
+      writer.interrupt();
+      try {
+        writer.join(5000);
+      }
+      catch (InterruptedException E) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Start the background thread that writes entries, if it isn't running
+   */
+  private synchronized void startWriter() {
+    if (writer != null)
+      return;
+
+    writer = new Thread(new Runnable() {
+      public void run() {
+        write();
+      }
+    }, "slow-query-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Append entries as they arrive, flushing once the queue is empty
+   */
+  private void write() {
+    List<String> entries = new ArrayList<String>();
+    Writer out = null;
+    try {
+      out = open();
+      long fileBytes = logFile.length();
+      while (!closed || !pending.isEmpty()) {
+        try {
+          String first = closed ? pending.poll() : pending.take();
+          if (first == null)
+            break;
+          entries.add(first);
+        }
+        catch (InterruptedException E) {
+          // closing, write whatever is left
+        }
+        pending.drainTo(entries);
+
+        for (String entry : entries) {
+          long entryBytes = entry.getBytes(StandardCharsets.UTF_8).length + 1;
+          if (fileBytes > 0 && fileBytes + entryBytes > maxFileBytes) {
+            out.close();
+            roll();
+            out = open();
+            fileBytes = 0;
+          }
+          out.write(entry);
+          out.write('\n');
+          fileBytes += entryBytes;
+          loggedCount.incrementAndGet();
+        }
+        out.flush();
+        entries.clear();
+      }
+    }
+    catch (IOException E) {
+      // can't write the log, stop taking entries rather than fill the queue
+      closed = true;
+    }
+    finally {
+      try {
+        if (out != null)
+          out.close();
+      }
+      catch (IOException E) {
+        // nothing more to write
+      }
+    }
+  }
+
+  private Writer open() throws IOException {
+    return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Shift logFile.N-1 to logFile.N ... and logFile to logFile.1, the oldest file is removed
+   */
+  private void roll() {
+    if (maxFiles == 1) {
+      logFile.delete();
+      return;
+    }
+    new File(logFile.getPath() + "." + (maxFiles - 1)).delete();
+    for (int i = maxFiles - 2; i >= 1; i--)
+      new File(logFile.getPath() + "." + i).renameTo(new File(logFile.getPath() + "." + (i + 1)));
+    logFile.renameTo(new File(logFile.getPath() + ".1"));
+  }
+}
@@ -0,0 +1,213 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes streamed table rows to a file as CSV or newline delimited JSON
+ * Rows are formatted into a small character buffer, encoded into a large direct buffer and written
+ * straight to a FileChannel, so memory use is the same no matter how many rows are exported
+ * @author Michael Snyder
+ */
+
+public class TableExporter implements Closeable {
+  private static final int DIRECT_BUFFER_SIZE = 1 << 20;
+  private static final int FORMAT_BUFFER_SIZE = 1 << 16;
+
+  public enum Format {
+    CSV,
+    NDJSON,
+  }
+
+  private Format format;
+  private String[] columns;
+  private FileChannel channel;
+  private ByteBuffer bytes;
+  private CharsetEncoder encoder;
+  private StringBuilder formatted;
+  private long rowCount;
+
+  /**
+   * Constructor that creates (or truncates) the file, CSV files get a header line
+   * @param file File to write to
+   * @param format Format of the rows
+   * @param columns Attribute titles in the order the row values are in
+   * @throws IOException If the file could not be opened
+   */
+  public TableExporter(Path file, Format format, String... columns) throws IOException {
+    this.format = format;
+    this.columns = columns;
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    bytes = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+    encoder = StandardCharsets.UTF_8.newEncoder();
+    formatted = new StringBuilder(FORMAT_BUFFER_SIZE + 1024);
+
+    if (format == Format.CSV) {
+      for (int i = 0; i < columns.length; i++) {
+        if (i > 0)
+          formatted.append(',');
+        appendCSV(columns[i]);
+      }
+      formatted.append('\n');
+    }
+  }
+
+  /**
+   * Write one row
+   * @param row Row with a value per column, it is not kept so it can be reused
+   * @throws IOException If the file could not be written
+   */
+  public void write(TableRow row) throws IOException {
+    if (format == Format.CSV) {
+      for (int i = 0; i < columns.length; i++) {
+        if (i > 0)
+          formatted.append(',');
+        // NULL is an empty field
+        if (row.get(i) != null)
+          appendCSV(row.get(i).toString());
+      }
+    }
+    else {
+      formatted.append('{');
+      for (int i = 0; i < columns.length; i++) {
+        if (i > 0)
+          formatted.append(',');
+        appendJSONString(columns[i]);
+        formatted.append(':');
+        Object value = row.get(i);
+        if (value == null)
+          formatted.append("null");
+        else if (value instanceof Number || value instanceof Boolean)
+          formatted.append(value);
+        else
+          appendJSONString(value.toString());
+      }
+      formatted.append('}');
+    }
+    formatted.append('\n');
+    rowCount++;
+
+    if (formatted.length() >= FORMAT_BUFFER_SIZE)
+      encode(false);
+  }
+
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * Write out everything still buffered and close the file
+   * @throws IOException If the file could not be written
+   */
+  public void close() throws IOException {
+    try {
+      encode(true);
+      drain();
+    }
+    finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Encode the formatted rows into the direct buffer, writing it to the file whenever it fills
+   * @param endOfInput True if no more rows are coming
+   * @throws IOException If the file could not be written
+   */
+  private void encode(boolean endOfInput) throws IOException {
+    CharBuffer chars = CharBuffer.wrap(formatted);
+    while (true) {
+      CoderResult result = encoder.encode(chars, bytes, endOfInput);
+      if (result.isOverflow())
+        drain();
+      else if (result.isUnderflow())
+        break;
+      else
+        result.throwException();
+    }
+    if (endOfInput) {
+      while (encoder.flush(bytes).isOverflow())
+        drain();
+    }
+    // a lone high surrogate at the end is kept for the next row
+    formatted.delete(0, chars.position());
+  }
+
+  /**
+   * Write the direct buffer to the file
+   * @throws IOException If the file could not be written
+   */
+  private void drain() throws IOException {
+    bytes.flip();
+    while (bytes.hasRemaining())
+      channel.write(bytes);
+    bytes.clear();
+  }
+
+  /**
+   * Append a CSV field, quoted if it has a comma, quote or line break in it
+   * An empty string is written as "" so it can be told apart from NULL
+   * @param value Field value
+   */
+  private void appendCSV(String value) {
+    boolean quote = value.isEmpty();
+    for (int i = 0; i < value.length() && !quote; i++) {
+      char C = value.charAt(i);
+      quote = C == ',' || C == '"' || C == '\n' || C == '\r';
+    }
+    if (!quote) {
+      formatted.append(value);
+      return;
+    }
+
+    formatted.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char C = value.charAt(i);
+      if (C == '"')
+        formatted.append('"');
+      formatted.append(C);
+    }
+    formatted.append('"');
+  }
+
+  /**
+   * Append a quoted, escaped JSON string
+   * @param value String value
+   */
+  private void appendJSONString(String value) {
+    formatted.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char C = value.charAt(i);
+      switch (C) {
+        case '"':
+          formatted.append("\\\"");
+          break;
+        case '\\':
+          formatted.append("\\\\");
+          break;
+        case '\n':
+          formatted.append("\\n");
+          break;
+        case '\r':
+          formatted.append("\\r");
+          break;
+        case '\t':
+          formatted.append("\\t");
+          break;
+        default:
+          if (C < 0x20)
+            formatted.append(String.format("\\u%04x", (int)C));
+          else
+            formatted.append(C);
+      }
+    }
+    formatted.append('"');
+  }
+}
@@ -0,0 +1,130 @@
+import java.io.PrintStream;
+
+import java.util.List;
+
+/**
+ * Renders 'tables' of query results as aligned columns for the CLI
+ * Output is collected in one large buffer and written at explicit flush points (the end of every table or box),
+ * rather than a write and flush per line. Column widths are worked out a bounded window of rows at a time,
+ * so long tables start writing before every row has been measured
+ * @author Michael Snyder
+ */
+
+public class TableRenderer {
+  private static final String TABLE_BORDER = "--------------------------------------------";
+  private static final String BOX_BORDER = "============================================";
+  private static final String COLUMN_SEPARATOR = ", ";
+  private static final String LINE_SEPARATOR = System.lineSeparator();
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private PrintStream output;
+  private StringBuilder buffer;
+  private int windowSize;
+
+  /**
+   * Constructor for a renderer with nothing buffered
+   * @param output Stream to write to
+   * @param windowSize Number of rows looked at to work out column widths
+   */
+  public TableRenderer(PrintStream output, int windowSize) {
+    this.output = output;
+    this.windowSize = Math.max(1, windowSize);
+    buffer = new StringBuilder(BUFFER_SIZE);
+  }
+
+  /**
+   * Render and flush a whole table
+   * @param table List of query results
+   */
+  public void printTable(List<TableRow> table) {
+    line(TABLE_BORDER);
+    int[] columnWidths = new int[0];
+    for (int start = 0; start < table.size(); start += windowSize)
+      columnWidths = renderWindow(table.subList(start, Math.min(start + windowSize, table.size())), columnWidths);
+    line(TABLE_BORDER);
+    flush();
+  }
+
+  /**
+   * Render and flush a numbered list of choices in a box, with 0 to return
+   * @param header Message to print in the box header
+   * @param content Choices, numbered from 1
+   */
+  public void box(String header, Object[] content) {
+    line(BOX_BORDER);
+    line(header);
+    line(BOX_BORDER);
+    // line the choices up no matter how many digits their number has
+    int numberWidth = Integer.toString(content.length).length();
+    for (int i = 0; i < content.length; i++) {
+      pad(Integer.toString(i + 1), numberWidth);
+      buffer.append("] ").append(content[i]).append(LINE_SEPARATOR);
+    }
+    pad("0", numberWidth);
+    buffer.append("] --return--").append(LINE_SEPARATOR);
+    line(BOX_BORDER);
+    flush();
+  }
+
+  /**
+   * Write everything buffered so far
+   */
+  public void flush() {
+    if (buffer.length() > 0) {
+      output.print(buffer);
+      buffer.setLength(0);
+    }
+    output.flush();
+  }
+
+  /**
+   * Write the rows in the window, widening the columns to fit them
+   * Columns only ever get wider, so rows already written stay lined up with later ones as much as they can
+   * @param window Rows to write
+   * @param columnWidths Widths of the columns written so far
+   * @return Widths of the columns after this window
+   */
+  private int[] renderWindow(List<TableRow> window, int[] columnWidths) {
+    String[][] values = new String[window.size()][];
+    for (int r = 0; r < values.length; r++) {
+      TableRow row = window.get(r);
+      values[r] = new String[row.size()];
+      if (row.size() > columnWidths.length) {
+        int[] widths = new int[row.size()];
+        System.arraycopy(columnWidths, 0, widths, 0, columnWidths.length);
+        columnWidths = widths;
+      }
+      for (int i = 0; i < row.size(); i++) {
+        values[r][i] = String.valueOf(row.get(i));
+        columnWidths[i] = Math.max(columnWidths[i], values[r][i].length());
+      }
+    }
+
+    for (String[] row : values) {
+      for (int i = 0; i < row.length; i++) {
+        // no trailing spaces after the last column
+        if (i == row.length - 1)
+          buffer.append(row[i]);
+        else {
+          // the separator follows the value, the padding after it lines the next column up
+          buffer.append(row[i]).append(COLUMN_SEPARATOR);
+          pad("", columnWidths[i] - row[i].length());
+        }
+      }
+      buffer.append(LINE_SEPARATOR);
+      if (buffer.length() >= BUFFER_SIZE)
+        flush();
+    }
+    return columnWidths;
+  }
+
+  private void pad(String value, int width) {
+    buffer.append(value);
+    for (int i = value.length(); i < width; i++)
+      buffer.append(' ');
+  }
+
+  private void line(String text) {
+    buffer.append(text).append(LINE_SEPARATOR);
+  }
+}
@@ -0,0 +1,88 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * One 'tuple' of attribute values from a table query, in the order they were requested
+ * Streamed queries reuse a single instance, so copy anything that needs to be kept
+ * @author Michael Snyder
+ */
+
+public class TableRow {
+  private Object[] values;
+
+  /**
+   * Constructor for an empty row
+   * @param columnCount Number of attributes in the row
+   */
+  public TableRow(int columnCount) {
+    values = new Object[columnCount];
+  }
+
+  /**
+   * Constructor for a row with known values
+   * @param values Attribute values in order
+   */
+  public TableRow(Object... values) {
+    this.values = values;
+  }
+
+  /**
+   * Read the values of the row the result is positioned on into this row
+   * @param result Open result positioned on a row
+   * @return This row
+   * @throws SQLException If a column could not be read
+   */
+  public TableRow load(ResultSet result) throws SQLException {
+    for (int i = 0; i < values.length; i++)
+      values[i] = result.getObject(i + 1);
+    return this;
+  }
+
+  /**
+   * Get the number of attributes in the row
+   * @return Attribute count
+   */
+  public int size() {
+    return values.length;
+  }
+
+  /**
+   * Get an attribute value
+   * @param index Zero based attribute index
+   * @return Value, or null if the attribute is NULL
+   */
+  public Object get(int index) {
+    return values[index];
+  }
+
+  /**
+   * Get an attribute value as a string
+   * @param index Zero based attribute index
+   * @return Value as a string, or null if the attribute is NULL
+   */
+  public String getString(int index) {
+    return values[index] == null ? null : values[index].toString();
+  }
+
+  /**
+   * Get a numeric attribute value
+   * @param index Zero based attribute index
+   * @return Value as an int, 0 if the attribute is NULL
+   */
+  public int getInt(int index) {
+    Object value = values[index];
+    if (value instanceof Number)
+      return ((Number)value).intValue();
+    if (value == null)
+      return 0;
+    return Integer.parseInt(value.toString());
+  }
+
+  /**
+   * Make a copy of this row that is safe to keep after a streamed query moves on
+   * @return Copy of the row
+   */
+  public TableRow copy() {
+    return new TableRow(values.clone());
+  }
+}
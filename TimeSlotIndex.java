@@ -0,0 +1,283 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory index of when the sections of the registration term meet, to catch schedule conflicts
+ * Every time_slot is encoded as a bitset with one bit per minute of the week, and every student's schedule
+ * as the union of the bitsets of their sections, so a conflict check is one fixed size AND no matter
+ * how many sections the student has. Sections are loaded once, schedules the first time a student registers,
+ * after that both are kept up to date by @see Database as enrollments change
+ * Only the most recently used schedules are kept, and each is loaded again once it is older than a set age,
+ * since enrollments made by other processes don't reach the index
+ * @author Michael Snyder
+ */
+
+public class TimeSlotIndex {
+  // day codes used by the time_slot table, in week order
+  private static final String DAYS = "MTWRFSU";
+  private static final int MINUTES_PER_DAY = 24 * 60;
+  private static final int WORDS = (DAYS.length() * MINUTES_PER_DAY + 63) / 64;
+
+  // time_slot_id to the minutes it meets
+  private HashMap<String, long[]> slots;
+  // course_id|sec_id of the registration term to its time_slot_id
+  private HashMap<String, String> sectionSlots;
+  private ScheduleCache schedules;
+  private long maxScheduleAge;
+  private boolean loaded;
+
+  /**
+   * Sections a student is enrolled in this term, and the minutes they meet
+   */
+  private static class Schedule {
+    // course_id|sec_id to time_slot_id
+    private HashMap<String, String> sections = new HashMap<String, String>();
+    private Set<String> slotIds = new HashSet<String>();
+    private long[] busy = new long[WORDS];
+    private long loadedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Least recently used schedules by student ID, the oldest is dropped once there are too many
+   */
+  private static class ScheduleCache extends LinkedHashMap<String, Schedule> {
+    private static final long serialVersionUID = 6120934458153097246L;
+    private int maxSize;
+
+    public ScheduleCache(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    protected boolean removeEldestEntry(Map.Entry<String, Schedule> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+  /**
+   * Constructor for an empty index
+   * @param maxSchedules Most student schedules kept at once
+   * @param maxScheduleAge Milliseconds a schedule is trusted for before it is loaded again
+   */
+  public TimeSlotIndex(int maxSchedules, long maxScheduleAge) {
+    slots = new HashMap<String, long[]>();
+    sectionSlots = new HashMap<String, String>();
+    schedules = new ScheduleCache(maxSchedules);
+    this.maxScheduleAge = maxScheduleAge;
+  }
+
+  /**
+   * Check if the time slots and sections have been loaded
+   * @return True once @see load has been called and nothing has invalidated it since
+   */
+  public synchronized boolean isLoaded() {
+    return loaded;
+  }
+
+  /**
+   * Replace the index with the time slots and the sections of the registration term
+   * Student schedules are kept, they are rebuilt with the new time slots
+   * @param timeSlots Every time_slot row as (time_slot_id, day, start_hr, start_min, end_hr, end_min)
+   * @param sections Every section of the term as (course_id, sec_id, time_slot_id)
+   */
+  public synchronized void load(List<TableRow> timeSlots, List<TableRow> sections) {
+    slots.clear();
+    for (TableRow timeSlot : timeSlots) {
+      String slotId = timeSlot.getString(0);
+      String day = timeSlot.getString(1);
+      int dayIndex = day == null || day.length() == 0 ? -1 : DAYS.indexOf(Character.toUpperCase(day.charAt(0)));
+      int start = minuteOfDay(timeSlot, 2);
+      int end = minuteOfDay(timeSlot, 4);
+      if (slotId == null || dayIndex < 0 || start < 0 || end < 0)
+        continue;
+      long[] minutes = slots.get(slotId);
+      if (minutes == null) {
+        minutes = new long[WORDS];
+        slots.put(slotId, minutes);
+      }
+      setRange(minutes, dayIndex * MINUTES_PER_DAY + start, dayIndex * MINUTES_PER_DAY + end);
+    }
+
+    sectionSlots.clear();
+    for (TableRow section : sections)
+      if (section.getString(2) != null)
+        sectionSlots.put(key(section.getString(0), section.getString(1)), section.getString(2));
+
+    for (Schedule schedule : schedules.values())
+      rebuild(schedule);
+    loaded = true;
+  }
+
+  /**
+   * Throw away the time slots and sections so they are loaded again before the next check
+   */
+  public synchronized void invalidate() {
+    loaded = false;
+  }
+
+  /**
+   * Check if a student's schedule is known
+   * @param studentID ID of the student
+   * @return True if @see loadSchedule has been called for the student recently enough and nothing has invalidated it since
+   */
+  public synchronized boolean hasSchedule(String studentID) {
+    Schedule schedule = schedules.get(studentID);
+    return schedule != null && System.currentTimeMillis() - schedule.loadedAt < maxScheduleAge;
+  }
+
+  /**
+   * Set the sections a student is enrolled in this term
+   * @param studentID ID of the student
+   * @param enrolled Sections as (course_id, sec_id)
+   */
+  public synchronized void loadSchedule(String studentID, List<TableRow> enrolled) {
+    Schedule schedule = new Schedule();
+    for (TableRow section : enrolled)
+      schedule.sections.put(key(section.getString(0), section.getString(1)), sectionSlots.get(key(section.getString(0), section.getString(1))));
+    rebuild(schedule);
+    schedules.put(studentID, schedule);
+  }
+
+  /**
+   * Forget a student's schedule so it is loaded again before their next check
+   * @param studentID ID of the student, null forgets every student
+   */
+  public synchronized void forget(String studentID) {
+    if (studentID == null)
+      schedules.clear();
+    else
+      schedules.remove(studentID);
+  }
+
+  /**
+   * Find the section of a student's schedule that meets at the same time as another section
+   * Sections sharing a time_slot_id conflict even if the slot has no meeting times
+   * @param studentID ID of the student, their schedule must be loaded
+   * @param course_id ID of the course to check
+   * @param sec_id Section of the course to check
+   * @return Conflicting section as (course_id, sec_id), null if there is no conflict (or the section is unknown)
+   */
+  public synchronized String[] findConflict(String studentID, String course_id, String sec_id) {
+    Schedule schedule = schedules.get(studentID);
+    String slotId = sectionSlots.get(key(course_id, sec_id));
+    if (schedule == null || slotId == null)
+      return null;
+    long[] minutes = slots.get(slotId);
+    if (!schedule.slotIds.contains(slotId) && (minutes == null || !intersects(schedule.busy, minutes)))
+      return null;
+
+    // there is a conflict, find the section it's with (the student only has a few)
+    String candidate = key(course_id, sec_id);
+    for (Map.Entry<String, String> section : schedule.sections.entrySet()) {
+      if (section.getKey().equals(candidate) || section.getValue() == null)
+        continue;
+      long[] other = slots.get(section.getValue());
+      if (section.getValue().equals(slotId) || (minutes != null && other != null && intersects(other, minutes)))
+        return section.getKey().split("\\|", 2);
+    }
+    return null;
+  }
+
+  /**
+   * Add a section to a student's schedule, does nothing if the schedule isn't loaded
+   * @param studentID ID of the student
+   * @param course_id ID of the course
+   * @param sec_id Section of the course
+   */
+  public synchronized void enrolled(String studentID, String course_id, String sec_id) {
+    Schedule schedule = schedules.get(studentID);
+    if (schedule == null)
+      return;
+    String slotId = sectionSlots.get(key(course_id, sec_id));
+    schedule.sections.put(key(course_id, sec_id), slotId);
+    if (slotId == null)
+      return;
+    schedule.slotIds.add(slotId);
+    long[] minutes = slots.get(slotId);
+    if (minutes != null)
+      for (int i = 0; i < WORDS; i++)
+        schedule.busy[i] |= minutes[i];
+  }
+
+  /**
+   * Take every section of a course off a student's schedule, does nothing if the schedule isn't loaded
+   * @param studentID ID of the student
+   * @param course_id ID of the course dropped
+   */
+  public synchronized void dropped(String studentID, String course_id) {
+    Schedule schedule = schedules.get(studentID);
+    if (schedule == null)
+      return;
+    String prefix = course_id + "|";
+    Iterator<String> sections = schedule.sections.keySet().iterator();
+    while (sections.hasNext())
+      if (sections.next().startsWith(prefix))
+        sections.remove();
+    // bits can't be taken out of a union, so put it back together from what's left
+    rebuild(schedule);
+  }
+
+  /**
+   * Work out a schedule's time_slot_ids and busy minutes from its sections
+   * @param schedule Schedule to rebuild
+   */
+  private void rebuild(Schedule schedule) {
+    schedule.slotIds.clear();
+    schedule.busy = new long[WORDS];
+    for (Map.Entry<String, String> section : schedule.sections.entrySet()) {
+      // the section may have moved to another slot since it was added
+      String slotId = sectionSlots.get(section.getKey());
+      section.setValue(slotId);
+      if (slotId == null)
+        continue;
+      schedule.slotIds.add(slotId);
+      long[] minutes = slots.get(slotId);
+      if (minutes != null)
+        for (int i = 0; i < WORDS; i++)
+          schedule.busy[i] |= minutes[i];
+    }
+  }
+
+  private static boolean intersects(long[] A, long[] B) {
+    for (int i = 0; i < WORDS; i++)
+      if ((A[i] & B[i]) != 0)
+        return true;
+    return false;
+  }
+
+  /**
+   * Set the bits of the minutes from start up to (not including) end
+   */
+  private static void setRange(long[] minutes, int start, int end) {
+    for (int minute = Math.max(0, start); minute < end && minute < WORDS * 64; minute++)
+      minutes[minute >>> 6] |= 1L << (minute & 63);
+  }
+
+  /**
+   * Read an hour and minute pair of a time_slot row
+   * @param timeSlot Time slot row
+   * @param hourColumn Index of the hour, the minute is the next one
+   * @return Minutes since midnight, -1 if either is missing
+   */
+  private static int minuteOfDay(TableRow timeSlot, int hourColumn) {
+    String hour = timeSlot.getString(hourColumn);
+    String minute = timeSlot.getString(hourColumn + 1);
+    if (hour == null || minute == null)
+      return -1;
+    try {
+      return Integer.parseInt(hour.trim()) * 60 + Integer.parseInt(minute.trim());
+    }
+    catch (NumberFormatException E) {
+      return -1;
+    }
+  }
+
+  private static String key(String course_id, String sec_id) {
+    return course_id + "|" + sec_id;
+  }
+}
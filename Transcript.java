@@ -0,0 +1,101 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * A student's graded courses and GPA as returned by @see Database
+ * @author Michael Snyder
+ */
+
+public class Transcript {
+  private String studentName;
+  private double gpa;
+  private List<Entry> entries;
+
+  /**
+   * A single graded course on the transcript
+   */
+  public static class Entry {
+    private String title;
+    private String courseId;
+    private String semester;
+    private int year;
+    private String grade;
+    private int credits;
+
+    public Entry(String title, String courseId, String semester, int year, String grade, int credits) {
+      this.title = title;
+      this.courseId = courseId;
+      this.semester = semester;
+      this.year = year;
+      this.grade = grade;
+      this.credits = credits;
+    }
+
+    public String getTitle() {
+      return title;
+    }
+
+    public String getCourseId() {
+      return courseId;
+    }
+
+    public String getSemester() {
+      return semester;
+    }
+
+    public int getYear() {
+      return year;
+    }
+
+    public String getGrade() {
+      return grade;
+    }
+
+    public int getCredits() {
+      return credits;
+    }
+  }
+
+  /**
+   * Maps title, course_id, semester, year, grade, credits (in that order) to an entry
+   */
+  public static final RowMapper<Entry> ENTRY_MAPPER = new RowMapper<Entry>() {
+    public Entry mapRow(ResultSet result) throws SQLException {
+      return new Entry(result.getString(1), result.getString(2), result.getString(3), result.getInt(4), result.getString(5), result.getInt(6));
+    }
+  };
+
+  /**
+   * Constructor for a transcript
+   * @param studentName Name of the student
+   * @param gpa Grade point average over all graded courses
+   * @param entries Graded courses, most recent first
+   */
+  public Transcript(String studentName, double gpa, List<Entry> entries) {
+    this.studentName = studentName;
+    this.gpa = gpa;
+    this.entries = entries;
+  }
+
+  /**
+   * Constructor for an empty transcript (user is not a student)
+   */
+  public Transcript() {
+    this(null, 0, new ArrayList<Entry>());
+  }
+
+  public String getStudentName() {
+    return studentName;
+  }
+
+  public double getGPA() {
+    return gpa;
+  }
+
+  public List<Entry> getEntries() {
+    return entries;
+  }
+}
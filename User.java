@@ -7,6 +7,8 @@ public class User {
   private String username;
   private String password;
   private UserPermission permissions;
+  // ID from the users table, null to derive it from the username
+  private Integer ID;
 
   /**
    * Constructor for USER class
@@ -19,12 +21,25 @@ public class User {
     if (username != null && username.length() > 0 && password != null && password.length() > 0) {
       this.username = username;
       this.password = password;
-      this.permissions = new UserPermission(userPosition);
+      this.permissions = UserPermission.forPosition(userPosition);
     }
     else
       throw new UserException("Invalid user information");
   }
 
+  /**
+   * Constructor for a user whose ID is stored alongside them
+   * @param username User's username
+   * @param password User's password
+   * @param userPosition Position to set the user as
+   * @param ID User's ID, null to derive it from the username
+   * @throws UserException If the user name or password is bad
+   */
+  public User(String username, String password, UserPermission.Position userPosition, Integer ID) throws UserException {
+    this(username, password, userPosition);
+    this.ID = ID;
+  }
+
   /**
    * Overloaded constructor used by the authentication in @see Database
    * @param username User's username
@@ -52,6 +67,15 @@ public class User {
       return (comp.username.equals(this.username) && comp.password.equals(this.password));
   }
 
+  /**
+   * Check a password attempt against this user's password
+   * @param password Password entered
+   * @return True if it matches, false otherwise
+   */
+  public boolean checkPassword(String password) {
+    return this.password.equals(password);
+  }
+
   /**
    * Get the user's name
    * @return User's name
@@ -65,10 +89,12 @@ public class User {
   }
 
   /**
-   * Get the user's ID (bit shitfted hash)
+   * Get the user's ID (the stored one, or a bit shitfted hash)
    * @return User's ID
    */
   public Integer getID() {
+    if (ID != null)
+      return ID;
     // this is not really a good method because of collisions and truncation
     // but it works fine for this project's purpose.
     return username.hashCode() >> 8;
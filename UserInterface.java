@@ -1,7 +1,14 @@
+import java.io.PrintStream;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 import java.util.Set;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * User Interface class to prompt the user to navigate the CLI
@@ -10,8 +17,14 @@ import java.util.HashMap;
  */
 
 public class UserInterface {
+  private static final String TABLE_BORDER = "--------------------------------------------";
+  private static final int PAGE_SIZE = 25;
   private InputReader input;
+  private PrintStream output;
+  private TableRenderer renderer;
   private Database rootDatabase;
+  // set when the database is still connecting in the background
+  private CompletableFuture<Boolean> startup;
 
   public enum Command {
     Retrieve,
@@ -21,14 +34,38 @@ public class UserInterface {
     Drop,
     Register,
     Transcript,
+    Export,
+    Import,
+    Search,
     None,
   }
 
   public UserInterface(Database rootDatabase) {
-    input = InputReader.getReader();
+    this(rootDatabase, InputReader.getReader(), System.out);
+  }
+
+  /**
+   * Constructor for a user interface that isn't on the console (such as a server session)
+   * @param rootDatabase Database (or database session) to work with
+   * @param input Reader to get the user's input from
+   * @param output Stream to print to
+   */
+  public UserInterface(Database rootDatabase, InputReader input, PrintStream output) {
+    this.input = input;
+    this.output = output;
+    // widths are worked out over 256 rows at a time
+    renderer = new TableRenderer(output, 256);
     this.rootDatabase = rootDatabase;
   }
 
+  /**
+   * Let the login prompt be shown before the database has connected, logging in waits for it
+   * @param startup Completes with true once the database is ready for users to log in
+   */
+  public void setStartup(CompletableFuture<Boolean> startup) {
+    this.startup = startup;
+  }
+
   /**
    * Helper method to ensure what the user has entered is a valid selection
    * @param min Minimum selection value permissable
@@ -46,28 +83,72 @@ public class UserInterface {
    * @param content Table content stuff
    */
   private void boxOutput(String header, Object[] content) {
-    System.out.println("============================================");
-    System.out.println(header);
-    System.out.println("============================================");
-    int choiceIndex = 1;
-    for (Object S : content) {
-      System.out.println(choiceIndex + "] " + S);
-      choiceIndex++;
-    }
-    // added to inform the user how to return/exit
-    System.out.println("0] --return--");
-    System.out.println("============================================");
+    // 0 is added to inform the user how to return/exit
+    renderer.box(header, content);
   }
 
   /**
    * Print a 'table' corresponding to an sql query
-   * @param table List of query results in string form
+   * @param table List of query results
+   */
+  private void printTable(List<TableRow> table) {
+    renderer.printTable(table);
+  }
+
+  /**
+   * Print the student's transcript with their GPA
+   * @param transcript Transcript of the current user
+   */
+  private void printTranscript(Transcript transcript) {
+    output.println(TABLE_BORDER);
+    if (transcript.getStudentName() != null) {
+      output.println("***Transcript for: " + transcript.getStudentName() + "***");
+      output.println(String.format("GPA: %.2f", transcript.getGPA()));
+    }
+    for (Transcript.Entry classTaken : transcript.getEntries())
+      output.println(String.format("Took %s (%s) in %s of %d and received grade of '%s' | %d credits",
+        classTaken.getTitle(), classTaken.getCourseId(), classTaken.getSemester(), classTaken.getYear(), classTaken.getGrade(), classTaken.getCredits()));
+    output.println(TABLE_BORDER);
+  }
+
+  /**
+   * Print the per operation statistics, busiest operations first
+   * @param stats Statistics of the database
+   */
+  private void printStats(DatabaseStats stats) {
+    output.println(TABLE_BORDER);
+    output.println(String.format("calls=%d errors=%d rows=%d", stats.getCallCount(), stats.getErrorCount(), stats.getRowCount()));
+    output.println("pool: " + stats.getConnectionPool());
+    output.println("cache: " + stats.getQueryCache());
+    output.println(TABLE_BORDER);
+    for (OperationStats operation : stats.getOperationStats())
+      output.println(operation);
+    output.println(TABLE_BORDER);
+  }
+
+  /**
+   * Prompt the user to log in until they enter valid credentials
+   * @return True if the user logged in, false if the input ended first
    */
-  private void printTable(List<String> table) {
-    System.out.println("--------------------------------------------");
-    for (String S : table)
-      System.out.println(S);
-    System.out.println("--------------------------------------------");
+  public boolean loginMenu() {
+    output.println("Welcome to the CSC3300 University Database CLI!\nPlease log in.");
+    rootDatabase.setCurrentAction("Login");
+    try {
+      while (!input.isEndOfInput()) {
+        String username = input.readString("Enter username: ");
+        String password = input.readString("Enter password: ");
+        // the connection was being opened while the user typed
+        if (startup != null && !startup.join())
+          return false;
+        if (rootDatabase.authUser(username, password))
+          return true;
+        output.println("Invalid credentials supplied. Please try again.");
+      }
+      return false;
+    }
+    finally {
+      rootDatabase.setCurrentAction(null);
+    }
   }
 
   /**
@@ -79,7 +160,7 @@ public class UserInterface {
 		 return; // No one has actually logged in
 
 	Set<String> availableTables = rootDatabase.getCurrentUser().getPermissions().getAvailableTables();
-    System.out.println("Hello " + rootDatabase.getCurrentUser() + ", you have successfully logged in!");
+    output.println("Hello " + rootDatabase.getCurrentUser() + ", you have successfully logged in!");
 
     // the max menu selection for the CLI = the # of tables that the user can access and/or modify
     int maxChoice = availableTables.size();
@@ -128,9 +209,9 @@ public class UserInterface {
       // i've decided to not print out the potentional SQL error messages,
       // but they are accessible via rootDatabase.getLastError()
       if (rootDatabase.insertTuple(currentTable, course_id, title, dept_name, credits))
-        System.out.println("Course successfully added!");
+        output.println("Course successfully added!");
       else {
-        System.out.println("Could could not be added. Please try again.");
+        output.println("Could could not be added. Please try again.");
       }
     }
 
@@ -144,9 +225,9 @@ public class UserInterface {
       String time_slot_id = input.readString("time_slot_id: ");
 
       if (rootDatabase.insertTuple(currentTable, course_id, sec_id, semester, year, building, room_number, time_slot_id))
-        System.out.println("Section successfully added!");
+        output.println("Section successfully added!");
       else {
-        System.out.println("Section could not be added. Please try again.");
+        output.println("Section could not be added. Please try again.");
       }
     }
   }
@@ -159,7 +240,7 @@ public class UserInterface {
     HashMap<String, String> newValues = new HashMap<String, String>();
     HashMap<String, String> primaryKeys = new HashMap<String, String>();
     // query will fail without the correct primary key specified
-    System.out.println("Attributes denoted with '*' are REQUIRED.");
+    output.println("Attributes denoted with '*' are REQUIRED.");
 
     if (currentTable.equals("course")) {
       String primaryKey = input.readString("Enter the course_id of the course to update*: ");
@@ -180,9 +261,9 @@ public class UserInterface {
         newValues.put("credits", credits);
 
       if (rootDatabase.updateTable(currentTable, primaryKeys, newValues))
-        System.out.println("Course successfully updated!");
+        output.println("Course successfully updated!");
       else {
-        System.out.println("Could could not be updated. Please try again.");
+        output.println("Could could not be updated. Please try again.");
       }
     }
 
@@ -209,9 +290,9 @@ public class UserInterface {
           newValues.put("time_slot_id", time_slot_id);
 
       if (rootDatabase.updateTable(currentTable, primaryKeys, newValues))
-        System.out.println("Section successfully updated!");
+        output.println("Section successfully updated!");
       else {
-        System.out.println("Section could not be updated. Please try again.");
+        output.println("Section could not be updated. Please try again.");
       }
     }
   }
@@ -224,7 +305,7 @@ public class UserInterface {
     HashMap<String, String> primaryKeys = new HashMap<String, String>();
 
     if (currentTable.equals("course")) {
-      System.out.println("You will be unable to delete courses that are pre-reqs for other classes.");
+      output.println("You will be unable to delete courses that are pre-reqs for other classes.");
       String course_id = input.readString("Enter the course_id to be deleted: ");
 
       if (course_id.length() > 0)
@@ -236,14 +317,14 @@ public class UserInterface {
       // this could be refactored into another method, but it's really not THAT long
       if (response.length() > 0 && (response.charAt(0) == 'Y' || response.charAt(0) == 'y')) {
         if (rootDatabase.deleteTuple(currentTable, primaryKeys))
-          System.out.println("Course successfully deleted!");
+          output.println("Course successfully deleted!");
         else
-          System.out.println("Course could not be deleted. Please try again.");
+          output.println("Course could not be deleted. Please try again.");
       }
     }
 
     else if (currentTable.equals("section")) {
-      System.out.println("You will be unable to delete sections that are already assigned for a class.");
+      output.println("You will be unable to delete sections that are already assigned for a class.");
       String course_id  = input.readString("Enter the course_id to be deleted: ");
       String sec_id     = input.readString("Enter the sec_id to be deleted: ");
       String semester   = input.readString("Enter the semester to be deleted: ");
@@ -262,9 +343,9 @@ public class UserInterface {
 
       if (response.length() > 0 && (response.charAt(0) == 'Y' || response.charAt(0) == 'y')) {
         if (rootDatabase.deleteTuple(currentTable, primaryKeys))
-          System.out.println("Section successfully deleted!");
+          output.println("Section successfully deleted!");
         else
-          System.out.println("Section could not be deleted. Please try again.");
+          output.println("Section could not be deleted. Please try again.");
       }
     }
   }
@@ -277,10 +358,34 @@ public class UserInterface {
     String course_id  = input.readString("Enter course_id to register for: ");
     String sec_id     = input.readString("Enter sec_id to register for: ");
 
-    if (rootDatabase.registerForSection(course_id, sec_id))
-      System.out.println("Successfully registered for " + course_id);
-    else
-      System.out.println("There is no matching section available this semester or you are already enrolled.");
+    Registration registration = rootDatabase.registerForSection(course_id, sec_id);
+    switch (registration.getResult()) {
+      case Registered:
+        output.println("Successfully registered for " + course_id);
+        break;
+      case AlreadyEnrolled:
+        output.println("You are already enrolled in that section.");
+        break;
+      case Waitlisted:
+        output.println(String.format("That section is full. You are #%d on the waitlist and will be registered when a seat opens up.",
+          rootDatabase.getWaitlistPosition(course_id, sec_id)));
+        break;
+      case SectionFull:
+        output.println("That section is full.");
+        break;
+      case TimeConflict:
+        String[] conflict = registration.getConflict();
+        output.println(String.format("That section meets at the same time as section %s of %s.", conflict[1], conflict[0]));
+        break;
+      case NoSuchSection:
+        output.println("There is no matching section available this semester.");
+        break;
+      case NoSuchStudent:
+        output.println("There is no student record for your account. Please contact the registrar.");
+        break;
+      default:
+        output.println("Registration could not be completed. Please try again.");
+    }
   }
 
   /**
@@ -292,9 +397,133 @@ public class UserInterface {
 
     if (response.length() > 0 && (response.charAt(0) == 'Y' || response.charAt(0) == 'y')) {
       if (rootDatabase.dropSection(course_id))
-        System.out.println("If you were registered for that course, you have been dropped.");
+        output.println("If you were registered for that course, you have been dropped.");
+      else
+        output.println("You do not appear to be enrolled in this course. Please try again.");
+    }
+  }
+
+  /**
+  * Let the user page back and forth through a listing until they return
+  * @param listing Listing to page through
+  */
+  private void pageMenu(PagedListing listing) {
+    printTable(listing.first());
+    while (!input.isEndOfInput()) {
+      String choice = input.readString(String.format("Page %d [%s%sr]eturn: ", listing.getPageNumber(),
+        listing.hasNext() ? "n]ext [" : "", listing.hasPrevious() ? "p]revious [" : "")).trim().toLowerCase();
+      // enter moves on to the next page, or returns after the last one
+      if ((choice.startsWith("n") || choice.length() == 0) && listing.hasNext())
+        printTable(listing.next());
+      else if (choice.startsWith("p") && listing.hasPrevious())
+        printTable(listing.previous());
+      else if (choice.length() == 0 || choice.startsWith("r") || choice.equals("0"))
+        return;
+      else
+        output.println("Please choose a valid option.");
+    }
+  }
+
+  /**
+  * Method to prompt the user to export a whole table to a file
+  * @param currentTable Table that the user is currently working with
+  */
+  private void exportMenu(String currentTable) {
+    String formatName = input.readString("Enter format [csv/ndjson] (default csv): ");
+    TableExporter.Format format;
+    if (formatName.length() == 0 || formatName.equalsIgnoreCase("csv"))
+      format = TableExporter.Format.CSV;
+    else if (formatName.equalsIgnoreCase("ndjson") || formatName.equalsIgnoreCase("json"))
+      format = TableExporter.Format.NDJSON;
+    else {
+      output.println("Unknown format. Please try again.");
+      return;
+    }
+
+    String defaultFile = currentTable + (format == TableExporter.Format.CSV ? ".csv" : ".ndjson");
+    String fileName = input.readString(String.format("Enter file to export to (default %s): ", defaultFile));
+    if (fileName.length() == 0)
+      fileName = defaultFile;
+
+    Path file;
+    try {
+      file = rootDatabase.resolveExportFile(Paths.get(fileName));
+    }
+    catch (InvalidPathException E) {
+      output.println("Invalid file name. Please try again.");
+      return;
+    }
+    if (file == null) {
+      output.println(String.format("Exports can only be written inside %s. Please try again.", rootDatabase.getExportDirectory()));
+      return;
+    }
+
+    long rowCount = rootDatabase.exportTable(currentTable, Paths.get(fileName), format);
+    if (rowCount >= 0)
+      output.println(String.format("Exported %d rows to %s", rowCount, file));
+    else
+      output.println("The table could not be exported. Please try again.");
+  }
+
+  /**
+  * Method to prompt the user to bulk load a CSV file into a table
+  * @param currentTable Table that the user is currently working with
+  */
+  private void importMenu(String currentTable) {
+    output.println(String.format("The file must be CSV with the same attributes as an export of \"%s\".", currentTable));
+    String fileName = input.readString("Enter file to import: ");
+    if (fileName.length() == 0)
+      return;
+
+    Path file;
+    try {
+      file = rootDatabase.resolveExportFile(Paths.get(fileName));
+    }
+    catch (InvalidPathException E) {
+      output.println("Invalid file name. Please try again.");
+      return;
+    }
+    if (file == null) {
+      output.println(String.format("Imports can only be read from inside %s. Please try again.", rootDatabase.getExportDirectory()));
+      return;
+    }
+
+    CsvImporter.Result result = rootDatabase.importTable(currentTable, Paths.get(fileName), output);
+    if (result == null) {
+      output.println("The file could not be read. Please try again.");
+      return;
+    }
+
+    output.println(String.format("Imported %d rows in %.1f seconds, %d rows failed.", result.getRowsImported(), result.getElapsedMillis() / 1000.0, result.getRowsFailed()));
+    // the whole list can be long, show the first few
+    List<String> errors = result.getErrors();
+    for (int i = 0; i < Math.min(20, errors.size()); i++)
+      output.println(errors.get(i));
+    if (result.getRowsFailed() > 20)
+      output.println(String.format("...and %d more", result.getRowsFailed() - 20));
+  }
+
+  /**
+  * Method to prompt the user to search the course catalog until they enter nothing
+  * A word ending in '*' lists courses with a word starting with it instead
+  */
+  private void searchMenu() {
+    while (!input.isEndOfInput()) {
+      String query = input.readString("Enter course id, title or department to search for (enter to return): ").trim();
+      if (query.length() == 0)
+        return;
+
+      long start = System.nanoTime();
+      List<TableRow> courses;
+      if (query.endsWith("*") && query.indexOf(' ') < 0)
+        courses = rootDatabase.autocompleteCourses(query.substring(0, query.length() - 1), PAGE_SIZE);
       else
-        System.out.println("You do not appear to be enrolled in this course. Please try again.");
+        courses = rootDatabase.searchCourses(query, PAGE_SIZE);
+      long elapsedMicros = (System.nanoTime() - start) / 1000;
+
+      printTable(courses);
+      output.println(String.format("%d courses (%d us)%s", courses.size(), elapsedMicros,
+        courses.size() == PAGE_SIZE ? ", add words to narrow the search" : ""));
     }
   }
 
@@ -304,18 +533,31 @@ public class UserInterface {
    * @param currentTable Table the user is currently working with
    */
   private void actionMenu(Command userCMD, String currentTable) {
+    // queries made for this action show up under it in the slow query log
+    rootDatabase.setCurrentAction(userCMD + " " + currentTable);
     switch (userCMD) {
       case Retrieve:
         if (currentTable.equals("department"))
           printTable(rootDatabase.getDepartmentInfo());
-        else if (currentTable.equals("course"))
-          printTable(rootDatabase.getCourseInfo());
-        else if (currentTable.equals("section"))
-          printTable(rootDatabase.getSectionInfo());
+        // courses and sections can be large, so page through them (the snapshot can only give them whole)
+        else if (currentTable.equals("course")) {
+          if (rootDatabase.isOffline())
+            printTable(rootDatabase.getCourseInfo());
+          else
+            pageMenu(rootDatabase.pageCourseInfo(PAGE_SIZE));
+        }
+        else if (currentTable.equals("section")) {
+          if (rootDatabase.isOffline())
+            printTable(rootDatabase.getSectionInfo());
+          else
+            pageMenu(rootDatabase.pageSectionInfo(PAGE_SIZE));
+        }
         else if (currentTable.equals("takes"))
           printTable(rootDatabase.getCurrrentlyEnrolledSections());
         else if (currentTable.equals("transcript"))
-          printTable(rootDatabase.getTranscript());
+          printTranscript(rootDatabase.getTranscript());
+        else if (currentTable.equals("stats"))
+          printStats(rootDatabase.getStats());
         break;
       case Create:
         insertMenu(currentTable);
@@ -332,7 +574,17 @@ public class UserInterface {
       case Drop:
         dropMenu();
         break;
+      case Export:
+        exportMenu(currentTable);
+        break;
+      case Import:
+        importMenu(currentTable);
+        break;
+      case Search:
+        searchMenu();
+        break;
     }
+    rootDatabase.setCurrentAction(null);
     // we need to return to the command menu to prompt the user to enter another command or return
     commandMenu(currentTable);
   }
@@ -1,5 +1,6 @@
 import java.util.Set;
 import java.util.EnumSet;
+import java.util.EnumMap;
 import java.util.HashMap;
 
 /**
@@ -15,9 +16,27 @@ public class UserPermission {
   public enum Position {
     Staff,
     Student,
+    Guest,
     None,
   }
 
+  // permissions never change after being loaded, so users of the same position share them
+  private static final EnumMap<Position, UserPermission> sharedPermissions = new EnumMap<Position, UserPermission>(Position.class);
+
+  static {
+    for (Position P : Position.values())
+      sharedPermissions.put(P, new UserPermission(P));
+  }
+
+  /**
+   * Get the shared permissions for a position
+   * @param userPosition Position given to the user
+   * @return Permissions of that position
+   */
+  public static UserPermission forPosition(Position userPosition) {
+    return sharedPermissions.get(userPosition);
+  }
+
   /**
    * Constructor to load the user permissions based on the user's position 
    * @param userPosition Position given to the user
@@ -30,13 +49,25 @@ public class UserPermission {
     // Below is project specific
     switch(userPosition) {
       case Staff:
-        availableCommands.put("course", EnumSet.of(UserInterface.Command.Retrieve, UserInterface.Command.Create, UserInterface.Command.Update, UserInterface.Command.Delete));
-        availableCommands.put("section", EnumSet.of(UserInterface.Command.Retrieve, UserInterface.Command.Create, UserInterface.Command.Update, UserInterface.Command.Delete));
-        availableCommands.put("department", EnumSet.of(UserInterface.Command.Retrieve));
+        availableCommands.put("course", EnumSet.of(UserInterface.Command.Retrieve, UserInterface.Command.Create, UserInterface.Command.Update, UserInterface.Command.Delete, UserInterface.Command.Export, UserInterface.Command.Import, UserInterface.Command.Search));
+        availableCommands.put("section", EnumSet.of(UserInterface.Command.Retrieve, UserInterface.Command.Create, UserInterface.Command.Update, UserInterface.Command.Delete, UserInterface.Command.Export, UserInterface.Command.Import));
+        availableCommands.put("department", EnumSet.of(UserInterface.Command.Retrieve, UserInterface.Command.Export));
+        // enrollments are only bulk loaded and exported, they are too big to list
+        availableCommands.put("takes", EnumSet.of(UserInterface.Command.Import, UserInterface.Command.Export));
+        // operation latencies and error counts, also available over JMX
+        availableCommands.put("stats", EnumSet.of(UserInterface.Command.Retrieve));
         break;
       case Student:
         availableCommands.put("takes", EnumSet.of(UserInterface.Command.Register, UserInterface.Command.Retrieve, UserInterface.Command.Drop));
         availableCommands.put("transcript", EnumSet.of(UserInterface.Command.Retrieve));
+        // students look courses up before registering for their sections
+        availableCommands.put("course", EnumSet.of(UserInterface.Command.Search));
+        break;
+      case Guest:
+        // read only browsing of the local snapshot while the server is unreachable
+        availableCommands.put("department", EnumSet.of(UserInterface.Command.Retrieve));
+        availableCommands.put("course", EnumSet.of(UserInterface.Command.Retrieve, UserInterface.Command.Search));
+        availableCommands.put("section", EnumSet.of(UserInterface.Command.Retrieve));
         break;
     }
   }
@@ -0,0 +1,60 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Username keyed registry of the users that can log in to @see Database
+ * Lookups are constant time and safe to do from multiple threads
+ * @author Michael Snyder
+ */
+
+public class UserRegistry {
+  private ConcurrentHashMap<String, User> users;
+  private volatile boolean loaded;
+
+  /**
+   * Constructor for an empty registry
+   * @param expectedUsers Number of users expected, to size the registry up front
+   */
+  public UserRegistry(int expectedUsers) {
+    users = new ConcurrentHashMap<String, User>(Math.max(16, expectedUsers * 4 / 3 + 1));
+  }
+
+  /**
+   * Add or replace a user
+   * @param user User to add
+   */
+  public void add(User user) {
+    users.put(user.getName(), user);
+  }
+
+  /**
+   * Find a user by their username
+   * @param username Username to look up
+   * @return The user, or null if there is no such user
+   */
+  public User get(String username) {
+    return users.get(username);
+  }
+
+  /**
+   * Get the number of registered users
+   * @return User count
+   */
+  public int size() {
+    return users.size();
+  }
+
+  /**
+   * Check whether the bulk load of users has been done
+   * @return True if loaded, false otherwise
+   */
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  /**
+   * Mark the bulk load of users as done
+   */
+  public void setLoaded() {
+    loaded = true;
+  }
+}
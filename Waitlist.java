@@ -0,0 +1,535 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Per-section waitlists for full sections, kept in memory and backed by the `waitlist` table
+ * When a seat is freed the next student in line is promoted, promotions are committed
+ * in groups by a background thread instead of one transaction each
+ * A freed seat is held for the student (seat_held) in the transaction that frees it, so a hand-off
+ * interrupted by a crash is finished by the next process to load the waitlists
+ * The queues are loaded once per process, students that join through another process aren't seen
+ * (or given seats freed here) until the waitlists are loaded again
+ * @author Michael Snyder
+ */
+
+public class Waitlist {
+  private static final String JOIN = "insert ignore into `waitlist` (`ID`, `course_id`, `sec_id`, `semester`, `year`, `requested_at`) values (?, ?, ?, ?, ?, ?)";
+  // MySQL error codes
+  private static final int UNKNOWN_COLUMN = 1054;
+
+  private static final String SECTION_KEY = "`course_id` = ? and `sec_id` = ? and `semester` = ? and `year` = ?";
+  private static final String CREATE_TABLE = "create table if not exists `waitlist` (`ID` int, `course_id` varchar(8), `sec_id` varchar(8), `semester` varchar(6), `year` decimal(4,0), "
+    + "`requested_at` bigint not null, `seat_held` boolean not null default false, primary key (`ID`, `course_id`, `sec_id`, `semester`, `year`))";
+  // waitlist tables created before seats were held don't have the column
+  private static final String ADD_SEAT_HELD = "alter table `waitlist` add column `seat_held` boolean not null default false";
+  private static final String LOAD = "select `ID`, `course_id`, `sec_id`, `semester`, `year`, `requested_at`, `seat_held` from `waitlist` order by `requested_at`";
+  private static final String FIND_ENROLLMENT = "select 1 from `takes` where `ID` = ? and `course_id` = ? and `sec_id` = ? and `semester` = ? and `year` = ?";
+  private static final String ENROLL = "insert into `takes` (`ID`, `course_id`, `sec_id`, `semester`, `year`, `grade`) values (?, ?, ?, ?, ?, NULL)";
+  private static final String HOLD = "update `waitlist` set `seat_held` = true where `ID` = ? and " + SECTION_KEY + " and not `seat_held`";
+  private static final String LEAVE = "delete from `waitlist` where `ID` = ? and " + SECTION_KEY + " and not `seat_held`";
+  private static final String REMOVE_HELD = "delete from `waitlist` where `ID` = ? and " + SECTION_KEY + " and `seat_held`";
+
+  private ConnectionPool connectionPool;
+  private CallRecorder recorder;
+  private RegistrationEngine registrationEngine;
+  private ConcurrentHashMap<String, PriorityQueue<Entry>> sections;
+  private LinkedBlockingQueue<Entry> promotions;
+  private AtomicLong lastRequest;
+  private volatile boolean loaded;
+  private volatile boolean closed;
+  private volatile Exception lastError;
+  private volatile BiConsumer<String, String[]> promotionListener;
+  private volatile BiPredicate<String, String[]> promotionCheck;
+  private Thread promoter;
+  private int groupSize = 100;
+  private long groupDelay = 50;
+
+  /**
+   * A student waiting for a seat in a section
+   */
+  private static class Entry implements Comparable<Entry> {
+    private String studentID;
+    private String[] section;
+    private long requestedAt;
+    private boolean seatHeld;
+
+    public Entry(String studentID, String[] section, long requestedAt) {
+      this.studentID = studentID;
+      this.section = section;
+      this.requestedAt = requestedAt;
+    }
+
+    public int compareTo(Entry other) {
+      return Long.compare(requestedAt, other.requestedAt);
+    }
+  }
+
+  /**
+   * Constructor for the waitlists, nothing is loaded until they are first used
+   * @param connectionPool Pool to run waitlist changes on
+   * @param recorder Records every statement the waitlists run
+   * @param registrationEngine Engine that gives seats back when nobody is waiting
+   */
+  public Waitlist(ConnectionPool connectionPool, CallRecorder recorder, RegistrationEngine registrationEngine) {
+    this.connectionPool = connectionPool;
+    this.recorder = recorder;
+    this.registrationEngine = registrationEngine;
+    sections = new ConcurrentHashMap<String, PriorityQueue<Entry>>();
+    promotions = new LinkedBlockingQueue<Entry>();
+    lastRequest = new AtomicLong();
+  }
+
+  /**
+   * Set how many promotions may be committed together and how long to wait to fill a group
+   * @param groupSize Maximum promotions per transaction
+   * @param groupDelay Milliseconds to wait for more promotions after the first one
+   */
+  public void setGroupCommit(int groupSize, long groupDelay) {
+    this.groupSize = groupSize;
+    this.groupDelay = groupDelay;
+  }
+
+  /**
+   * Set what is told about students enrolled off a waitlist, after their enrollment is committed
+   * @param promotionListener Called with the student's ID and the section key (course_id, sec_id, semester, year)
+   */
+  public void setPromotionListener(BiConsumer<String, String[]> promotionListener) {
+    this.promotionListener = promotionListener;
+  }
+
+  /**
+   * Set what decides if a student can still be enrolled when their seat comes up, such as a time conflict check
+   * Students that fail it are taken off the waitlist and the seat goes to the next student
+   * @param promotionCheck Called with the student's ID and the section key (course_id, sec_id, semester, year), true to enroll them
+   */
+  public void setPromotionCheck(BiPredicate<String, String[]> promotionCheck) {
+    this.promotionCheck = promotionCheck;
+  }
+
+  /**
+   * Get the last error the waitlist encountered
+   * @return Last exception, or null if no exception has occurred
+   */
+  public Exception getLastError() {
+    return lastError;
+  }
+
+  /**
+   * Put a student on a section's waitlist (does nothing if they are already on it)
+   * Students already enrolled in the section aren't added, their promotion could never succeed
+   * @param studentID ID of the student
+   * @param course_id ID of the course
+   * @param sec_id Section of the course
+   * @param semester Semester of the section
+   * @param year Year of the section
+   * @return The student's position on the waitlist (1 is next), 0 if they are already enrolled, or -1 if they couldn't be added
+   */
+  public int join(String studentID, String course_id, String sec_id, String semester, String year) {
+    if (!ensureLoaded())
+      return -1;
+
+    String[] section = new String[] { course_id, sec_id, semester, year };
+    PriorityQueue<Entry> waiting = waitingFor(section);
+    synchronized (waiting) {
+      int position = positionOf(waiting, studentID);
+      if (position > 0)
+        return position;
+
+      Entry entry = new Entry(studentID, section, nextRequestTime());
+      PooledConnection joinConnection = null;
+      try {
+        joinConnection = connectionPool.borrow();
+        if (joinConnection.exists(recorder, FIND_ENROLLMENT, studentID, course_id, sec_id, semester, year))
+          return 0;
+        joinConnection.update(recorder, JOIN, studentID, course_id, sec_id, semester, year, Long.toString(entry.requestedAt));
+      }
+      catch (SQLException E) {
+        lastError = E;
+        return -1;
+      }
+      finally {
+        connectionPool.release(joinConnection);
+      }
+
+      waiting.add(entry);
+      return positionOf(waiting, studentID);
+    }
+  }
+
+  /**
+   * Get a student's position on a section's waitlist
+   * @param studentID ID of the student
+   * @param section Section key (course_id, sec_id, semester, year)
+   * @return Position (1 is next), 0 if the student is not waiting
+   */
+  public int getPosition(String studentID, String[] section) {
+    if (!ensureLoaded())
+      return 0;
+    PriorityQueue<Entry> waiting = sections.get(key(section));
+    if (waiting == null)
+      return 0;
+    synchronized (waiting) {
+      return positionOf(waiting, studentID);
+    }
+  }
+
+  /**
+   * Take a student off a section's waitlist, unless a seat is already being held for them
+   * @param studentID ID of the student
+   * @param section Section key (course_id, sec_id, semester, year)
+   * @return True if the student was taken off, false if a seat is held for them (or the row couldn't be deleted)
+   */
+  public boolean leave(String studentID, String[] section) {
+    PooledConnection leaveConnection = null;
+    try {
+      leaveConnection = connectionPool.borrow();
+      if (leaveConnection.update(recorder, LEAVE, studentID, section[0], section[1], section[2], section[3]) == 0)
+        return false;
+    }
+    catch (SQLException E) {
+      lastError = E;
+      return false;
+    }
+    finally {
+      connectionPool.release(leaveConnection);
+    }
+    removeWaiting(studentID, section);
+    return true;
+  }
+
+  /**
+   * Hold a seat that is still claimed for the first student waiting for a section, in the caller's transaction
+   * Students already taken off the list by another process are skipped. The waitlists must be loaded
+   * @param seatConnection Connection of the transaction the seat is claimed in
+   * @param section Section key (course_id, sec_id, semester, year)
+   * @return ID of the student the seat is held for, null if nobody is waiting
+   * @throws SQLException If the student's row could not be marked
+   */
+  public String holdSeat(PooledConnection seatConnection, String[] section) throws SQLException {
+    PriorityQueue<Entry> waiting = sections.get(key(section));
+    if (waiting == null)
+      return null;
+    List<Entry> inLine;
+    synchronized (waiting) {
+      inLine = new ArrayList<Entry>(waiting);
+    }
+    Collections.sort(inLine);
+    for (Entry next : inLine) {
+      if (seatConnection.update(recorder, HOLD, next.studentID, section[0], section[1], section[2], section[3]) > 0)
+        return next.studentID;
+      synchronized (waiting) {
+        waiting.remove(next);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Enroll a student a seat was held for, once the transaction that held it has committed
+   * @param studentID ID of the student
+   * @param section Section key (course_id, sec_id, semester, year)
+   */
+  public void seatHeld(String studentID, String[] section) {
+    Entry held = removeWaiting(studentID, section);
+    if (held == null)
+      held = new Entry(studentID, section, 0);
+    startPromoter();
+    promotions.add(held);
+  }
+
+  /**
+   * Commit any promotions still waiting and stop the background thread
+   */
+  public void close() {
+    closed = true;
+    if (promoter != null) {
+      promoter.interrupt();
+      try {
+        promoter.join(5000);
+      }
+      catch (InterruptedException E) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Get (or create) the queue of students waiting for a section
+   * @param section Section key
+   * @return The section's queue
+   */
+  private PriorityQueue<Entry> waitingFor(String[] section) {
+    String sectionKey = key(section);
+    PriorityQueue<Entry> waiting = sections.get(sectionKey);
+    if (waiting == null) {
+      sections.putIfAbsent(sectionKey, new PriorityQueue<Entry>());
+      waiting = sections.get(sectionKey);
+    }
+    return waiting;
+  }
+
+  /**
+   * Take a student out of a section's queue
+   * @param studentID ID of the student
+   * @param section Section key
+   * @return The student's entry, null if they weren't in the queue
+   */
+  private Entry removeWaiting(String studentID, String[] section) {
+    PriorityQueue<Entry> waiting = sections.get(key(section));
+    if (waiting == null)
+      return null;
+    synchronized (waiting) {
+      for (Entry E : waiting)
+        if (E.studentID.equals(studentID)) {
+          waiting.remove(E);
+          return E;
+        }
+    }
+    return null;
+  }
+
+  /**
+   * Find where a student is in a queue (caller must hold the queue's lock)
+   * @param waiting Queue to search
+   * @param studentID ID of the student
+   * @return Position (1 is next), 0 if the student is not waiting
+   */
+  private static int positionOf(PriorityQueue<Entry> waiting, String studentID) {
+    Entry found = null;
+    for (Entry E : waiting)
+      if (E.studentID.equals(studentID))
+        found = E;
+    if (found == null)
+      return 0;
+
+    int position = 1;
+    for (Entry E : waiting)
+      if (E.requestedAt < found.requestedAt)
+        position++;
+    return position;
+  }
+
+  /**
+   * Request times only need to be ordered, so make sure two students never get the same one
+   * @return Unique, increasing request time
+   */
+  private long nextRequestTime() {
+    long now = System.currentTimeMillis() * 1000;
+    while (true) {
+      long last = lastRequest.get();
+      long next = Math.max(now, last + 1);
+      if (lastRequest.compareAndSet(last, next))
+        return next;
+    }
+  }
+
+  /**
+   * Create the waitlist table and load its rows into memory the first time it's needed
+   * Seats held by a process that stopped before enrolling the student are handed off again
+   * @return True if the waitlists are ready, false otherwise
+   */
+  public boolean ensureLoaded() {
+    if (loaded)
+      return true;
+
+    synchronized (this) {
+      if (loaded)
+        return true;
+
+      PooledConnection loadConnection = null;
+      try {
+        loadConnection = connectionPool.borrow();
+        loadConnection.update(recorder, CREATE_TABLE);
+        RowMapper<Entry> toEntry = new RowMapper<Entry>() {
+          public Entry mapRow(ResultSet waiting) throws SQLException {
+            Entry entry = new Entry(waiting.getString(1), new String[] { waiting.getString(2), waiting.getString(3), waiting.getString(4), waiting.getString(5) }, waiting.getLong(6));
+            entry.seatHeld = waiting.getBoolean(7);
+            return entry;
+          }
+        };
+        List<Entry> entries;
+        try {
+          entries = loadConnection.query(recorder, LOAD, toEntry);
+        }
+        catch (SQLException E) {
+          if (E.getErrorCode() != UNKNOWN_COLUMN)
+            throw E;
+          loadConnection.update(recorder, ADD_SEAT_HELD);
+          entries = loadConnection.query(recorder, LOAD, toEntry);
+        }
+        for (Entry entry : entries) {
+          if (entry.seatHeld)
+            promotions.add(entry);
+          else
+            waitingFor(entry.section).add(entry);
+          if (entry.requestedAt > lastRequest.get())
+            lastRequest.set(entry.requestedAt);
+        }
+        loaded = true;
+        if (!promotions.isEmpty())
+          startPromoter();
+      }
+      catch (SQLException E) {
+        lastError = E;
+      }
+      finally {
+        connectionPool.release(loadConnection);
+      }
+      return loaded;
+    }
+  }
+
+  /**
+   * Start the background thread that commits promotions, if it isn't running
+   */
+  private synchronized void startPromoter() {
+    if (promoter != null)
+      return;
+
+    promoter = new Thread(new Runnable() {
+      public void run() {
+        promote();
+      }
+    }, "waitlist-promoter");
+    promoter.setDaemon(true);
+    promoter.start();
+  }
+
+  /**
+   * Gather promotions into groups and commit each group in one transaction
+   */
+  private void promote() {
+    List<Entry> group = new ArrayList<Entry>();
+    while (!closed || !promotions.isEmpty()) {
+      try {
+        Entry first = closed ? promotions.poll() : promotions.take();
+        if (first == null)
+          break;
+        group.add(first);
+        // give other drops a moment to join this group
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupDelay);
+        while (group.size() < groupSize && !closed) {
+          Entry next = promotions.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null)
+            break;
+          group.add(next);
+        }
+      }
+      catch (InterruptedException E) {
+        // closing, commit whatever is left
+      }
+      promotions.drainTo(group, Math.max(0, groupSize - group.size()));
+
+      if (!group.isEmpty() && !commitGroup(group)) {
+        // the server is unreachable, try the same group again shortly
+        promotions.addAll(group);
+        if (closed)
+          break;
+        try {
+          Thread.sleep(1000);
+        }
+        catch (InterruptedException E) {
+          // closing
+        }
+      }
+      group.clear();
+    }
+  }
+
+  /**
+   * Enroll a group of promoted students and take them off the waitlist in one transaction
+   * Students that can't be enrolled (already enrolled elsewhere in the section, or failing the promotion check)
+   * pass their seat on in the same transaction
+   * @param group Promotions to commit
+   * @return True if the group was committed, false if it has to be retried
+   */
+  private boolean commitGroup(List<Entry> group) {
+    // checked before the transaction starts, the check may need connections of its own
+    List<Entry> rejected = new ArrayList<Entry>();
+    List<Entry> deferred = new ArrayList<Entry>();
+    Set<String> promotedStudents = new HashSet<String>();
+    BiPredicate<String, String[]> check = promotionCheck;
+    for (Entry promoted : group) {
+      // a student's second promotion is only checked once their first is committed
+      if (!promotedStudents.add(promoted.studentID))
+        deferred.add(promoted);
+      else if (check != null && !check.test(promoted.studentID, promoted.section))
+        rejected.add(promoted);
+    }
+
+    List<Entry> enrolled = new ArrayList<Entry>();
+    List<String> heldFor = new ArrayList<String>();
+    List<String[]> heldSections = new ArrayList<String[]>();
+    PooledConnection promoteConnection = null;
+    try {
+      promoteConnection = connectionPool.borrow();
+      Connection connection = promoteConnection.getConnection();
+      connection.setAutoCommit(false);
+      for (Entry promoted : group) {
+        if (deferred.contains(promoted))
+          continue;
+        // another process already finished this hand-off
+        if (promoteConnection.update(recorder, REMOVE_HELD, promoted.studentID, promoted.section[0], promoted.section[1], promoted.section[2], promoted.section[3]) == 0)
+          continue;
+        if (!rejected.contains(promoted)) {
+          Savepoint beforePromotion = connection.setSavepoint();
+          try {
+            promoteConnection.update(recorder, ENROLL, promoted.studentID, promoted.section[0], promoted.section[1], promoted.section[2], promoted.section[3]);
+            enrolled.add(promoted);
+            continue;
+          }
+          catch (SQLException E) {
+            lastError = E;
+            connection.rollback(beforePromotion);
+          }
+        }
+        String next = registrationEngine.passSeatOn(promoteConnection, promoted.section);
+        if (next != null) {
+          heldFor.add(next);
+          heldSections.add(promoted.section);
+        }
+      }
+      connection.commit();
+    }
+    catch (SQLException E) {
+      lastError = E;
+      return false;
+    }
+    finally {
+      connectionPool.release(promoteConnection);
+    }
+
+    BiConsumer<String, String[]> listener = promotionListener;
+    if (listener != null)
+      for (Entry promoted : enrolled)
+        listener.accept(promoted.studentID, promoted.section);
+    for (int i = 0; i < heldFor.size(); i++)
+      seatHeld(heldFor.get(i), heldSections.get(i));
+    promotions.addAll(deferred);
+    return true;
+  }
+
+  /**
+   * Build the map key of a section
+   * @param section Section key (course_id, sec_id, semester, year)
+   * @return Key string
+   */
+  private static String key(String[] section) {
+    return section[0] + "|" + section[1] + "|" + section[2] + "|" + section[3];
+  }
+}
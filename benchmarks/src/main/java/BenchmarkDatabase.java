@@ -0,0 +1,71 @@
+import java.util.List;
+import java.util.function.Consumer;
+
+import csc3300.benchmarks.BenchmarkTarget;
+
+/**
+ * Exposes @see Database to the benchmarks in csc3300.benchmarks
+ * @author Michael Snyder
+ */
+
+public class BenchmarkDatabase implements BenchmarkTarget {
+  private Database database;
+
+  /**
+   * Constructor for a database on a stand-in driver
+   * @param connectionStr JDBC url of the stand-in driver
+   * @throws DatabaseException If the driver refused the connection
+   */
+  public BenchmarkDatabase(String connectionStr) throws DatabaseException {
+    database = new Database(connectionStr, "bench", "bench", 1, 4);
+    database.selectDatabase("university");
+  }
+
+  public String[] cleanInput(String... values) {
+    return database.cleanInput(values);
+  }
+
+  public String asSQLArray(String... values) {
+    return database.asSQLArray(values);
+  }
+
+  public List<?> getTableInformation(String tableName, String... fields) {
+    return database.getTableInformation(tableName, null, fields);
+  }
+
+  public List<?> getSectionInfo() {
+    return database.getSectionInfo();
+  }
+
+  public int streamSectionInfo(final Consumer<Object> rowHandler) {
+    return database.streamSectionInfo(new Consumer<TableRow>() {
+      public void accept(TableRow row) {
+        rowHandler.accept(row);
+      }
+    });
+  }
+
+  public void clearQueryCache() {
+    database.getQueryCache().clear();
+  }
+
+  public boolean addStaff(String username, String password) {
+    return database.addUser(username, password, UserPermission.Position.Staff);
+  }
+
+  public boolean addStudent(String username, String password) {
+    return database.addUser(username, password, UserPermission.Position.Student);
+  }
+
+  public boolean authUser(String username, String password) {
+    return database.authUser(username, password);
+  }
+
+  public Object getTranscript() {
+    return database.getTranscript();
+  }
+
+  public void close() {
+    database.close();
+  }
+}
@@ -0,0 +1,55 @@
+package csc3300.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks for @see Database authUser with large rosters
+ * @author Michael Snyder
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AuthUserBenchmark {
+  @Param({ "1000", "100000" })
+  public int users;
+
+  private BenchmarkTarget database;
+  private String lastUsername;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    FakeDriver.clearResults();
+    database = BenchmarkTarget.open();
+    for (int i = 0; i < users; i++)
+      database.addStaff("staff" + i, "password" + i);
+    lastUsername = "staff" + (users - 1);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    database.close();
+  }
+
+  @Benchmark
+  public boolean authValidUser() {
+    // the last user added was the worst case for the old linear scan
+    return database.authUser(lastUsername, "password" + (users - 1));
+  }
+
+  @Benchmark
+  public boolean authUnknownUser() {
+    return database.authUser("nobody", "password");
+  }
+}
@@ -0,0 +1,34 @@
+package csc3300.benchmarks;
+
+/**
+ * Generated rows for @see FakeDriver
+ * @author Michael Snyder
+ */
+
+public class BenchmarkRows {
+  private static final String[] GRADES = { "A", "A-", "B+", "B", "C", "C-", "D", "F" };
+
+  /**
+   * Generate section rows (course_id, sec_id, semester, year, building, room_number, time_slot_id)
+   * @param count Number of rows
+   * @return Rows in select order
+   */
+  public static Object[][] sections(int count) {
+    Object[][] rows = new Object[count][];
+    for (int i = 0; i < count; i++)
+      rows[i] = new Object[] { "CS-" + (100 + i % 900), Integer.toString(1 + i % 3), i % 2 == 0 ? "Spring" : "Fall", 2000 + i % 17, "Taylor", Integer.toString(3000 + i % 128), Character.toString((char)('A' + i % 8)) };
+    return rows;
+  }
+
+  /**
+   * Generate transcript rows (title, course_id, semester, year, grade, credits)
+   * @param count Number of rows
+   * @return Rows in select order
+   */
+  public static Object[][] transcript(int count) {
+    Object[][] rows = new Object[count][];
+    for (int i = 0; i < count; i++)
+      rows[i] = new Object[] { "Course Title: Part " + i, "CS-" + (100 + i % 900), i % 2 == 0 ? "Spring" : "Fall", 2000 + i / 2, GRADES[i % GRADES.length], 3 + i % 2 };
+    return rows;
+  }
+}
@@ -0,0 +1,50 @@
+package csc3300.benchmarks;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The parts of the CLI's Database measured by the benchmarks
+ * JMH needs benchmarks in a named package, which can't see the CLI's default package classes,
+ * so the default package BenchmarkDatabase implements this on their behalf
+ * @author Michael Snyder
+ */
+
+public interface BenchmarkTarget {
+  String[] cleanInput(String... values);
+
+  String asSQLArray(String... values);
+
+  List<?> getTableInformation(String tableName, String... fields);
+
+  List<?> getSectionInfo();
+
+  int streamSectionInfo(Consumer<Object> rowHandler);
+
+  void clearQueryCache();
+
+  boolean addStaff(String username, String password);
+
+  boolean addStudent(String username, String password);
+
+  boolean authUser(String username, String password);
+
+  Object getTranscript();
+
+  void close();
+
+  /**
+   * Open a database on @see FakeDriver
+   * @return New target, close it in the benchmark's tear down
+   */
+  static BenchmarkTarget open() {
+    FakeDriver.register();
+    try {
+      BenchmarkTarget target = (BenchmarkTarget)Class.forName("BenchmarkDatabase").getConstructor(String.class).newInstance(FakeDriver.URL);
+      return target;
+    }
+    catch (ReflectiveOperationException E) {
+      throw new IllegalStateException("Could not open the benchmark database", E);
+    }
+  }
+}
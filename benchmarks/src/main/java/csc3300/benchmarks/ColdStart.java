@@ -0,0 +1,142 @@
+package csc3300.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Cold start timing harness for the CLI, JMH can't measure this since it keeps its JVM warm
+ * Starts Program in a new JVM over and over and times how long the first prompt takes to be written,
+ * from launching the process (so JVM startup and class loading count) to the prompt's last byte arriving.
+ * Each run is then sent end of input so it exits.
+ *
+ * Usage: java -cp target/benchmarks.jar csc3300.benchmarks.ColdStart [--runs N] [--prompt text] [--jvm-arg arg]... [-- program args]
+ * The program args default to --lazy. Try JVM args such as -XX:TieredStopAtLevel=1, -XX:+UseSerialGC or -Xshare:auto
+ * @author Michael Snyder
+ */
+
+public class ColdStart {
+  private static final long PROMPT_TIMEOUT_SECONDS = 30;
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int runs = 20;
+    String prompt = "Enter username: ";
+    List<String> jvmArgs = new ArrayList<String>();
+    List<String> programArgs = new ArrayList<String>(Arrays.asList("--lazy"));
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--runs") && i + 1 < args.length)
+        runs = Integer.parseInt(args[++i]);
+      else if (args[i].equals("--prompt") && i + 1 < args.length)
+        prompt = args[++i];
+      else if (args[i].equals("--jvm-arg") && i + 1 < args.length)
+        jvmArgs.add(args[++i]);
+      else if (args[i].equals("--")) {
+        programArgs = new ArrayList<String>(Arrays.asList(args).subList(i + 1, args.length));
+        break;
+      }
+      else {
+        System.out.println("Usage: ColdStart [--runs N] [--prompt text] [--jvm-arg arg]... [-- program args]");
+        return;
+      }
+    }
+    if (runs < 1) {
+      System.out.println("--runs must be at least 1");
+      return;
+    }
+
+    List<String> command = new ArrayList<String>();
+    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    command.addAll(jvmArgs);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("Program");
+    command.addAll(programArgs);
+    System.out.println(String.join(" ", command));
+
+    // the first run pulls the classes into the page cache, it isn't counted
+    long[] millis = new long[runs];
+    timeToPrompt(command, prompt.getBytes(StandardCharsets.UTF_8));
+    for (int i = 0; i < runs; i++)
+      millis[i] = timeToPrompt(command, prompt.getBytes(StandardCharsets.UTF_8));
+
+    Arrays.sort(millis);
+    System.out.println(String.format("%d runs, ms to first prompt: min %d, median %d, p90 %d, max %d", runs,
+      millis[0], millis[runs / 2], millis[Math.min(runs - 1, (int)Math.ceil(runs * 0.9) - 1)], millis[runs - 1]));
+  }
+
+  /**
+   * Start the program and wait for the prompt
+   * @param command Command line of the program
+   * @param prompt Bytes the prompt ends with
+   * @return Milliseconds from launching the process to the prompt being written
+   * @throws IOException If the program exits (or times out) before writing the prompt
+   */
+  private static long timeToPrompt(List<String> command, final byte[] prompt) throws IOException, InterruptedException {
+    ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+    long start = System.nanoTime();
+    final Process process = builder.start();
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final CompletableFuture<Long> promptWritten = new CompletableFuture<Long>();
+    // a blocked read can't time out, so the output is read on its own thread and waited on with a deadline
+    Thread outputReader = new Thread("cold-start-output") {
+      public void run() {
+        try {
+          InputStream programOutput = process.getInputStream();
+          byte[] buffer = new byte[4096];
+          int read;
+          while ((read = programOutput.read(buffer)) >= 0) {
+            output.write(buffer, 0, read);
+            if (!promptWritten.isDone() && endsWith(output.toByteArray(), prompt))
+              promptWritten.complete(System.nanoTime());
+          }
+          promptWritten.completeExceptionally(new IOException("The program exited before the prompt: " + output.toString("UTF-8")));
+        }
+        catch (IOException E) {
+          promptWritten.completeExceptionally(E);
+        }
+      }
+    };
+    outputReader.setDaemon(true);
+    outputReader.start();
+    try {
+      long elapsed;
+      try {
+        elapsed = TimeUnit.NANOSECONDS.toMillis(promptWritten.get(PROMPT_TIMEOUT_SECONDS, TimeUnit.SECONDS) - start);
+      }
+      catch (TimeoutException E) {
+        throw new IOException("The program didn't write the prompt within " + PROMPT_TIMEOUT_SECONDS + " seconds: " + output.toString("UTF-8"));
+      }
+      catch (ExecutionException E) {
+        throw (IOException)E.getCause();
+      }
+
+      // end of input makes the CLI give up on logging in and exit
+      process.getOutputStream().close();
+      if (!process.waitFor(PROMPT_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+        throw new IOException("The program didn't exit after end of input");
+      return elapsed;
+    }
+    finally {
+      process.destroyForcibly();
+      outputReader.join(TimeUnit.SECONDS.toMillis(PROMPT_TIMEOUT_SECONDS));
+    }
+  }
+
+  private static boolean endsWith(byte[] output, byte[] suffix) {
+    if (output.length < suffix.length)
+      return false;
+    for (int i = 0; i < suffix.length; i++)
+      if (output[output.length - suffix.length + i] != suffix[i])
+        return false;
+    return true;
+  }
+}
@@ -0,0 +1,249 @@
+package csc3300.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Stand-in JDBC driver for "jdbc:fake:" urls so the benchmarks can run @see Database without a MySQL server
+ * Queries return canned rows registered with @see setResult, commands always succeed
+ * @author Michael Snyder
+ */
+
+public class FakeDriver implements Driver {
+  public static final String URL = "jdbc:fake:university";
+
+  // sql fragment -> rows returned by any query containing it
+  private static final Map<String, Object[][]> results = new ConcurrentHashMap<String, Object[][]>();
+
+  static {
+    try {
+      DriverManager.registerDriver(new FakeDriver());
+    }
+    catch (SQLException E) {
+      throw new ExceptionInInitializerError(E);
+    }
+  }
+
+  /**
+   * Make sure the driver is registered with the DriverManager
+   */
+  public static void register() {
+    // registration happens in the static initializer
+  }
+
+  /**
+   * Return these rows for every query containing the sql fragment
+   * @param sqlFragment Part of the query to match, such as "from `section`"
+   * @param rows Rows to return, columns in select order
+   */
+  public static void setResult(String sqlFragment, Object[][] rows) {
+    results.put(sqlFragment, rows);
+  }
+
+  /**
+   * Forget every registered result
+   */
+  public static void clearResults() {
+    results.clear();
+  }
+
+  private static Object[][] resultFor(String sql) {
+    Object[][] best = null;
+    int bestLength = -1;
+    for (Map.Entry<String, Object[][]> result : results.entrySet()) {
+      if (sql.contains(result.getKey()) && result.getKey().length() > bestLength) {
+        best = result.getValue();
+        bestLength = result.getKey().length();
+      }
+    }
+    return best == null ? new Object[0][] : best;
+  }
+
+  public Connection connect(String url, Properties info) throws SQLException {
+    if (!acceptsURL(url))
+      return null;
+    return (Connection)proxy(Connection.class, new FakeConnection());
+  }
+
+  public boolean acceptsURL(String url) {
+    return url != null && url.startsWith("jdbc:fake:");
+  }
+
+  public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+    return new DriverPropertyInfo[0];
+  }
+
+  public int getMajorVersion() {
+    return 1;
+  }
+
+  public int getMinorVersion() {
+    return 0;
+  }
+
+  public boolean jdbcCompliant() {
+    return false;
+  }
+
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  private static Object proxy(Class<?> type, InvocationHandler handler) {
+    return Proxy.newProxyInstance(FakeDriver.class.getClassLoader(), new Class<?>[] { type }, handler);
+  }
+
+  /**
+   * Default return values for methods the fakes don't care about
+   */
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class)
+      return false;
+    if (type == int.class)
+      return 0;
+    if (type == long.class)
+      return 0L;
+    if (type == short.class)
+      return (short)0;
+    if (type == byte.class)
+      return (byte)0;
+    if (type == double.class)
+      return 0.0;
+    if (type == float.class)
+      return 0.0f;
+    return null;
+  }
+
+  private static class FakeConnection implements InvocationHandler {
+    private boolean closed;
+    private boolean autoCommit = true;
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "prepareStatement":
+          return FakeDriver.proxy(PreparedStatement.class, new FakeStatement((String)args[0]));
+        case "createStatement":
+          return FakeDriver.proxy(Statement.class, new FakeStatement(null));
+        case "close":
+          closed = true;
+          return null;
+        case "isClosed":
+          return closed;
+        case "isValid":
+          return !closed;
+        case "getAutoCommit":
+          return autoCommit;
+        case "setAutoCommit":
+          autoCommit = (Boolean)args[0];
+          return null;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    }
+  }
+
+  private static class FakeStatement implements InvocationHandler {
+    private String sql;
+    private boolean closed;
+    private int batchCount;
+
+    public FakeStatement(String sql) {
+      this.sql = sql;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "executeQuery":
+          return FakeDriver.proxy(ResultSet.class, new FakeResultSet(resultFor(args != null && args.length > 0 ? (String)args[0] : sql)));
+        case "executeUpdate":
+          return 1;
+        case "execute":
+          return false;
+        case "addBatch":
+          batchCount++;
+          return null;
+        case "executeBatch":
+          int[] counts = new int[batchCount];
+          Arrays.fill(counts, 1);
+          batchCount = 0;
+          return counts;
+        case "clearBatch":
+          batchCount = 0;
+          return null;
+        case "close":
+          closed = true;
+          return null;
+        case "isClosed":
+          return closed;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    }
+  }
+
+  private static class FakeResultSet implements InvocationHandler {
+    private Object[][] rows;
+    private int current = -1;
+
+    public FakeResultSet(Object[][] rows) {
+      this.rows = rows;
+    }
+
+    private Object column(Object[] args) {
+      return rows[current][(Integer)args[0] - 1];
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "next":
+          return ++current < rows.length;
+        case "getObject":
+          return column(args);
+        case "getString":
+          Object value = column(args);
+          return value == null ? null : value.toString();
+        case "getInt":
+          Object intValue = column(args);
+          return intValue instanceof Number ? ((Number)intValue).intValue() : intValue == null ? 0 : Integer.parseInt(intValue.toString());
+        case "getLong":
+          Object longValue = column(args);
+          return longValue instanceof Number ? ((Number)longValue).longValue() : longValue == null ? 0L : Long.parseLong(longValue.toString());
+        case "getDouble":
+          Object doubleValue = column(args);
+          return doubleValue instanceof Number ? ((Number)doubleValue).doubleValue() : doubleValue == null ? 0.0 : Double.parseDouble(doubleValue.toString());
+        case "close":
+          return null;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    }
+  }
+}
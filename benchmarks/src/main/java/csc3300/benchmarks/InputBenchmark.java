@@ -0,0 +1,48 @@
+package csc3300.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks for @see Database cleanInput and asSQLArray
+ * @author Michael Snyder
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InputBenchmark {
+  private BenchmarkTarget database;
+  private String[] values;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    database = BenchmarkTarget.open();
+    values = new String[] { "CS-101", "1", "Spring", "2016", "Taylor's", "3128", "A;" };
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    database.close();
+  }
+
+  @Benchmark
+  public String[] cleanInput() {
+    // cleanInput works in place, so give it a fresh copy each time
+    return database.cleanInput(values.clone());
+  }
+
+  @Benchmark
+  public String asSQLArray() {
+    return database.asSQLArray(values.clone());
+  }
+}
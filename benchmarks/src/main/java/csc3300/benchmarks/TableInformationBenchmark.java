@@ -0,0 +1,62 @@
+package csc3300.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for @see Database getTableInformation row assembly, cached and streamed
+ * @author Michael Snyder
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TableInformationBenchmark {
+  private static final String[] SECTION_FIELDS = { "course_id", "sec_id", "semester", "year", "building", "room_number", "time_slot_id" };
+
+  @Param({ "100", "10000" })
+  public int rows;
+
+  private BenchmarkTarget database;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    FakeDriver.clearResults();
+    FakeDriver.setResult("from `section`", BenchmarkRows.sections(rows));
+    database = BenchmarkTarget.open();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    database.close();
+  }
+
+  @Benchmark
+  public List<?> getTableInformation() {
+    // measure the row assembly, not the cache
+    database.clearQueryCache();
+    return database.getTableInformation("section", SECTION_FIELDS);
+  }
+
+  @Benchmark
+  public List<?> getSectionInfoCached() {
+    return database.getSectionInfo();
+  }
+
+  @Benchmark
+  public int streamSectionInfo(final Blackhole blackhole) {
+    return database.streamSectionInfo(blackhole::consume);
+  }
+}
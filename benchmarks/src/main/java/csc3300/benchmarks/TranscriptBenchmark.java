@@ -0,0 +1,49 @@
+package csc3300.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks for @see Database getTranscript (row mapping and GPA lookup)
+ * @author Michael Snyder
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TranscriptBenchmark {
+  @Param({ "10", "200" })
+  public int courses;
+
+  private BenchmarkTarget database;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    FakeDriver.clearResults();
+    FakeDriver.setResult("`title`, `course_id`, `semester`, `year`, `grade`, `credits`", BenchmarkRows.transcript(courses));
+    FakeDriver.setResult("sum(case", new Object[][] { { 3.1 * courses * 3, courses * 3 } });
+    database = BenchmarkTarget.open();
+    database.addStudent("grey", "grey123");
+    database.authUser("grey", "grey123");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    database.close();
+  }
+
+  @Benchmark
+  public Object getTranscript() {
+    return database.getTranscript();
+  }
+}